@@ -0,0 +1,38 @@
+package org.elasticsearch.benchmark.payload;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the payload benchmarks and writes the results as JSON, so runs of two releases can
+ * be diffed. Usage: <code>BenchmarkMain [results.json] [jmh options]</code>, e.g.
+ * <code>BenchmarkMain release-1.json -p numDocs=100000 SimScorer</code>.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        String result = "payload-benchmarks.json";
+        String[] jmhArgs = args;
+        if (args.length > 0 && args[0].endsWith(".json")) {
+            result = args[0];
+            jmhArgs = new String[args.length - 1];
+            System.arraycopy(args, 1, jmhArgs, 0, jmhArgs.length);
+        }
+        CommandLineOptions commandLine = new CommandLineOptions(jmhArgs);
+        OptionsBuilder builder = new OptionsBuilder();
+        if (commandLine.getIncludes().isEmpty()) {
+            builder.include(BenchmarkMain.class.getPackage().getName() + ".*Benchmark");
+        }
+        Options options = builder
+                .parent(commandLine)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,217 @@
+package org.elasticsearch.benchmark.payload;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilter;
+import org.apache.lucene.analysis.payloads.FloatEncoder;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Synthetic in-memory corpus of payload-bearing documents. Terms are drawn from a Zipf
+ * distribution over a vocabulary of <code>t0 ... tN</code>, so low ranks are the common
+ * terms, and every position carries a float payload drawn from the configured
+ * {@link PayloadDistribution}.
+ */
+public final class PayloadCorpus implements Closeable {
+
+    public static final String BODY = "body";
+    public static final String TITLE = "title";
+
+    /**
+     * How payload weights are distributed over positions
+     */
+    public static enum PayloadDistribution {
+        /** Every position has weight 1 */
+        CONSTANT,
+        /** Weights uniform in [0, 2) */
+        UNIFORM,
+        /** Most weights small, a few large */
+        SKEWED,
+        /** 90% of the positions have weight 1, the rest uniform in [0, 2) */
+        SPARSE;
+
+        float next(Random random) {
+            switch (this) {
+                case CONSTANT:
+                    return 1.0F;
+                case UNIFORM:
+                    return 2 * random.nextFloat();
+                case SKEWED:
+                    float x = random.nextFloat();
+                    return 4 * x * x * x;
+                case SPARSE:
+                    return random.nextInt(10) == 0 ? 2 * random.nextFloat() : 1.0F;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+    }
+
+    private final Directory directory;
+    private final DirectoryReader reader;
+    private final IndexSearcher searcher;
+    private final int vocabularySize;
+
+    private PayloadCorpus(Directory directory, DirectoryReader reader, Similarity similarity, int vocabularySize) {
+        this.directory = directory;
+        this.reader = reader;
+        this.searcher = new IndexSearcher(reader);
+        this.searcher.setSimilarity(similarity);
+        this.vocabularySize = vocabularySize;
+    }
+
+    /**
+     * Indexes <code>numDocs</code> documents with a body of <code>bodyLength</code> and a
+     * title of <code>bodyLength / 20</code> positions into a single segment.
+     */
+    public static PayloadCorpus build(int numDocs, int bodyLength, int vocabularySize,
+            PayloadDistribution payloads, Similarity similarity, long seed) throws IOException {
+        Random random = new Random(seed);
+        double[] cumulative = zipf(vocabularySize);
+        Directory directory = new RAMDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_4_10_0, analyzer());
+        config.setSimilarity(similarity);
+        try (IndexWriter writer = new IndexWriter(directory, config)) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < numDocs; i++) {
+                Document doc = new Document();
+                doc.add(new TextField(TITLE, text(text, Math.max(1, bodyLength / 20), cumulative, payloads, random), Field.Store.NO));
+                doc.add(new TextField(BODY, text(text, bodyLength, cumulative, payloads, random), Field.Store.NO));
+                writer.addDocument(doc);
+            }
+            writer.forceMerge(1);
+        }
+        return new PayloadCorpus(directory, DirectoryReader.open(directory), similarity, vocabularySize);
+    }
+
+    /**
+     * Indexes a payload-annotated dump into a single segment. Every line is a document,
+     * <code>title&lt;TAB&gt;body</code> or just a body, with <code>term|weight</code> tokens
+     * like the synthetic corpus; tokens without a weight get no payload.
+     */
+    public static PayloadCorpus load(File dump, Similarity similarity) throws IOException {
+        Directory directory = new RAMDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_4_10_0, analyzer());
+        config.setSimilarity(similarity);
+        try (IndexWriter writer = new IndexWriter(directory, config);
+             BufferedReader lines = new BufferedReader(new InputStreamReader(new FileInputStream(dump), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = lines.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int tab = line.indexOf('\t');
+                Document doc = new Document();
+                doc.add(new TextField(TITLE, tab < 0 ? "" : line.substring(0, tab), Field.Store.NO));
+                doc.add(new TextField(BODY, line.substring(tab + 1), Field.Store.NO));
+                writer.addDocument(doc);
+            }
+            writer.forceMerge(1);
+        }
+        DirectoryReader reader = DirectoryReader.open(directory);
+        Terms body = reader.leaves().isEmpty() ? null : reader.leaves().get(0).reader().terms(BODY);
+        return new PayloadCorpus(directory, reader, similarity, body == null ? 0 : (int) body.size());
+    }
+
+    /**
+     * Tokenizes on whitespace and reads payloads from <code>term|weight</code> tokens
+     */
+    public static Analyzer analyzer() {
+        return new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+                Tokenizer tokenizer = new WhitespaceTokenizer(Version.LUCENE_4_10_0, reader);
+                return new TokenStreamComponents(tokenizer, new DelimitedPayloadTokenFilter(tokenizer, '|', new FloatEncoder()));
+            }
+        };
+    }
+
+    private static String text(StringBuilder text, int length, double[] cumulative, PayloadDistribution payloads,
+            Random random) {
+        text.setLength(0);
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(term(rank(cumulative, random))).append('|')
+                .append(String.format(Locale.ROOT, "%.3f", payloads.next(random)));
+        }
+        return text.toString();
+    }
+
+    private static double[] zipf(int vocabularySize) {
+        double[] cumulative = new double[vocabularySize];
+        double sum = 0;
+        for (int i = 0; i < vocabularySize; i++) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < vocabularySize; i++) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int rank(double[] cumulative, Random random) {
+        double x = random.nextDouble();
+        int lo = 0;
+        int hi = cumulative.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cumulative[mid] < x) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * The term of the given frequency rank, 0 being the most common
+     */
+    public static String term(int rank) {
+        return "t" + rank;
+    }
+
+    public int vocabularySize() {
+        return vocabularySize;
+    }
+
+    public DirectoryReader reader() {
+        return reader;
+    }
+
+    public IndexSearcher searcher() {
+        return searcher;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+        directory.close();
+    }
+}
@@ -0,0 +1,418 @@
+package org.elasticsearch.benchmark.payload;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.similarities.ArticlePayloadIBSimilarity;
+import org.apache.lucene.search.similarities.DistributionLL;
+import org.apache.lucene.search.similarities.LambdaDF;
+import org.apache.lucene.search.similarities.NormalizationH2;
+import org.elasticsearch.index.query.SimplePayloadQueryParser;
+import org.elasticsearch.index.query.SimpleQueryParser;
+
+/**
+ * Replays a query log through {@link SimplePayloadQueryParser} against a local index scored
+ * with {@link ArticlePayloadIBSimilarity}, and reports latency percentiles, throughput and
+ * allocation per query shape (term, phrase, near, prefix, fuzzy, each on one or several
+ * fields).
+ *
+ * Queries are started on a fixed schedule of <code>qps</code> queries per second and run on
+ * <code>threads</code> threads; latencies are measured from the scheduled start, so time a
+ * query waits for a free thread counts, like it does for a user. With <code>qps=0</code>
+ * every thread runs queries back to back instead. Each query is parsed and searched for
+ * the top <code>size</code> hits, like a shard does for <code>simple_payload_query_string</code>.
+ *
+ * Usage: <code>PayloadLoadTester [option=value ...]</code>
+ * <ul>
+ * <li><code>dump</code>: payload-annotated dump to index, see {@link PayloadCorpus#load}; a
+ * synthetic corpus of <code>docs</code> documents of <code>body_length</code> positions over
+ * <code>vocabulary</code> terms with <code>payloads</code> weights otherwise</li>
+ * <li><code>queries</code>: query log, one <code>[field^boost,...&lt;TAB&gt;]query</code> per
+ * line, replayed in order and from the start again when exhausted; a synthetic mix of all
+ * shapes over the synthetic corpus otherwise</li>
+ * <li><code>threads</code> (8), <code>qps</code> (0), <code>warmup</code> and
+ * <code>duration</code> in seconds (10 and 60), <code>size</code> (10), <code>seed</code></li>
+ * </ul>
+ */
+public class PayloadLoadTester {
+
+    private static final Pattern NEAR = Pattern.compile("\"~(\\d+)");
+    private static final Pattern FUZZY = Pattern.compile("[^\"\\s]~\\d*(\\s|$)");
+
+    private final IndexSearcher searcher;
+    private final Analyzer analyzer;
+    private final List<LoggedQuery> queries;
+    private final int size;
+    private final ConcurrentMap<String, ShapeStats> shapes = new ConcurrentHashMap<>();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final boolean allocations;
+    private final AtomicLong next = new AtomicLong();
+    private volatile boolean recording = false;
+
+    PayloadLoadTester(IndexSearcher searcher, Analyzer analyzer, List<LoggedQuery> queries, int size) {
+        this.searcher = searcher;
+        this.analyzer = analyzer;
+        this.queries = queries;
+        this.size = size;
+        this.allocations = threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported();
+        if (allocations) {
+            ((com.sun.management.ThreadMXBean) threads).setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("options must be option=value, got [" + arg + "]");
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        long seed = Long.parseLong(option(options, "seed", "42"));
+        ArticlePayloadIBSimilarity similarity = new ArticlePayloadIBSimilarity(
+                new DistributionLL(), new LambdaDF(), new NormalizationH2(), 32);
+
+        PayloadCorpus corpus;
+        if (options.containsKey("dump")) {
+            if (!options.containsKey("queries")) {
+                throw new IllegalArgumentException("a query log is required to replay against a dump");
+            }
+            corpus = PayloadCorpus.load(new File(options.get("dump")), similarity);
+        } else {
+            corpus = PayloadCorpus.build(Integer.parseInt(option(options, "docs", "100000")),
+                    Integer.parseInt(option(options, "body_length", "200")),
+                    Integer.parseInt(option(options, "vocabulary", "5000")),
+                    PayloadCorpus.PayloadDistribution.valueOf(option(options, "payloads", "UNIFORM").toUpperCase(Locale.ROOT)),
+                    similarity, seed);
+        }
+        try {
+            List<LoggedQuery> queries = options.containsKey("queries")
+                    ? readLog(new File(options.get("queries")))
+                    : syntheticLog(corpus.vocabularySize(), 10000, new Random(seed));
+            PayloadLoadTester tester = new PayloadLoadTester(corpus.searcher(), PayloadCorpus.analyzer(), queries,
+                    Integer.parseInt(option(options, "size", "10")));
+            tester.run(Integer.parseInt(option(options, "threads", "8")), Double.parseDouble(option(options, "qps", "0")),
+                    TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "warmup", "10"))),
+                    TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "duration", "60"))));
+        } finally {
+            corpus.close();
+        }
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * Runs the warmup, then the measured period, and prints the report
+     */
+    void run(int numThreads, double qps, long warmupNanos, long durationNanos) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            drive(executor, numThreads, qps, warmupNanos);
+            shapes.clear();
+            recording = true;
+            long start = System.nanoTime();
+            drive(executor, numThreads, qps, durationNanos);
+            recording = false;
+            report(System.out, System.nanoTime() - start);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void drive(ExecutorService executor, int numThreads, double qps, long nanos) throws InterruptedException {
+        final long deadline = System.nanoTime() + nanos;
+        if (qps <= 0) {
+            final List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < numThreads; i++) {
+                workers.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        while (System.nanoTime() - deadline < 0) {
+                            execute(System.nanoTime());
+                        }
+                    }
+                }));
+            }
+            for (Future<?> worker : workers) {
+                try {
+                    worker.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("load worker failed", e.getCause());
+                }
+            }
+            return;
+        }
+        final double interval = TimeUnit.SECONDS.toNanos(1) / qps;
+        final long start = System.nanoTime();
+        final AtomicLong pending = new AtomicLong();
+        for (long i = 0; ; i++) {
+            final long scheduled = start + (long) (i * interval);
+            if (scheduled - deadline >= 0) {
+                break;
+            }
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            pending.incrementAndGet();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        execute(scheduled);
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                }
+            });
+        }
+        // queries scheduled before the deadline still count, however late they finish
+        while (pending.get() > 0) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+    }
+
+    /**
+     * Parses and runs the next query of the log, with a latency measured from <code>scheduled</code>
+     */
+    private void execute(long scheduled) {
+        LoggedQuery logged = queries.get((int) (next.getAndIncrement() % queries.size()));
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = allocations ? ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(thread) : 0;
+        try {
+            Query query = new SimplePayloadQueryParser(analyzer, logged.weights, -1, new SimpleQueryParser.Settings())
+                    .parse(logged.text);
+            if (query != null) {
+                searcher.search(query, size);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to run [" + logged.text + "]", e);
+        }
+        long latency = System.nanoTime() - scheduled;
+        long allocated = allocations
+                ? ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(thread) - allocatedBefore : 0;
+        if (recording) {
+            stats(logged.shape).record(latency, allocated);
+        }
+    }
+
+    private ShapeStats stats(String shape) {
+        ShapeStats stats = shapes.get(shape);
+        if (stats == null) {
+            ShapeStats created = new ShapeStats();
+            stats = shapes.putIfAbsent(shape, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    void report(PrintStream out, long elapsedNanos) {
+        double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        out.println(String.format(Locale.ROOT, "%-24s %9s %9s %9s %9s %9s %9s %10s %10s %9s",
+                "shape", "count", "qps", "p50_ms", "p90_ms", "p99_ms", "p999_ms", "max_ms", "kb/query", "mb/s"));
+        ShapeStats total = new ShapeStats();
+        for (Map.Entry<String, ShapeStats> entry : new TreeMap<>(shapes).entrySet()) {
+            print(out, entry.getKey(), entry.getValue(), seconds);
+            total.addAll(entry.getValue());
+        }
+        print(out, "all", total, seconds);
+        if (!allocations) {
+            out.println("allocations are not measured, the JVM does not support thread allocation counters");
+        }
+    }
+
+    private void print(PrintStream out, String shape, ShapeStats stats, double seconds) {
+        long[] latencies = stats.sortedLatencies();
+        if (latencies.length == 0) {
+            return;
+        }
+        out.println(String.format(Locale.ROOT, "%-24s %9d %9.1f %9.3f %9.3f %9.3f %9.3f %10.3f %10.1f %9.1f",
+                shape, latencies.length, latencies.length / seconds,
+                millis(percentile(latencies, 0.5)), millis(percentile(latencies, 0.9)),
+                millis(percentile(latencies, 0.99)), millis(percentile(latencies, 0.999)),
+                millis(latencies[latencies.length - 1]),
+                stats.allocated() / 1024.0 / latencies.length, stats.allocated() / 1024.0 / 1024.0 / seconds));
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    /**
+     * Describes the structure of a logged query, e.g. <code>near</code> or
+     * <code>phrase,multi_field</code>
+     */
+    static String shape(String text, int numFields) {
+        String shape;
+        Matcher near = NEAR.matcher(text);
+        if (near.find() && Integer.parseInt(near.group(1)) > 0) {
+            shape = "near";
+        } else if (text.indexOf('"') >= 0) {
+            shape = "phrase";
+        } else if (FUZZY.matcher(text).find()) {
+            shape = "fuzzy";
+        } else if (text.matches(".*[^\\\\]\\*(\\s.*|$)")) {
+            shape = "prefix";
+        } else {
+            shape = "term";
+        }
+        return numFields > 1 ? shape + ",multi_field" : shape;
+    }
+
+    static List<LoggedQuery> readLog(File log) throws IOException {
+        List<LoggedQuery> queries = new ArrayList<>();
+        try (BufferedReader lines = new BufferedReader(new InputStreamReader(new FileInputStream(log), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = lines.readLine()) != null) {
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int tab = line.indexOf('\t');
+                Map<String, Float> weights = new HashMap<>();
+                if (tab < 0) {
+                    weights.put(PayloadCorpus.BODY, 1.0F);
+                } else {
+                    for (String spec : line.substring(0, tab).split(",")) {
+                        int caret = spec.indexOf('^');
+                        weights.put(caret < 0 ? spec.trim() : spec.substring(0, caret).trim(),
+                                caret < 0 ? 1.0F : Float.parseFloat(spec.substring(caret + 1)));
+                    }
+                }
+                queries.add(new LoggedQuery(weights, line.substring(tab + 1)));
+            }
+        }
+        if (queries.isEmpty()) {
+            throw new IllegalArgumentException("query log [" + log + "] has no queries");
+        }
+        return queries;
+    }
+
+    /**
+     * A mix of all shapes over the terms of a synthetic corpus, common terms more often
+     */
+    static List<LoggedQuery> syntheticLog(int vocabularySize, int numQueries, Random random) {
+        Map<String, Float> body = Collections.singletonMap(PayloadCorpus.BODY, 1.0F);
+        Map<String, Float> both = new HashMap<>();
+        both.put(PayloadCorpus.TITLE, 2.0F);
+        both.put(PayloadCorpus.BODY, 1.0F);
+        List<LoggedQuery> queries = new ArrayList<>(numQueries);
+        for (int i = 0; i < numQueries; i++) {
+            String a = term(vocabularySize, random);
+            String b = term(vocabularySize, random);
+            String text;
+            switch (random.nextInt(5)) {
+                case 0:
+                    text = a + " " + b;
+                    break;
+                case 1:
+                    text = "\"" + a + " " + b + "\"";
+                    break;
+                case 2:
+                    text = "\"" + a + " " + b + "\"~" + (1 + random.nextInt(10));
+                    break;
+                case 3:
+                    text = a.substring(0, Math.max(2, a.length() - 1)) + "*";
+                    break;
+                default:
+                    text = a + "~1";
+                    break;
+            }
+            queries.add(new LoggedQuery(random.nextInt(4) == 0 ? both : body, text));
+        }
+        return queries;
+    }
+
+    private static String term(int vocabularySize, Random random) {
+        // squaring a uniform rank favors common terms without the corpus' exact Zipf table
+        double x = random.nextDouble();
+        return PayloadCorpus.term((int) (x * x * vocabularySize));
+    }
+
+    static final class LoggedQuery {
+        final Map<String, Float> weights;
+        final String text;
+        final String shape;
+
+        LoggedQuery(Map<String, Float> weights, String text) {
+            this.weights = weights;
+            this.text = text;
+            this.shape = shape(text, weights.size());
+        }
+    }
+
+    /**
+     * Latencies and allocations of the queries of one shape
+     */
+    static final class ShapeStats {
+        private long[] latencies = new long[1024];
+        private int count = 0;
+        private long allocated = 0;
+
+        synchronized void record(long latency, long allocatedBytes) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+            allocated += allocatedBytes;
+        }
+
+        synchronized void addAll(ShapeStats other) {
+            long[] values = other.sortedLatencies();
+            for (long value : values) {
+                record(value, 0);
+            }
+            allocated += other.allocated();
+        }
+
+        synchronized long[] sortedLatencies() {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        synchronized long allocated() {
+            return allocated;
+        }
+    }
+}
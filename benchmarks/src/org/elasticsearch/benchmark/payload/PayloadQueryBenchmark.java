@@ -0,0 +1,85 @@
+package org.elasticsearch.benchmark.payload;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.ArticlePayloadIBSimilarity;
+import org.apache.lucene.search.similarities.DistributionLL;
+import org.apache.lucene.search.similarities.LambdaDF;
+import org.apache.lucene.search.similarities.NormalizationH2;
+import org.elasticsearch.index.query.SimplePayloadQueryParser;
+import org.elasticsearch.index.query.SimpleQueryParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end top 10 latency of the {@link org.apache.lucene.search.payloads.PayloadTermQuery}
+ * and {@link org.apache.lucene.search.payloads.PayloadNearQuery} trees built by
+ * {@link SimplePayloadQueryParser} over a title and a body field.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadQueryBenchmark {
+
+    @Param({"t3", "t3 t40 t700", "\"t3 t7\"", "\"t3 t7 t12\"~5"})
+    public String queryText;
+
+    @Param({"POSITIONS"})
+    public SimplePayloadQueryParser.PayloadMode payloadMode;
+
+    @Param({"0", "10"})
+    public int topK;
+
+    @Param({"UNIFORM"})
+    public PayloadCorpus.PayloadDistribution payloads;
+
+    @Param({"50000"})
+    public int numDocs;
+
+    private PayloadCorpus corpus;
+    private Query query;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ArticlePayloadIBSimilarity similarity = new ArticlePayloadIBSimilarity(
+                new DistributionLL(), new LambdaDF(), new NormalizationH2(), 32);
+        corpus = PayloadCorpus.build(numDocs, 200, 5000, payloads, similarity, 42L);
+        Map<String, Float> weights = new HashMap<>();
+        weights.put(PayloadCorpus.TITLE, 2.0F);
+        weights.put(PayloadCorpus.BODY, 1.0F);
+        SimplePayloadQueryParser.PayloadSettings payloadSettings = new SimplePayloadQueryParser.PayloadSettings();
+        payloadSettings.payloadMode(payloadMode);
+        payloadSettings.topK(topK);
+        query = new SimplePayloadQueryParser(PayloadCorpus.analyzer(), weights, -1,
+                new SimpleQueryParser.Settings(), payloadSettings).parse(queryText);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        corpus.close();
+    }
+
+    @Benchmark
+    public TopDocs search() throws IOException {
+        return corpus.searcher().search(query, 10);
+    }
+}
@@ -0,0 +1,69 @@
+package org.elasticsearch.benchmark.payload;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.index.query.SimplePayloadQueryParser;
+import org.elasticsearch.index.query.SimplePayloadQueryStringFlag;
+import org.elasticsearch.index.query.SimpleQueryParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning query text into a query tree with {@link SimplePayloadQueryParser}, the
+ * part of <code>SimplePayloadQueryStringParser.parse</code> that analyzes the text and
+ * builds the payload clauses, for various flags and numbers of fields.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryParserBenchmark {
+
+    @Param({"t3 t40 t700", "\"t3 t7 t12\"~5 +t40 -t41", "(t3 | t4*) + t5~1"})
+    public String queryText;
+
+    @Param({"ALL", "AND|OR|PHRASE"})
+    public String flags;
+
+    @Param({"1", "6"})
+    public int numFields;
+
+    private Analyzer analyzer;
+    private Map<String, Float> weights;
+    private int resolvedFlags;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        analyzer = PayloadCorpus.analyzer();
+        weights = new HashMap<>();
+        for (int i = 0; i < numFields; i++) {
+            weights.put("field" + i, 1.0F + i);
+        }
+        resolvedFlags = 0;
+        for (String flag : flags.split("\\|")) {
+            resolvedFlags |= SimplePayloadQueryStringFlag.valueOf(flag).value();
+        }
+    }
+
+    @Benchmark
+    public Query parse() {
+        return new SimplePayloadQueryParser(analyzer, weights, resolvedFlags, new SimpleQueryParser.Settings())
+                .parse(queryText);
+    }
+}
@@ -0,0 +1,149 @@
+package org.elasticsearch.benchmark.payload;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.similarities.ArticlePayloadIBSimilarity;
+import org.apache.lucene.search.similarities.DistributionLL;
+import org.apache.lucene.search.similarities.DistributionSPL;
+import org.apache.lucene.search.similarities.LambdaDF;
+import org.apache.lucene.search.similarities.NormalizationH2;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.BytesRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the {@link ArticlePayloadIBSimilarity} scorers, replaying the postings of a
+ * common term. Each invocation scores the whole postings list once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimScorerBenchmark {
+
+    @Param({"ll", "spl"})
+    public String distribution;
+
+    @Param({"0", "32"})
+    public int scoreTableMaxFreq;
+
+    @Param({"UNIFORM", "SPARSE"})
+    public PayloadCorpus.PayloadDistribution payloads;
+
+    @Param({"20000"})
+    public int numDocs;
+
+    private PayloadCorpus corpus;
+    private Similarity.SimScorer termScorer;
+    private Similarity.SimScorer phraseScorer;
+    private int[] docs;
+    private float[] freqs;
+    private BytesRef[] payloadBytes;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ArticlePayloadIBSimilarity similarity = new ArticlePayloadIBSimilarity(
+                "spl".equals(distribution) ? new DistributionSPL() : new DistributionLL(),
+                new LambdaDF(), new NormalizationH2(), scoreTableMaxFreq);
+        corpus = PayloadCorpus.build(numDocs, 200, 5000, payloads, similarity, 42L);
+        IndexSearcher searcher = corpus.searcher();
+        AtomicReaderContext leaf = corpus.reader().leaves().get(0);
+
+        Term term = new Term(PayloadCorpus.BODY, PayloadCorpus.term(3));
+        Similarity.SimWeight termWeight = similarity.computeWeight(1.0F,
+                searcher.collectionStatistics(PayloadCorpus.BODY), termStatistics(searcher, term));
+        termWeight.normalize(1.0F, 1.0F);
+        termScorer = similarity.simScorer(termWeight, leaf);
+
+        Similarity.SimWeight phraseWeight = similarity.computeWeight(1.0F,
+                searcher.collectionStatistics(PayloadCorpus.BODY),
+                termStatistics(searcher, new Term(PayloadCorpus.BODY, PayloadCorpus.term(3))),
+                termStatistics(searcher, new Term(PayloadCorpus.BODY, PayloadCorpus.term(7))),
+                termStatistics(searcher, new Term(PayloadCorpus.BODY, PayloadCorpus.term(12))));
+        phraseWeight.normalize(1.0F, 1.0F);
+        phraseScorer = similarity.simScorer(phraseWeight, leaf);
+
+        // replay the real postings of the term, with span freqs as PayloadTermQuery sees them
+        List<BytesRef> collected = new ArrayList<>();
+        TermsEnum termsEnum = leaf.reader().terms(PayloadCorpus.BODY).iterator(null);
+        termsEnum.seekExact(term.bytes());
+        docs = new int[termsEnum.docFreq()];
+        freqs = new float[docs.length];
+        DocsAndPositionsEnum postings = termsEnum.docsAndPositions(null, null, DocsAndPositionsEnum.FLAG_PAYLOADS);
+        int i = 0;
+        for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+            docs[i] = doc;
+            freqs[i] = postings.freq() * termScorer.computeSlopFactor(1);
+            for (int j = 0; j < postings.freq(); j++) {
+                postings.nextPosition();
+                BytesRef payload = postings.getPayload();
+                if (payload != null) {
+                    collected.add(BytesRef.deepCopyOf(payload));
+                }
+            }
+            i++;
+        }
+        payloadBytes = collected.toArray(new BytesRef[collected.size()]);
+    }
+
+    private static TermStatistics termStatistics(IndexSearcher searcher, Term term) throws IOException {
+        return searcher.termStatistics(term, TermContext.build(searcher.getTopReaderContext(), term));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        corpus.close();
+    }
+
+    @Benchmark
+    public float basicSimScorerScore() {
+        float sum = 0;
+        for (int i = 0; i < docs.length; i++) {
+            sum += termScorer.score(docs[i], freqs[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public float computePayloadFactor() {
+        float sum = 0;
+        for (int i = 0; i < payloadBytes.length; i++) {
+            sum += termScorer.computePayloadFactor(0, i, i + 1, payloadBytes[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public float multiSimScorerScore() {
+        float sum = 0;
+        for (int i = 0; i < docs.length; i++) {
+            sum += phraseScorer.score(docs[i], freqs[i]);
+        }
+        return sum;
+    }
+}
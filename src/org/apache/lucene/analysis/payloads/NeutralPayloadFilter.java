@@ -0,0 +1,48 @@
+package org.apache.lucene.analysis.payloads;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Drops payloads whose weight is the neutral weight 1, within <code>tolerance</code>, so
+ * that only positions with a meaningful weight store a payload. Scoring is unchanged as
+ * long as the similarity of the field counts positions without a payload as neutral, see
+ * {@link org.apache.lucene.search.similarities.ArticlePayloadIBSimilarity#setMissingPayloadsNeutral(boolean)}.
+ */
+public final class NeutralPayloadFilter extends TokenFilter {
+
+    public static final float NEUTRAL = 1.0F;
+
+    private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
+    private final PayloadFormat format;
+    private final float tolerance;
+
+    /**
+     * @param format format the payloads are encoded in
+     * @param tolerance largest distance from 1 that still counts as neutral
+     */
+    public NeutralPayloadFilter(TokenStream input, PayloadFormat format, float tolerance) {
+        super(input);
+        if (!(tolerance >= 0)) {
+            throw new IllegalArgumentException("tolerance must be >= 0, got " + tolerance);
+        }
+        this.format = format;
+        this.tolerance = tolerance;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (!input.incrementToken()) {
+            return false;
+        }
+        BytesRef payload = payloadAtt.getPayload();
+        if (payload != null && payload.length > 0 && Math.abs(format.decode(payload) - NEUTRAL) <= tolerance) {
+            payloadAtt.setPayload(null);
+        }
+        return true;
+    }
+}
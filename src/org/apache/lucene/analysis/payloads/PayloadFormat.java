@@ -0,0 +1,234 @@
+package org.apache.lucene.analysis.payloads;
+
+import java.util.Locale;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Encodes payload weights into bytes and decodes them back. Besides the 4 byte float of
+ * {@link PayloadHelper}, compact formats trade precision for smaller payload files:
+ * <ul>
+ * <li>{@link #BYTE}: one byte quantizing [0, scale] into 256 steps</li>
+ * <li>{@link #HALF_FLOAT}: two byte IEEE 754 half precision float</li>
+ * <li>{@link #VINT_FIXED}: fixed point vint holding <code>round(weight * scale)</code>,
+ * one byte for weights up to <code>127 / scale</code></li>
+ * </ul>
+ * The fixed size formats decode through lookup tables, without branches.
+ */
+public abstract class PayloadFormat {
+
+    public static final String FLOAT = "float";
+    public static final String BYTE = "byte";
+    public static final String HALF_FLOAT = "half_float";
+    public static final String VINT_FIXED = "vint_fixed";
+
+    /**
+     * Returns the format of the given name
+     *
+     * @param scale largest weight for {@link #BYTE}, weight of one unit for
+     *        {@link #VINT_FIXED}, ignored otherwise
+     */
+    public static PayloadFormat forName(String name, float scale) {
+        String lowercase = name.toLowerCase(Locale.ROOT);
+        if (FLOAT.equals(lowercase)) {
+            return FloatFormat.INSTANCE;
+        } else if (BYTE.equals(lowercase)) {
+            return new ByteFormat(scale);
+        } else if (HALF_FLOAT.equals(lowercase)) {
+            return HalfFloatFormat.INSTANCE;
+        } else if (VINT_FIXED.equals(lowercase)) {
+            return new VIntFixedFormat(scale);
+        }
+        throw new IllegalArgumentException("Unknown payload format [" + name + "]");
+    }
+
+    /** The 4 byte float format written by {@link FloatEncoder} */
+    public static PayloadFormat floats() {
+        return FloatFormat.INSTANCE;
+    }
+
+    public abstract float decode(byte[] bytes, int offset, int length);
+
+    public final float decode(BytesRef payload) {
+        return decode(payload.bytes, payload.offset, payload.length);
+    }
+
+    /** Encodes the given weight into <code>result</code>, growing its bytes if needed. */
+    public abstract void encode(float weight, BytesRef result);
+
+    public final BytesRef encode(float weight) {
+        BytesRef result = new BytesRef(5);
+        encode(weight, result);
+        return result;
+    }
+
+    static void ensureCapacity(BytesRef result, int length) {
+        if (result.bytes.length < length) {
+            result.bytes = new byte[length];
+        }
+        result.offset = 0;
+        result.length = length;
+    }
+
+    private static final class FloatFormat extends PayloadFormat {
+        static final FloatFormat INSTANCE = new FloatFormat();
+
+        @Override
+        public float decode(byte[] bytes, int offset, int length) {
+            return PayloadHelper.decodeFloat(bytes, offset);
+        }
+
+        @Override
+        public void encode(float weight, BytesRef result) {
+            ensureCapacity(result, 4);
+            PayloadHelper.encodeFloat(weight, result.bytes, 0);
+        }
+
+        @Override
+        public String toString() {
+            return FLOAT;
+        }
+    }
+
+    private static final class ByteFormat extends PayloadFormat {
+        private final float scale;
+        private final float[] table = new float[256];
+
+        ByteFormat(float scale) {
+            if (!(scale > 0)) {
+                throw new IllegalArgumentException("scale must be > 0 for the " + BYTE + " payload format, got " + scale);
+            }
+            this.scale = scale;
+            for (int i = 0; i < table.length; i++) {
+                table[i] = i * scale / 255;
+            }
+        }
+
+        @Override
+        public float decode(byte[] bytes, int offset, int length) {
+            return table[bytes[offset] & 0xFF];
+        }
+
+        @Override
+        public void encode(float weight, BytesRef result) {
+            ensureCapacity(result, 1);
+            int quantized = Math.round(weight / scale * 255);
+            result.bytes[0] = (byte) Math.max(0, Math.min(255, quantized));
+        }
+
+        @Override
+        public String toString() {
+            return BYTE + "(" + scale + ")";
+        }
+    }
+
+    private static final class HalfFloatFormat extends PayloadFormat {
+        static final HalfFloatFormat INSTANCE = new HalfFloatFormat();
+
+        private final float[] table = new float[1 << 16];
+
+        HalfFloatFormat() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = halfToFloat(i);
+            }
+        }
+
+        private static float halfToFloat(int half) {
+            final int sign = (half >>> 15) & 0x1;
+            final int exponent = (half >>> 10) & 0x1F;
+            final int mantissa = half & 0x3FF;
+            final float magnitude;
+            if (exponent == 0) {
+                magnitude = mantissa * (float) Math.pow(2, -24);
+            } else if (exponent == 0x1F) {
+                magnitude = mantissa == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+            } else {
+                magnitude = Float.intBitsToFloat(((exponent - 15 + 127) << 23) | (mantissa << 13));
+            }
+            return sign == 0 ? magnitude : -magnitude;
+        }
+
+        private static int floatToHalf(float value) {
+            final int bits = Float.floatToIntBits(value);
+            final int sign = (bits >>> 16) & 0x8000;
+            if (value != value) {
+                return sign | 0x7E00;
+            }
+            final float abs = Math.abs(value);
+            if (abs >= 65520f) {
+                // rounds to infinity in half precision
+                return sign | 0x7C00;
+            }
+            if (abs < (float) Math.pow(2, -14)) {
+                // subnormal, round to the nearest multiple of 2^-24
+                return sign | Math.round(abs * (float) Math.pow(2, 24));
+            }
+            final int absBits = bits & 0x7FFFFFFF;
+            // round to nearest even on the 13 dropped mantissa bits
+            final int rounded = absBits + 0xFFF + ((absBits >>> 13) & 1);
+            return sign | (((rounded >>> 23) - 127 + 15) << 10) | ((rounded >>> 13) & 0x3FF);
+        }
+
+        @Override
+        public float decode(byte[] bytes, int offset, int length) {
+            return table[((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF)];
+        }
+
+        @Override
+        public void encode(float weight, BytesRef result) {
+            ensureCapacity(result, 2);
+            final int half = floatToHalf(weight);
+            result.bytes[0] = (byte) (half >>> 8);
+            result.bytes[1] = (byte) half;
+        }
+
+        @Override
+        public String toString() {
+            return HALF_FLOAT;
+        }
+    }
+
+    private static final class VIntFixedFormat extends PayloadFormat {
+        private final float scale;
+        private final float inverse;
+
+        VIntFixedFormat(float scale) {
+            if (!(scale > 0)) {
+                throw new IllegalArgumentException("scale must be > 0 for the " + VINT_FIXED + " payload format, got " + scale);
+            }
+            this.scale = scale;
+            this.inverse = 1 / scale;
+        }
+
+        @Override
+        public float decode(byte[] bytes, int offset, int length) {
+            int value = 0;
+            for (int shift = 0, i = offset; ; shift += 7, i++) {
+                final byte b = bytes[i];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            return value * inverse;
+        }
+
+        @Override
+        public void encode(float weight, BytesRef result) {
+            ensureCapacity(result, 5);
+            int value = Math.max(0, Math.round(weight * scale));
+            int length = 0;
+            while ((value & ~0x7F) != 0) {
+                result.bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            result.bytes[length++] = (byte) value;
+            result.length = length;
+        }
+
+        @Override
+        public String toString() {
+            return VINT_FIXED + "(" + scale + ")";
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.apache.lucene.analysis.payloads;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Re-encodes payload weights from one {@link PayloadFormat} into another, typically the 4
+ * byte floats produced by a {@link DelimitedPayloadTokenFilter} with a {@link FloatEncoder}
+ * into one of the compact formats. Tokens without a payload are left alone.
+ */
+public final class PayloadFormatTokenFilter extends TokenFilter {
+
+    private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
+    private final PayloadFormat source;
+    private final PayloadFormat target;
+
+    public PayloadFormatTokenFilter(TokenStream input, PayloadFormat source, PayloadFormat target) {
+        super(input);
+        this.source = source;
+        this.target = target;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (!input.incrementToken()) {
+            return false;
+        }
+        BytesRef payload = payloadAtt.getPayload();
+        if (payload != null && payload.length > 0) {
+            // the attribute may share its bytes with the next token, always encode into new ones
+            payloadAtt.setPayload(target.encode(source.decode(payload)));
+        }
+        return true;
+    }
+}
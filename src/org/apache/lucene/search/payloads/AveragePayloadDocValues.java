@@ -0,0 +1,195 @@
+package org.apache.lucene.search.payloads;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.payloads.PayloadFormat;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Per-document sidecar holding the average payload of every term of a field, so that
+ * {@link AveragePayloadTermQuery} can score with freqs-only postings.
+ *
+ * The value of a document is laid out as
+ * <code>[count][offset of entry 0] ... [offset of entry count-1][entry 0] ...</code>
+ * where count and offsets are 4 byte ints and an entry is a vint term length, the term
+ * bytes and the average payload as a 4 byte float. Entries are sorted by term so that
+ * lookups are a binary search.
+ */
+public final class AveragePayloadDocValues {
+
+    /** Suffix appended to a field name to get the name of its sidecar doc values field. */
+    public static final String FIELD_SUFFIX = "__payload_avg";
+
+    private AveragePayloadDocValues() {
+    }
+
+    public static String sidecarField(String field) {
+        return field + FIELD_SUFFIX;
+    }
+
+    /**
+     * Looks up the average payload of <code>term</code> in an encoded document value.
+     *
+     * @return the average payload, or <code>missing</code> if the document has no entry
+     */
+    public static float lookup(BytesRef value, BytesRef term, float missing) {
+        if (value == null || value.length == 0) {
+            return missing;
+        }
+        final byte[] bytes = value.bytes;
+        final int base = value.offset;
+        int lo = 0;
+        int hi = readInt(bytes, base) - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            int pos = base + readInt(bytes, base + 4 + 4 * mid);
+            // inline vint decoding, terms are short
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                final byte b = bytes[pos++];
+                length |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            final int cmp = compare(bytes, pos, length, term);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return Float.intBitsToFloat(readInt(bytes, pos + length));
+            }
+        }
+        return missing;
+    }
+
+    private static int compare(byte[] bytes, int offset, int length, BytesRef term) {
+        final int limit = Math.min(length, term.length);
+        for (int i = 0; i < limit; i++) {
+            final int diff = (bytes[offset + i] & 0xFF) - (term.bytes[term.offset + i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - term.length;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Accumulates the payloads of one document's token streams for a field. Averages are
+     * taken the same way {@link AveragePayloadFunction} sees them when scoring a
+     * {@link PayloadTermQuery}: positions without a payload are not counted, and a term
+     * that never carries a payload gets a factor of 1.
+     */
+    public static final class Builder {
+        private final String field;
+        private final PayloadFormat format;
+        private final boolean missingNeutral;
+        private final TreeMap<BytesRef, Average> sums = new TreeMap<>();
+
+        public Builder(String field) {
+            this(field, PayloadFormat.floats());
+        }
+
+        /**
+         * @param format the format payloads are encoded in, as configured on the similarity
+         */
+        public Builder(String field, PayloadFormat format) {
+            this(field, format, false);
+        }
+
+        /**
+         * @param format the format payloads are encoded in, as configured on the similarity
+         * @param missingNeutral whether tokens without a payload count as a payload of 1, as
+         *                       configured on the similarity
+         */
+        public Builder(String field, PayloadFormat format, boolean missingNeutral) {
+            this.field = field;
+            this.format = format;
+            this.missingNeutral = missingNeutral;
+        }
+
+        /**
+         * Consumes the given token stream. The stream is reset, consumed, ended and closed.
+         */
+        public Builder add(TokenStream stream) throws IOException {
+            try {
+                TermToBytesRefAttribute termAtt = stream.getAttribute(TermToBytesRefAttribute.class);
+                PayloadAttribute payloadAtt = stream.addAttribute(PayloadAttribute.class);
+                BytesRef termBytes = termAtt.getBytesRef();
+                stream.reset();
+                while (stream.incrementToken()) {
+                    termAtt.fillBytesRef();
+                    Average average = sums.get(termBytes);
+                    if (average == null) {
+                        average = new Average();
+                        sums.put(BytesRef.deepCopyOf(termBytes), average);
+                    }
+                    BytesRef payload = payloadAtt.getPayload();
+                    if (payload != null && payload.length > 0) {
+                        average.sum += format.decode(payload);
+                        average.count++;
+                    } else if (missingNeutral) {
+                        average.sum += 1.0F;
+                        average.count++;
+                    }
+                }
+                stream.end();
+            } finally {
+                stream.close();
+            }
+            return this;
+        }
+
+        public BytesRef encode() {
+            int size = 4 + 4 * sums.size();
+            for (BytesRef term : sums.keySet()) {
+                size += 5 + term.length + 4;
+            }
+            byte[] bytes = new byte[size];
+            ByteArrayDataOutput out = new ByteArrayDataOutput(bytes);
+            ByteArrayDataOutput offsets = new ByteArrayDataOutput(bytes, 4, 4 * sums.size());
+            try {
+                out.writeInt(sums.size());
+                out.setPosition(4 + 4 * sums.size());
+                for (Map.Entry<BytesRef, Average> entry : sums.entrySet()) {
+                    offsets.writeInt(out.getPosition());
+                    BytesRef term = entry.getKey();
+                    out.writeVInt(term.length);
+                    out.writeBytes(term.bytes, term.offset, term.length);
+                    out.writeInt(Float.floatToIntBits(entry.getValue().value()));
+                }
+            } catch (IOException e) {
+                // ByteArrayDataOutput does not throw
+                throw new RuntimeException(e);
+            }
+            return new BytesRef(bytes, 0, out.getPosition());
+        }
+
+        public BinaryDocValuesField build() {
+            return new BinaryDocValuesField(sidecarField(field), encode());
+        }
+    }
+
+    /** Sums in float, in position order, exactly like {@link AveragePayloadFunction}. */
+    private static final class Average {
+        float sum;
+        int count;
+
+        float value() {
+            return count > 0 ? sum / count : 1.0F;
+        }
+    }
+}
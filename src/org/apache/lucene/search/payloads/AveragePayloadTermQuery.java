@@ -0,0 +1,209 @@
+package org.apache.lucene.search.payloads;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.ComplexExplanation;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.ToStringUtils;
+
+/**
+ * Scores a term like a {@link PayloadTermQuery} with an {@link AveragePayloadFunction},
+ * but reads the per-document average payload from the sidecar doc values field written
+ * by {@link AveragePayloadDocValues} instead of from the positions. Only freqs are read
+ * from the postings.
+ *
+ * Documents without a sidecar entry for the term get a payload factor of 1, the same
+ * factor a {@link PayloadTermQuery} uses when no payloads were seen.
+ */
+public class AveragePayloadTermQuery extends Query {
+
+    protected final Term term;
+
+    public AveragePayloadTermQuery(Term term) {
+        this.term = term;
+    }
+
+    public Term getTerm() {
+        return term;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher) throws IOException {
+        return new AveragePayloadTermWeight(searcher);
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+        terms.add(term);
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("payloadAvg(");
+        if (!term.field().equals(field)) {
+            buffer.append(term.field()).append(':');
+        }
+        buffer.append(term.text()).append(')');
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * super.hashCode() + term.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!super.equals(obj)) {
+            return false;
+        }
+        return term.equals(((AveragePayloadTermQuery) obj).term);
+    }
+
+    protected class AveragePayloadTermWeight extends Weight {
+        private final Similarity similarity;
+        private final Similarity.SimWeight stats;
+        private final TermContext termStates;
+
+        public AveragePayloadTermWeight(IndexSearcher searcher) throws IOException {
+            IndexReaderContext context = searcher.getTopReaderContext();
+            this.similarity = searcher.getSimilarity();
+            this.termStates = TermContext.build(context, term);
+            this.stats = similarity.computeWeight(getBoost(),
+                    searcher.collectionStatistics(term.field()),
+                    searcher.termStatistics(term, termStates));
+        }
+
+        @Override
+        public Query getQuery() {
+            return AveragePayloadTermQuery.this;
+        }
+
+        @Override
+        public float getValueForNormalization() {
+            return stats.getValueForNormalization();
+        }
+
+        @Override
+        public void normalize(float queryNorm, float topLevelBoost) {
+            stats.normalize(queryNorm, topLevelBoost);
+        }
+
+        @Override
+        public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            TermState state = termStates.get(context.ord);
+            if (state == null) {
+                return null;
+            }
+            Terms terms = context.reader().terms(term.field());
+            if (terms == null) {
+                return null;
+            }
+            TermsEnum termsEnum = terms.iterator(null);
+            termsEnum.seekExact(term.bytes(), state);
+            DocsEnum docs = termsEnum.docs(acceptDocs, null, DocsEnum.FLAG_FREQS);
+            BinaryDocValues averages = context.reader().getBinaryDocValues(
+                    AveragePayloadDocValues.sidecarField(term.field()));
+            return new AveragePayloadTermScorer(this, docs, averages, similarity.simScorer(stats, context));
+        }
+
+        @Override
+        public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
+            AveragePayloadTermScorer scorer = (AveragePayloadTermScorer) scorer(context, context.reader().getLiveDocs());
+            if (scorer != null && scorer.advance(doc) == doc) {
+                ComplexExplanation result = new ComplexExplanation();
+                result.setDescription("weight(" + getQuery() + " in " + doc + ") ["
+                        + similarity.getClass().getSimpleName() + "], result of:");
+                Explanation freq = new Explanation(scorer.sloppyFreq(), "phraseFreq=" + scorer.sloppyFreq());
+                Explanation termExpl = scorer.docScorer.explain(doc, freq);
+                result.addDetail(termExpl);
+                Explanation payloadExpl = new Explanation(scorer.payloadFactor(),
+                        "AveragePayloadFunction.docScore() from " + AveragePayloadDocValues.sidecarField(term.field()));
+                result.addDetail(payloadExpl);
+                result.setValue(termExpl.getValue() * payloadExpl.getValue());
+                result.setMatch(true);
+                return result;
+            }
+            return new ComplexExplanation(false, 0.0f, "no matching term");
+        }
+    }
+
+    protected class AveragePayloadTermScorer extends Scorer {
+        private final DocsEnum docs;
+        private final BinaryDocValues averages;
+        final Similarity.SimScorer docScorer;
+        private final float slopFactor;
+
+        protected AveragePayloadTermScorer(Weight weight, DocsEnum docs, BinaryDocValues averages,
+                Similarity.SimScorer docScorer) {
+            super(weight);
+            this.docs = docs;
+            this.averages = averages;
+            this.docScorer = docScorer;
+            // a term span contributes the slop factor of a match of length 1 per occurrence
+            this.slopFactor = docScorer.computeSlopFactor(1);
+        }
+
+        float sloppyFreq() throws IOException {
+            return docs.freq() * slopFactor;
+        }
+
+        float payloadFactor() {
+            if (averages == null) {
+                return 1.0F;
+            }
+            return AveragePayloadDocValues.lookup(averages.get(docs.docID()), term.bytes(), 1.0F);
+        }
+
+        @Override
+        public float score() throws IOException {
+            return docScorer.score(docs.docID(), sloppyFreq()) * payloadFactor();
+        }
+
+        @Override
+        public int freq() throws IOException {
+            return docs.freq();
+        }
+
+        @Override
+        public int docID() {
+            return docs.docID();
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return docs.nextDoc();
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            return docs.advance(target);
+        }
+
+        @Override
+        public long cost() {
+            return docs.cost();
+        }
+    }
+}
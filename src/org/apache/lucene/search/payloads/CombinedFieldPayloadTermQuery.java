@@ -0,0 +1,375 @@
+package org.apache.lucene.search.payloads;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.ComplexExplanation;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.ArticlePayloadIBSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.ToStringUtils;
+
+/**
+ * Scores a term over several weighted fields as if they were one field, in the spirit of
+ * BM25F: the frequency of the term and the length of the document are the weighted sums
+ * over the fields, and the IB statistics are built from the weighted field statistics. A
+ * single {@link ArticlePayloadIBSimilarity} score is computed per document instead of one
+ * per field.
+ *
+ * The payload factor is the mean of the per-field results of the {@link PayloadFunction},
+ * weighted by the weighted frequency of the term in each field. For the average function
+ * this is the weighted average of all payloads of the term in the document.
+ *
+ * Fields are scored with the similarity of the first field; if that is not an
+ * {@link ArticlePayloadIBSimilarity} the query scores like a disjunction of
+ * {@link PayloadTermQuery} clauses, one per field.
+ */
+public class CombinedFieldPayloadTermQuery extends Query {
+
+    private final BytesRef bytes;
+    private final TreeMap<String, Float> fieldWeights;
+    private final PayloadFunction function;
+
+    public CombinedFieldPayloadTermQuery(BytesRef bytes, Map<String, Float> fieldWeights, PayloadFunction function) {
+        if (fieldWeights.isEmpty()) {
+            throw new IllegalArgumentException("at least one field is required");
+        }
+        for (Map.Entry<String, Float> entry : fieldWeights.entrySet()) {
+            if (!(entry.getValue() > 0)) {
+                throw new IllegalArgumentException("weight of field [" + entry.getKey() + "] must be > 0, got "
+                        + entry.getValue());
+            }
+        }
+        this.bytes = BytesRef.deepCopyOf(bytes);
+        this.fieldWeights = new TreeMap<>(fieldWeights);
+        this.function = function;
+    }
+
+    public BytesRef getBytes() {
+        return bytes;
+    }
+
+    public Map<String, Float> getFieldWeights() {
+        return fieldWeights;
+    }
+
+    public PayloadFunction getFunction() {
+        return function;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher) throws IOException {
+        final ArticlePayloadIBSimilarity similarity = ArticlePayloadIBSimilarity.forField(searcher.getSimilarity(),
+                fieldWeights.firstKey());
+        if (similarity == null) {
+            return perFieldQuery().createWeight(searcher);
+        }
+        return new CombinedFieldWeight(searcher, similarity);
+    }
+
+    private Query perFieldQuery() {
+        final BooleanQuery bq = new BooleanQuery(true);
+        for (Map.Entry<String, Float> entry : fieldWeights.entrySet()) {
+            final PayloadTermQuery q = new SparsePayloadTermQuery(new Term(entry.getKey(), bytes), function, true);
+            q.setBoost(entry.getValue());
+            bq.add(q, BooleanClause.Occur.SHOULD);
+        }
+        bq.setBoost(getBoost());
+        return bq;
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+        for (String field : fieldWeights.keySet()) {
+            terms.add(new Term(field, bytes));
+        }
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("combinedPayload(");
+        boolean first = true;
+        for (Map.Entry<String, Float> entry : fieldWeights.entrySet()) {
+            if (!first) {
+                buffer.append(' ');
+            }
+            first = false;
+            buffer.append(entry.getKey()).append(ToStringUtils.boost(entry.getValue()));
+        }
+        buffer.append(':').append(bytes.utf8ToString()).append(')');
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 31 * super.hashCode() + bytes.hashCode();
+        result = 31 * result + fieldWeights.hashCode();
+        return 31 * result + function.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!super.equals(obj)) {
+            return false;
+        }
+        CombinedFieldPayloadTermQuery other = (CombinedFieldPayloadTermQuery) obj;
+        return bytes.equals(other.bytes) && fieldWeights.equals(other.fieldWeights) && function.equals(other.function);
+    }
+
+    final class CombinedFieldWeight extends Weight {
+        private final ArticlePayloadIBSimilarity similarity;
+        private final String[] fields;
+        private final float[] weights;
+        private final TermContext[] termStates;
+        private final Similarity.SimWeight stats;
+
+        CombinedFieldWeight(IndexSearcher searcher, ArticlePayloadIBSimilarity similarity) throws IOException {
+            this.similarity = similarity;
+            final IndexReaderContext context = searcher.getTopReaderContext();
+            final int numFields = fieldWeights.size();
+            fields = new String[numFields];
+            weights = new float[numFields];
+            termStates = new TermContext[numFields];
+            long docCount = 0;
+            double sumTotalTermFreq = 0;
+            long sumDocFreq = 0;
+            long docFreq = 0;
+            double totalTermFreq = 0;
+            int i = 0;
+            for (Map.Entry<String, Float> entry : fieldWeights.entrySet()) {
+                fields[i] = entry.getKey();
+                weights[i] = entry.getValue();
+                final Term term = new Term(fields[i], bytes);
+                termStates[i] = TermContext.build(context, term);
+                final CollectionStatistics fieldStats = searcher.collectionStatistics(fields[i]);
+                final TermStatistics termStats = searcher.termStatistics(term, termStates[i]);
+                // a document counts once for the virtual field, however many fields it has
+                docCount = Math.max(docCount, fieldStats.docCount());
+                docFreq = Math.max(docFreq, termStats.docFreq());
+                sumTotalTermFreq = combine(sumTotalTermFreq, fieldStats.sumTotalTermFreq(), weights[i]);
+                totalTermFreq = combine(totalTermFreq, termStats.totalTermFreq(), weights[i]);
+                sumDocFreq = sumDocFreq == -1 || fieldStats.sumDocFreq() == -1 ? -1 : sumDocFreq + fieldStats.sumDocFreq();
+                i++;
+            }
+            final CollectionStatistics combinedStats = new CollectionStatistics(fields[0], searcher.getIndexReader().maxDoc(),
+                    docCount, (long) Math.ceil(sumTotalTermFreq), sumDocFreq);
+            final TermStatistics combinedTermStats = new TermStatistics(bytes, docFreq, (long) Math.ceil(totalTermFreq));
+            this.stats = similarity.computeWeight(getBoost(), combinedStats, combinedTermStats);
+        }
+
+        private double combine(double sum, long value, float weight) {
+            return sum == -1 || value == -1 ? -1 : sum + weight * value;
+        }
+
+        @Override
+        public Query getQuery() {
+            return CombinedFieldPayloadTermQuery.this;
+        }
+
+        @Override
+        public float getValueForNormalization() {
+            return stats.getValueForNormalization();
+        }
+
+        @Override
+        public void normalize(float queryNorm, float topLevelBoost) {
+            stats.normalize(queryNorm, topLevelBoost);
+        }
+
+        @Override
+        public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            final List<FieldPostings> postings = new ArrayList<>(fields.length);
+            final NumericDocValues[] norms = new NumericDocValues[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                norms[i] = context.reader().getNormValues(fields[i]);
+                final TermState state = termStates[i].get(context.ord);
+                if (state == null) {
+                    continue;
+                }
+                final Terms terms = context.reader().terms(fields[i]);
+                if (terms == null) {
+                    continue;
+                }
+                final TermsEnum termsEnum = terms.iterator(null);
+                termsEnum.seekExact(bytes, state);
+                final DocsAndPositionsEnum docs = termsEnum.docsAndPositions(acceptDocs, null,
+                        DocsAndPositionsEnum.FLAG_PAYLOADS);
+                if (docs != null) {
+                    postings.add(new FieldPostings(fields[i], weights[i], docs));
+                }
+            }
+            if (postings.isEmpty()) {
+                return null;
+            }
+            return new CombinedFieldScorer(this, postings.toArray(new FieldPostings[postings.size()]), norms,
+                    similarity.simScorer(stats, context));
+        }
+
+        @Override
+        public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
+            final CombinedFieldScorer scorer = (CombinedFieldScorer) scorer(context, context.reader().getLiveDocs());
+            if (scorer != null && scorer.advance(doc) == doc) {
+                scorer.score();
+                final ComplexExplanation result = new ComplexExplanation();
+                result.setDescription("weight(" + getQuery() + " in " + doc + ") ["
+                        + similarity.getClass().getSimpleName() + "], result of:");
+                final Explanation freq = new Explanation(scorer.sloppyFreq, "combinedPhraseFreq=" + scorer.sloppyFreq);
+                final Explanation termExpl = similarity.explainDocScore(stats, doc, freq, scorer.docLen);
+                result.addDetail(termExpl);
+                final Explanation payloadExpl = new Explanation(scorer.payloadFactor,
+                        function.getClass().getSimpleName() + ".docScore(), weighted mean over fields");
+                result.addDetail(payloadExpl);
+                result.setValue(termExpl.getValue() * payloadExpl.getValue());
+                result.setMatch(true);
+                return result;
+            }
+            return new ComplexExplanation(false, 0.0f, "no matching term");
+        }
+    }
+
+    private static final class FieldPostings {
+        final String field;
+        final float weight;
+        final DocsAndPositionsEnum docs;
+
+        FieldPostings(String field, float weight, DocsAndPositionsEnum docs) {
+            this.field = field;
+            this.weight = weight;
+            this.docs = docs;
+        }
+    }
+
+    final class CombinedFieldScorer extends Scorer {
+        private final FieldPostings[] postings;
+        private final NumericDocValues[] norms;
+        private final Similarity.SimScorer docScorer;
+        private final ArticlePayloadIBSimilarity similarity;
+        private final Similarity.SimWeight stats;
+        private final float[] weights;
+        private final float slopFactor;
+        private int doc = -1;
+        // payloads are read from the positions, which can only be consumed once per document
+        private int scoredDoc = -1;
+        private float score;
+        // inputs of the last score, kept for explain
+        float sloppyFreq;
+        float docLen;
+        float payloadFactor;
+
+        CombinedFieldScorer(CombinedFieldWeight weight, FieldPostings[] postings, NumericDocValues[] norms,
+                Similarity.SimScorer docScorer) {
+            super(weight);
+            this.postings = postings;
+            this.norms = norms;
+            this.docScorer = docScorer;
+            this.similarity = weight.similarity;
+            this.stats = weight.stats;
+            this.weights = weight.weights;
+            // a term span contributes the slop factor of a match of length 1 per occurrence
+            this.slopFactor = docScorer.computeSlopFactor(1);
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return advance(doc + 1);
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            // a handful of fields, a linear scan beats maintaining a queue
+            int min = DocIdSetIterator.NO_MORE_DOCS;
+            for (FieldPostings field : postings) {
+                int current = field.docs.docID();
+                if (current < target) {
+                    current = field.docs.advance(target);
+                }
+                min = Math.min(min, current);
+            }
+            return doc = min;
+        }
+
+        @Override
+        public float score() throws IOException {
+            if (scoredDoc == doc) {
+                return score;
+            }
+            scoredDoc = doc;
+            float freq = 0;
+            float payloadSum = 0;
+            for (FieldPostings field : postings) {
+                if (field.docs.docID() == doc) {
+                    final float weightedFreq = field.weight * field.docs.freq();
+                    freq += weightedFreq;
+                    payloadSum += weightedFreq
+                            * PayloadScores.payloadScore(doc, field.field, field.docs, function, docScorer,
+                                    similarity.isMissingPayloadsNeutral());
+                }
+            }
+            float length = 0;
+            for (int i = 0; i < norms.length; i++) {
+                if (norms[i] != null) {
+                    length += weights[i] * similarity.docLength(norms[i], doc);
+                }
+            }
+            sloppyFreq = freq * slopFactor;
+            docLen = length == 0 ? 1F : length;
+            payloadFactor = payloadSum / freq;
+            score = similarity.docScore(stats, sloppyFreq, docLen) * payloadFactor;
+            return score;
+        }
+
+        @Override
+        public int freq() throws IOException {
+            int freq = 0;
+            for (FieldPostings field : postings) {
+                if (field.docs.docID() == doc) {
+                    freq += field.docs.freq();
+                }
+            }
+            return freq;
+        }
+
+        @Override
+        public long cost() {
+            long cost = 0;
+            for (FieldPostings field : postings) {
+                cost += field.docs.cost();
+            }
+            return cost;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.apache.lucene.search.payloads;
+
+import org.apache.lucene.search.Explanation;
+
+/**
+ * Scores a document with the payload of the first position that has one. If no payloads
+ * are seen, the document gets a payload score of 1.
+ */
+public class FirstPayloadFunction extends PayloadFunction {
+
+    @Override
+    public float currentScore(int docId, String field, int start, int end, int numPayloadsSeen,
+            float currentScore, float currentPayloadScore) {
+        return numPayloadsSeen == 0 ? currentPayloadScore : currentScore;
+    }
+
+    @Override
+    public float docScore(int docId, String field, int numPayloadsSeen, float payloadScore) {
+        return numPayloadsSeen > 0 ? payloadScore : 1;
+    }
+
+    @Override
+    public Explanation explain(int doc, String field, int numPayloadsSeen, float payloadScore) {
+        Explanation expl = new Explanation();
+        float firstPayloadScore = numPayloadsSeen > 0 ? payloadScore : 1;
+        expl.setValue(firstPayloadScore);
+        expl.setDescription("FirstPayloadFunction.docScore()");
+        return expl;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + this.getClass().hashCode();
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        return getClass() == obj.getClass();
+    }
+}
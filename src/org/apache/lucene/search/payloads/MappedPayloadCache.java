@@ -0,0 +1,425 @@
+package org.apache.lucene.search.payloads;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.FilterAtomicReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Off-heap cache of decoded per-document average payloads, one entry per segment core
+ * and term. Entries are written once into their own memory-mapped file and hold the doc
+ * ids, freqs and average payload factors of every posting of the term, so that
+ * {@link MappedPayloadTermQuery} can score a cached term without reading or decoding
+ * positions and payloads.
+ *
+ * Entries are built for all documents of a segment core; deletions are applied when
+ * scoring. The cache is bounded by the total size of its mapped files and evicts the
+ * least recently used entries first. All entries of a segment are dropped as soon as
+ * its core is closed, e.g. after the segment was merged away. The file of a dropped entry
+ * is deleted right away and unmapped once the last scorer reading it has released it,
+ * or when it is garbage collected if a scorer was abandoned before it was exhausted.
+ *
+ * Every cache writes into a subdirectory of its own, locked while the process lives, and
+ * deletes the subdirectories of caches whose process has died when it is created.
+ */
+public class MappedPayloadCache implements SegmentReader.CoreClosedListener {
+
+    private static final String DIRECTORY_PREFIX = "cache-";
+    private static final String LOCK_NAME = "cache.lock";
+    /** Whether unmapping failed once, which is only logged the first time */
+    private static final AtomicBoolean UNMAP_FAILED = new AtomicBoolean();
+
+    private final File directory;
+    // held until the process exits, marks the directory as in use
+    private final FileLock lock;
+    private final long maxBytes;
+    private final int minDocFreq;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Object, Set<Key>> keysByCore = new HashMap<>();
+    private final AtomicLong fileCounter = new AtomicLong();
+    private long bytes;
+
+    /**
+     * @param directory directory the subdirectory with the mapped files is created in
+     * @param maxBytes upper bound for the summed size of all cached entries
+     * @param minDocFreq terms with fewer postings in a segment are not worth caching
+     */
+    public MappedPayloadCache(File directory, long maxBytes, int minDocFreq) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create payload cache directory [" + directory + "]");
+        }
+        this.directory = Files.createTempDirectory(directory.toPath(), DIRECTORY_PREFIX).toFile();
+        final FileChannel channel = FileChannel.open(new File(this.directory, LOCK_NAME).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.lock = channel.tryLock();
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Unable to lock payload cache directory [" + this.directory + "]");
+        }
+        this.maxBytes = maxBytes;
+        this.minDocFreq = minDocFreq;
+        deleteStale(directory);
+    }
+
+    /**
+     * Deletes the subdirectories of caches whose lock is not held anymore, i.e. that were
+     * left behind by a process that did not shut down cleanly
+     */
+    private void deleteStale(File parent) throws IOException {
+        final File[] children = parent.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            final File lockFile = new File(child, LOCK_NAME);
+            if (child.equals(directory) || !child.getName().startsWith(DIRECTORY_PREFIX) || !lockFile.isFile()) {
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.WRITE)) {
+                final FileLock staleLock = channel.tryLock();
+                if (staleLock == null) {
+                    continue; // another process is using it
+                }
+                try {
+                    for (File file : child.listFiles()) {
+                        if (!file.getName().equals(LOCK_NAME)) {
+                            Files.deleteIfExists(file.toPath());
+                        }
+                    }
+                } finally {
+                    staleLock.release();
+                }
+            } catch (OverlappingFileLockException e) {
+                continue; // another cache of this process is using it
+            }
+            Files.deleteIfExists(lockFile.toPath());
+            Files.deleteIfExists(child.toPath());
+        }
+    }
+
+    /**
+     * Returns the cached entry for the given term of a segment, building it from the
+     * postings if the term qualifies for caching, or <code>null</code> if it does not.
+     * The caller must {@link Entry#decRef()} the entry once it does not read it anymore.
+     *
+     * @param termsEnum a terms enum of the segment already positioned on the term
+     * @param docScorer scorer used to turn payloads into payload factors
+     */
+    public Entry get(AtomicReader reader, Term term, TermsEnum termsEnum, Similarity.SimScorer docScorer,
+            boolean missingNeutral) throws IOException {
+        final SegmentReader segmentReader = segmentReader(reader);
+        if (segmentReader == null || termsEnum.docFreq() < minDocFreq) {
+            return null;
+        }
+        final Key key = new Key(segmentReader.getCoreCacheKey(), term);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                entry.incRef();
+                return entry;
+            }
+        }
+        final long size = Entry.sizeInBytes(termsEnum.docFreq());
+        if (size > maxBytes) {
+            return null;
+        }
+        Entry entry = build(termsEnum, docScorer, missingNeutral, size);
+        final List<Entry> evicted = new ArrayList<>();
+        synchronized (this) {
+            Entry existing = entries.get(key);
+            if (existing != null) {
+                // another thread won the race
+                evicted.add(entry);
+                entry = existing;
+                entry.incRef();
+            } else {
+                Set<Key> coreKeys = keysByCore.get(key.coreKey);
+                if (coreKeys == null) {
+                    coreKeys = new HashSet<>();
+                    keysByCore.put(key.coreKey, coreKeys);
+                    segmentReader.addCoreClosedListener(this);
+                }
+                coreKeys.add(key);
+                entries.put(key, entry);
+                // one reference for the cache, one for the caller
+                entry.incRef();
+                bytes += entry.size;
+                Iterator<Map.Entry<Key, Entry>> lru = entries.entrySet().iterator();
+                while (bytes > maxBytes && lru.hasNext()) {
+                    Map.Entry<Key, Entry> eldest = lru.next();
+                    if (eldest.getValue() == entry) {
+                        continue;
+                    }
+                    lru.remove();
+                    bytes -= eldest.getValue().size;
+                    keysByCore.get(eldest.getKey().coreKey).remove(eldest.getKey());
+                    evicted.add(eldest.getValue());
+                }
+            }
+        }
+        for (Entry e : evicted) {
+            e.evict();
+        }
+        return entry;
+    }
+
+    @Override
+    public void onClose(Object ownerCoreCacheKey) {
+        final List<Entry> evicted = new ArrayList<>();
+        synchronized (this) {
+            Set<Key> keys = keysByCore.remove(ownerCoreCacheKey);
+            if (keys == null) {
+                return;
+            }
+            for (Key key : keys) {
+                Entry entry = entries.remove(key);
+                if (entry != null) {
+                    bytes -= entry.size;
+                    evicted.add(entry);
+                }
+            }
+        }
+        for (Entry entry : evicted) {
+            entry.evict();
+        }
+    }
+
+    /** Drops all cached entries. */
+    public void clear() {
+        final List<Entry> evicted;
+        synchronized (this) {
+            evicted = new ArrayList<>(entries.values());
+            entries.clear();
+            keysByCore.clear();
+            bytes = 0;
+        }
+        for (Entry entry : evicted) {
+            entry.evict();
+        }
+    }
+
+    public synchronized int count() {
+        return entries.size();
+    }
+
+    public synchronized long sizeInBytes() {
+        return bytes;
+    }
+
+    private static SegmentReader segmentReader(AtomicReader reader) {
+        AtomicReader unwrapped = FilterAtomicReader.unwrap(reader);
+        return unwrapped instanceof SegmentReader ? (SegmentReader) unwrapped : null;
+    }
+
+    private Entry build(TermsEnum termsEnum, Similarity.SimScorer docScorer, boolean missingNeutral, long size)
+            throws IOException {
+        final int docFreq = termsEnum.docFreq();
+        final File file = new File(directory, "payloads-" + fileCounter.incrementAndGet() + ".bin");
+        MappedByteBuffer buffer = null;
+        boolean success = false;
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                // the mapping stays valid after the channel is closed
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            buffer.order(ByteOrder.nativeOrder());
+            final Entry entry = new Entry(file, buffer, docFreq, size);
+            // all docs of the core: deletions are filtered at search time
+            DocsAndPositionsEnum postings = termsEnum.docsAndPositions(null, null, DocsAndPositionsEnum.FLAG_PAYLOADS);
+            int i = 0;
+            if (postings != null) {
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    final int freq = postings.freq();
+                    entry.docs.put(i, doc);
+                    entry.freqs.put(i, freq);
+                    entry.factors.put(i, averagePayloadFactor(doc, postings, freq, docScorer, missingNeutral));
+                    i++;
+                }
+            }
+            entry.count = i;
+            success = true;
+            return entry;
+        } finally {
+            if (!success) {
+                if (buffer != null) {
+                    unmap(buffer);
+                }
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+
+    /**
+     * Unmaps the buffer right away instead of when it is garbage collected, the buffer and
+     * its views must not be read anymore
+     */
+    private static void unmap(final MappedByteBuffer buffer) {
+        try {
+            AccessController.doPrivileged(new PrivilegedExceptionAction<Void>() {
+                @Override
+                public Void run() throws Exception {
+                    final Method getCleaner = buffer.getClass().getMethod("cleaner");
+                    getCleaner.setAccessible(true);
+                    final Object cleaner = getCleaner.invoke(buffer);
+                    if (cleaner != null) {
+                        cleaner.getClass().getMethod("clean").invoke(cleaner);
+                    }
+                    return null;
+                }
+            });
+        } catch (PrivilegedActionException | RuntimeException e) {
+            // not supported or not accessible on this JVM, the mapping goes away with the buffer
+            if (UNMAP_FAILED.compareAndSet(false, true)) {
+                Logger.getLogger(MappedPayloadCache.class.getName()).log(Level.WARNING,
+                        "cannot unmap cached payload files, they are unmapped when garbage collected", e);
+            }
+        }
+    }
+
+    /**
+     * Averages the payload factors of the current document of the given postings the way
+     * {@link AveragePayloadFunction} does for a {@link PayloadTermQuery}, counting positions
+     * without a payload as a factor of 1 if <code>missingNeutral</code> is set.
+     */
+    static float averagePayloadFactor(int doc, DocsAndPositionsEnum postings, int freq,
+            Similarity.SimScorer docScorer, boolean missingNeutral) throws IOException {
+        float sum = 0;
+        int seen = 0;
+        for (int j = 0; j < freq; j++) {
+            final int position = postings.nextPosition();
+            final BytesRef payload = postings.getPayload();
+            if (payload != null || missingNeutral) {
+                sum += docScorer.computePayloadFactor(doc, position, position + 1, payload);
+                seen++;
+            }
+        }
+        return seen > 0 ? sum / seen : 1.0F;
+    }
+
+    /**
+     * A cached term of one segment core, unmapped once the cache and all scorers it was
+     * handed to have released it
+     */
+    public static final class Entry {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private final long size;
+        private final AtomicInteger refCount = new AtomicInteger(1);
+        final IntBuffer docs;
+        final IntBuffer freqs;
+        final FloatBuffer factors;
+        int count;
+
+        Entry(File file, MappedByteBuffer buffer, int capacity, long size) {
+            this.file = file;
+            this.buffer = buffer;
+            this.size = size;
+            this.docs = slice(buffer, 0, capacity).asIntBuffer();
+            this.freqs = slice(buffer, 4 * capacity, capacity).asIntBuffer();
+            this.factors = slice(buffer, 8 * capacity, capacity).asFloatBuffer();
+        }
+
+        static long sizeInBytes(int docFreq) {
+            return 12L * Math.max(docFreq, 1);
+        }
+
+        private static ByteBuffer slice(MappedByteBuffer buffer, int offset, int count) {
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position(offset);
+            duplicate.limit(offset + 4 * count);
+            return duplicate.slice().order(ByteOrder.nativeOrder());
+        }
+
+        public int count() {
+            return count;
+        }
+
+        void incRef() {
+            refCount.incrementAndGet();
+        }
+
+        /**
+         * Releases the reference of the cache, the file is unlinked while it may still be mapped
+         */
+        private void evict() {
+            file.delete();
+            decRef();
+        }
+
+        /**
+         * Releases a reference to the entry, it must not be read through that reference anymore
+         */
+        public void decRef() {
+            final int refs = refCount.decrementAndGet();
+            assert refs >= 0 : "entry released too often";
+            if (refs == 0) {
+                unmap(buffer);
+                // platforms that do not delete mapped files
+                if (file.exists() && !file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    private static final class Key {
+        final Object coreKey;
+        final Term term;
+
+        Key(Object coreKey, Term term) {
+            this.coreKey = coreKey;
+            this.term = term;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return coreKey == other.coreKey && term.equals(other.term);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(coreKey) + term.hashCode();
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package org.apache.lucene.search.payloads;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ComplexExplanation;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.ArticlePayloadIBSimilarity;
+import org.apache.lucene.search.similarities.BulkSimScorer;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.ToStringUtils;
+
+/**
+ * Scores a term like a {@link PayloadTermQuery} with an {@link AveragePayloadFunction},
+ * serving the per-document average payload factors from a {@link MappedPayloadCache}.
+ * Segments where the term is not cacheable are scored from the positions, with the same
+ * result.
+ */
+public class MappedPayloadTermQuery extends Query {
+
+    protected final Term term;
+    private final MappedPayloadCache cache;
+
+    public MappedPayloadTermQuery(Term term, MappedPayloadCache cache) {
+        this.term = term;
+        this.cache = cache;
+    }
+
+    public Term getTerm() {
+        return term;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher) throws IOException {
+        return new MappedPayloadTermWeight(searcher);
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+        terms.add(term);
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("payloadCached(");
+        if (!term.field().equals(field)) {
+            buffer.append(term.field()).append(':');
+        }
+        buffer.append(term.text()).append(')');
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * super.hashCode() + term.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!super.equals(obj)) {
+            return false;
+        }
+        MappedPayloadTermQuery other = (MappedPayloadTermQuery) obj;
+        return term.equals(other.term) && cache == other.cache;
+    }
+
+    protected class MappedPayloadTermWeight extends Weight {
+        private final Similarity similarity;
+        private final Similarity.SimWeight stats;
+        private final TermContext termStates;
+
+        public MappedPayloadTermWeight(IndexSearcher searcher) throws IOException {
+            this.similarity = searcher.getSimilarity();
+            this.termStates = TermContext.build(searcher.getTopReaderContext(), term);
+            this.stats = similarity.computeWeight(getBoost(),
+                    searcher.collectionStatistics(term.field()),
+                    searcher.termStatistics(term, termStates));
+        }
+
+        @Override
+        public Query getQuery() {
+            return MappedPayloadTermQuery.this;
+        }
+
+        @Override
+        public float getValueForNormalization() {
+            return stats.getValueForNormalization();
+        }
+
+        @Override
+        public void normalize(float queryNorm, float topLevelBoost) {
+            stats.normalize(queryNorm, topLevelBoost);
+        }
+
+        @Override
+        public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            TermState state = termStates.get(context.ord);
+            if (state == null) {
+                return null;
+            }
+            Terms terms = context.reader().terms(term.field());
+            if (terms == null) {
+                return null;
+            }
+            TermsEnum termsEnum = terms.iterator(null);
+            termsEnum.seekExact(term.bytes(), state);
+            Similarity.SimScorer docScorer = similarity.simScorer(stats, context);
+            boolean missingNeutral = ArticlePayloadIBSimilarity.missingPayloadsNeutral(similarity, term.field());
+            MappedPayloadCache.Entry entry = cache.get(context.reader(), term, termsEnum, docScorer, missingNeutral);
+            if (entry != null) {
+                return new CachedScorer(this, entry, acceptDocs, docScorer);
+            }
+            DocsAndPositionsEnum postings = termsEnum.docsAndPositions(acceptDocs, null, DocsAndPositionsEnum.FLAG_PAYLOADS);
+            if (postings == null) {
+                throw new IllegalStateException("field \"" + term.field()
+                        + "\" was indexed without position data; cannot run MappedPayloadTermQuery (term=" + term.text() + ")");
+            }
+            return new PostingsScorer(this, postings, docScorer, missingNeutral);
+        }
+
+        /**
+         * Scores the documents of a segment in blocks, see {@link BlockBulkScorer}, unless
+         * explanations are recorded, which happens per document
+         */
+        @Override
+        public BulkScorer bulkScorer(AtomicReaderContext context, boolean scoreDocsInOrder, Bits acceptDocs)
+                throws IOException {
+            if (ArticlePayloadIBSimilarity.isRecordingExplanations()) {
+                return super.bulkScorer(context, scoreDocsInOrder, acceptDocs);
+            }
+            final PayloadFactorScorer scorer = (PayloadFactorScorer) scorer(context, acceptDocs);
+            return scorer == null ? null : new BlockBulkScorer(scorer);
+        }
+
+        @Override
+        public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
+            PayloadFactorScorer scorer = (PayloadFactorScorer) scorer(context, context.reader().getLiveDocs());
+            try {
+                return explain(scorer, doc);
+            } finally {
+                if (scorer != null) {
+                    scorer.release();
+                }
+            }
+        }
+
+        private Explanation explain(PayloadFactorScorer scorer, int doc) throws IOException {
+            if (scorer != null && scorer.advance(doc) == doc) {
+                ComplexExplanation result = new ComplexExplanation();
+                result.setDescription("weight(" + getQuery() + " in " + doc + ") ["
+                        + similarity.getClass().getSimpleName() + "], result of:");
+                Explanation freq = new Explanation(scorer.sloppyFreq(), "phraseFreq=" + scorer.sloppyFreq());
+                Explanation termExpl = scorer.docScorer.explain(doc, freq);
+                result.addDetail(termExpl);
+                Explanation payloadExpl = new Explanation(scorer.payloadFactor(), "AveragePayloadFunction.docScore()");
+                result.addDetail(payloadExpl);
+                result.setValue(termExpl.getValue() * payloadExpl.getValue());
+                result.setMatch(true);
+                return result;
+            }
+            return new ComplexExplanation(false, 0.0f, "no matching term");
+        }
+    }
+
+    private abstract static class PayloadFactorScorer extends Scorer {
+        final Similarity.SimScorer docScorer;
+        // a term span contributes the slop factor of a match of length 1 per occurrence
+        private final float slopFactor;
+
+        PayloadFactorScorer(Weight weight, Similarity.SimScorer docScorer) {
+            super(weight);
+            this.docScorer = docScorer;
+            this.slopFactor = docScorer.computeSlopFactor(1);
+        }
+
+        float sloppyFreq() throws IOException {
+            return freq() * slopFactor;
+        }
+
+        abstract float payloadFactor() throws IOException;
+
+        /**
+         * Releases what the scorer holds before it is exhausted, e.g. after an explanation
+         */
+        void release() {
+        }
+
+        @Override
+        public float score() throws IOException {
+            // payloads first, so that they are reported along with the document's score
+            final float payloadFactor = payloadFactor();
+            return docScorer.score(docID(), sloppyFreq()) * payloadFactor;
+        }
+    }
+
+    /**
+     * Gathers up to {@link #BLOCK_SIZE} documents with their frequencies and payload factors,
+     * scores them with one {@link BulkSimScorer} call and then collects them, so the
+     * similarity reads the block's norms and score table cells in tight loops instead of
+     * once per collected document.
+     */
+    private static final class BlockBulkScorer extends BulkScorer {
+        static final int BLOCK_SIZE = 128;
+
+        private final PayloadFactorScorer scorer;
+        private final BulkSimScorer bulkScorer;
+        private final BlockScorer blockScorer;
+        private final int[] docs = new int[BLOCK_SIZE];
+        private final int[] freqs = new int[BLOCK_SIZE];
+        private final float[] sloppyFreqs = new float[BLOCK_SIZE];
+        private final float[] factors = new float[BLOCK_SIZE];
+        private final float[] scores = new float[BLOCK_SIZE];
+
+        BlockBulkScorer(PayloadFactorScorer scorer) {
+            this.scorer = scorer;
+            this.bulkScorer = ArticlePayloadIBSimilarity.bulkScorer(scorer.docScorer);
+            this.blockScorer = new BlockScorer(scorer.getWeight());
+        }
+
+        @Override
+        public boolean score(Collector collector, int max) throws IOException {
+            collector.setScorer(blockScorer);
+            int doc = scorer.docID();
+            if (doc == -1) {
+                doc = scorer.nextDoc();
+            }
+            while (doc < max) {
+                int count = 0;
+                while (count < BLOCK_SIZE && doc < max) {
+                    docs[count] = doc;
+                    freqs[count] = scorer.freq();
+                    sloppyFreqs[count] = scorer.sloppyFreq();
+                    factors[count] = scorer.payloadFactor();
+                    count++;
+                    doc = scorer.nextDoc();
+                }
+                bulkScorer.score(docs, sloppyFreqs, factors, scores, count);
+                for (int i = 0; i < count; i++) {
+                    blockScorer.doc = docs[i];
+                    blockScorer.freq = freqs[i];
+                    blockScorer.score = scores[i];
+                    collector.collect(docs[i]);
+                }
+            }
+            return doc != DocIdSetIterator.NO_MORE_DOCS;
+        }
+    }
+
+    /**
+     * Exposes the precomputed score of the document being collected
+     */
+    private static final class BlockScorer extends Scorer {
+        int doc = -1;
+        int freq;
+        float score;
+
+        BlockScorer(Weight weight) {
+            super(weight);
+        }
+
+        @Override
+        public float score() {
+            return score;
+        }
+
+        @Override
+        public int freq() {
+            return freq;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int advance(int target) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long cost() {
+            return 1;
+        }
+    }
+
+    private static final class CachedScorer extends PayloadFactorScorer {
+        private final MappedPayloadCache.Entry entry;
+        private final Bits acceptDocs;
+        private final int count;
+        private int index = -1;
+        private int doc = -1;
+
+        private final boolean recording;
+
+        CachedScorer(Weight weight, MappedPayloadCache.Entry entry, Bits acceptDocs, Similarity.SimScorer docScorer) {
+            super(weight, docScorer);
+            this.entry = entry;
+            this.count = entry.count();
+            this.acceptDocs = acceptDocs;
+            this.recording = ArticlePayloadIBSimilarity.isRecordingExplanations();
+        }
+
+        @Override
+        public float score() throws IOException {
+            if (recording) {
+                // the cache only kept the average, taken over the positions of the term
+                ArticlePayloadIBSimilarity.payloadsAveraged(docScorer, doc, payloadFactor(), freq());
+            }
+            return super.score();
+        }
+
+        @Override
+        float payloadFactor() {
+            return entry.factors.get(index);
+        }
+
+        @Override
+        public int freq() {
+            return entry.freqs.get(index);
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() {
+            return acceptFrom(index + 1);
+        }
+
+        @Override
+        public int advance(int target) {
+            // binary search the first posting >= target after the current one
+            int lo = index + 1;
+            int hi = entry.count - 1;
+            while (lo <= hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (entry.docs.get(mid) < target) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return acceptFrom(lo);
+        }
+
+        private int acceptFrom(int i) {
+            if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+                return doc;
+            }
+            for (; i < entry.count; i++) {
+                final int candidate = entry.docs.get(i);
+                if (acceptDocs == null || acceptDocs.get(candidate)) {
+                    index = i;
+                    return doc = candidate;
+                }
+            }
+            index = entry.count;
+            doc = DocIdSetIterator.NO_MORE_DOCS;
+            // exhausted, the entry may be unmapped
+            entry.decRef();
+            return doc;
+        }
+
+        @Override
+        void release() {
+            if (doc != DocIdSetIterator.NO_MORE_DOCS) {
+                doc = DocIdSetIterator.NO_MORE_DOCS;
+                entry.decRef();
+            }
+        }
+
+        @Override
+        public long cost() {
+            // read when the scorer is created, before it can be exhausted
+            return count;
+        }
+    }
+
+    private static final class PostingsScorer extends PayloadFactorScorer {
+        private final DocsAndPositionsEnum postings;
+        private final boolean missingNeutral;
+        private int factorDoc = -1;
+        private float factor;
+
+        PostingsScorer(Weight weight, DocsAndPositionsEnum postings, Similarity.SimScorer docScorer,
+                boolean missingNeutral) {
+            super(weight, docScorer);
+            this.postings = postings;
+            this.missingNeutral = missingNeutral;
+        }
+
+        @Override
+        float payloadFactor() throws IOException {
+            final int doc = postings.docID();
+            if (factorDoc != doc) {
+                // positions can only be read once per document
+                factor = MappedPayloadCache.averagePayloadFactor(doc, postings, postings.freq(), docScorer, missingNeutral);
+                factorDoc = doc;
+            }
+            return factor;
+        }
+
+        @Override
+        public int freq() throws IOException {
+            return postings.freq();
+        }
+
+        @Override
+        public int docID() {
+            return postings.docID();
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return postings.nextDoc();
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            return postings.advance(target);
+        }
+
+        @Override
+        public long cost() {
+            return postings.cost();
+        }
+    }
+}
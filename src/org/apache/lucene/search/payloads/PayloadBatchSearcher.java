@@ -0,0 +1,594 @@
+package org.apache.lucene.search.payloads;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.similarities.ArticlePayloadIBSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.PriorityQueue;
+
+/**
+ * Runs many queries against one searcher in a single pass over each segment, for bulk
+ * jobs that send thousands of queries on the same fields.
+ *
+ * Queries made of {@link SparsePayloadTermQuery} clauses on fields scored by
+ * {@link ArticlePayloadIBSimilarity}, combined by (nested) {@link BooleanQuery}s, are
+ * scored together: every distinct term is looked up in the terms dictionary once for the
+ * whole batch, its statistics are computed once per distinct boost, and its postings and
+ * payloads are read once per segment. Documents are visited in order across the postings
+ * of all terms, and the scores are fanned out to one top-k collector per query. Equal
+ * queries are run once. Other queries are run one by one with {@link IndexSearcher#search(Query, int)}.
+ *
+ * Scores are those of the queries run on their own, up to the order in which boolean
+ * clauses are summed.
+ */
+public class PayloadBatchSearcher {
+
+    private final IndexSearcher searcher;
+
+    public PayloadBatchSearcher(IndexSearcher searcher) {
+        this.searcher = searcher;
+    }
+
+    /**
+     * Returns the top <code>n</code> hits of every query, in the order of the queries
+     */
+    public TopDocs[] search(List<Query> queries, int n) throws IOException {
+        if (n <= 0) {
+            throw new IllegalArgumentException("n must be > 0, got " + n);
+        }
+        final Batch batch = new Batch(searcher);
+        final Map<Query, Integer> distinct = new HashMap<>();
+        final List<Query> fallback = new ArrayList<>();
+        // >= 0: index of the query in the batch, < 0: -1 - index in the fallback queries
+        final int[] slots = new int[queries.size()];
+        for (int i = 0; i < queries.size(); i++) {
+            final Query query = queries.get(i);
+            Integer slot = distinct.get(query);
+            if (slot == null) {
+                slot = batch.add(query);
+                if (slot < 0) {
+                    fallback.add(query);
+                    slot = -fallback.size();
+                }
+                distinct.put(query, slot);
+            }
+            slots[i] = slot;
+        }
+
+        final TopDocs[] batchResults = batch.search(n);
+        final TopDocs[] fallbackResults = new TopDocs[fallback.size()];
+        for (int i = 0; i < fallbackResults.length; i++) {
+            fallbackResults[i] = searcher.search(fallback.get(i), n);
+        }
+        final TopDocs[] results = new TopDocs[queries.size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = slots[i] >= 0 ? batchResults[slots[i]] : fallbackResults[-1 - slots[i]];
+        }
+        return results;
+    }
+
+    /**
+     * The distinct terms, clauses and queries of a batch
+     */
+    private static final class Batch {
+        private final IndexSearcher searcher;
+        private final Similarity similarity;
+        private final Map<Term, Integer> termIds = new HashMap<>();
+        private final List<Term> terms = new ArrayList<>();
+        private final List<TermContext> termStates = new ArrayList<>();
+        private final Map<String, CollectionStatistics> fieldStats = new HashMap<>();
+        private final Map<ClauseKey, Integer> clauseIds = new HashMap<>();
+        private final List<Clause> clauses = new ArrayList<>();
+        private final List<Node> nodes = new ArrayList<>();
+
+        // per segment state, indexed by clause
+        private int[] clauseDocs;
+        private float[] clauseScores;
+
+        Batch(IndexSearcher searcher) {
+            this.searcher = searcher;
+            this.similarity = searcher.getSimilarity();
+        }
+
+        /**
+         * Adds a query to the batch and returns its index, or <code>-1</code> if it cannot be
+         * run as part of a batch.
+         */
+        int add(Query query) throws IOException {
+            final List<Integer> used = new ArrayList<>();
+            final Node node = compile(query, 1F, used);
+            if (node == null) {
+                return -1;
+            }
+            final int queryId = nodes.size();
+            nodes.add(node);
+            for (int clauseId : used) {
+                clauses.get(clauseId).addQuery(queryId);
+            }
+            return queryId;
+        }
+
+        private Node compile(Query query, float topLevelBoost, List<Integer> used) throws IOException {
+            if (query instanceof SparsePayloadTermQuery) {
+                final SparsePayloadTermQuery termQuery = (SparsePayloadTermQuery) query;
+                final ArticlePayloadIBSimilarity fieldSimilarity = ArticlePayloadIBSimilarity.forField(similarity,
+                        termQuery.getTerm().field());
+                if (fieldSimilarity == null || termQuery.hasPayloadRange()) {
+                    // other similarities may depend on the query norm of the whole query
+                    return null;
+                }
+                final int clauseId = clause(new ClauseKey(termQuery, topLevelBoost), fieldSimilarity);
+                used.add(clauseId);
+                return new TermNode(clauseId);
+            }
+            if (query instanceof BooleanQuery) {
+                final BooleanQuery booleanQuery = (BooleanQuery) query;
+                final float boost = topLevelBoost * booleanQuery.getBoost();
+                final List<Node> required = new ArrayList<>();
+                final List<Node> optional = new ArrayList<>();
+                final List<Node> prohibited = new ArrayList<>();
+                for (BooleanClause clause : booleanQuery.clauses()) {
+                    final Node child = compile(clause.getQuery(), boost, used);
+                    if (child == null) {
+                        return null;
+                    }
+                    if (clause.isRequired()) {
+                        required.add(child);
+                    } else if (clause.isProhibited()) {
+                        prohibited.add(child);
+                    } else {
+                        optional.add(child);
+                    }
+                }
+                final int maxCoord = required.size() + optional.size();
+                final float[] coords = new float[maxCoord + 1];
+                for (int overlap = 0; overlap <= maxCoord; overlap++) {
+                    // like BooleanWeight, which does not apply coord to a single clause
+                    coords[overlap] = booleanQuery.isCoordDisabled() || maxCoord == 1 ? 1F
+                            : similarity.coord(overlap, maxCoord);
+                }
+                return new BooleanNode(required.toArray(new Node[required.size()]),
+                        optional.toArray(new Node[optional.size()]), prohibited.toArray(new Node[prohibited.size()]),
+                        booleanQuery.getMinimumNumberShouldMatch(), coords);
+            }
+            return null;
+        }
+
+        private int clause(ClauseKey key, ArticlePayloadIBSimilarity fieldSimilarity) throws IOException {
+            Integer clauseId = clauseIds.get(key);
+            if (clauseId != null) {
+                return clauseId;
+            }
+            final int termId = term(key.term);
+            final Similarity.SimWeight weight = similarity.computeWeight(key.boost, fieldStats(key.term.field()),
+                    searcher.termStatistics(key.term, termStates.get(termId)));
+            // the IB stats ignore the query norm, only the boosts matter
+            weight.normalize(1F, key.topLevelBoost);
+            clauseId = clauses.size();
+            clauses.add(new Clause(termId, key, weight, fieldSimilarity.isMissingPayloadsNeutral()));
+            clauseIds.put(key, clauseId);
+            return clauseId;
+        }
+
+        private int term(Term term) throws IOException {
+            Integer termId = termIds.get(term);
+            if (termId == null) {
+                termId = terms.size();
+                terms.add(term);
+                termStates.add(TermContext.build(searcher.getTopReaderContext(), term));
+                termIds.put(term, termId);
+            }
+            return termId;
+        }
+
+        private CollectionStatistics fieldStats(String field) throws IOException {
+            CollectionStatistics stats = fieldStats.get(field);
+            if (stats == null) {
+                stats = searcher.collectionStatistics(field);
+                fieldStats.put(field, stats);
+            }
+            return stats;
+        }
+
+        TopDocs[] search(int n) throws IOException {
+            final int numQueries = nodes.size();
+            final TopScoreDocCollector[] collectors = new TopScoreDocCollector[numQueries];
+            for (int i = 0; i < numQueries; i++) {
+                collectors[i] = TopScoreDocCollector.create(n, true);
+            }
+            if (numQueries > 0) {
+                run(collectors);
+            }
+            final TopDocs[] results = new TopDocs[numQueries];
+            for (int i = 0; i < numQueries; i++) {
+                results[i] = collectors[i].topDocs();
+            }
+            return results;
+        }
+
+        private void run(TopScoreDocCollector[] collectors) throws IOException {
+            final int numQueries = collectors.length;
+            final int numClauses = clauses.size();
+            final int[][] termClauses = termClauses();
+            final TermPostings[] postings = new TermPostings[terms.size()];
+            final Similarity.SimScorer[] docScorers = new Similarity.SimScorer[numClauses];
+            final float[] slopFactors = new float[numClauses];
+            final int[] queryDocs = new int[numQueries];
+            final int[] queryLeaves = new int[numQueries];
+            final int[] touched = new int[numQueries];
+            final BatchScorer scorer = new BatchScorer();
+            clauseDocs = new int[numClauses];
+            clauseScores = new float[numClauses];
+            Arrays.fill(queryLeaves, -1);
+
+            for (AtomicReaderContext leaf : searcher.getIndexReader().leaves()) {
+                final Bits liveDocs = leaf.reader().getLiveDocs();
+                final PriorityQueue<TermPostings> queue = new PriorityQueue<TermPostings>(terms.size()) {
+                    @Override
+                    protected boolean lessThan(TermPostings a, TermPostings b) {
+                        return a.doc < b.doc;
+                    }
+                };
+                for (int termId = 0; termId < terms.size(); termId++) {
+                    if (termClauses[termId].length == 0) {
+                        continue;
+                    }
+                    final DocsAndPositionsEnum termPostings = postings(leaf, termId, liveDocs);
+                    if (termPostings == null) {
+                        continue;
+                    }
+                    if (postings[termId] == null) {
+                        postings[termId] = new TermPostings(termId);
+                    }
+                    if (postings[termId].reset(termPostings) != DocIdSetIterator.NO_MORE_DOCS) {
+                        queue.add(postings[termId]);
+                        for (int clauseId : termClauses[termId]) {
+                            docScorers[clauseId] = similarity.simScorer(clauses.get(clauseId).weight, leaf);
+                            // a term span contributes the slop factor of a match of length 1 per occurrence
+                            slopFactors[clauseId] = docScorers[clauseId].computeSlopFactor(1);
+                        }
+                    }
+                }
+                Arrays.fill(clauseDocs, -1);
+                Arrays.fill(queryDocs, -1);
+
+                while (queue.size() > 0) {
+                    final int doc = queue.top().doc;
+                    int numTouched = 0;
+                    do {
+                        final TermPostings top = queue.top();
+                        top.readPositions();
+                        final String field = terms.get(top.termId).field();
+                        for (int clauseId : termClauses[top.termId]) {
+                            final Clause clause = clauses.get(clauseId);
+                            final Similarity.SimScorer docScorer = docScorers[clauseId];
+                            final float payloadScore = PayloadScores.payloadScore(doc, field, top.freq, top.positions,
+                                    top.payloads, clause.key.function, docScorer, clause.missingNeutral);
+                            clauseScores[clauseId] = clause.key.includeSpanScore
+                                    ? docScorer.score(doc, top.freq * slopFactors[clauseId]) * payloadScore
+                                    : payloadScore;
+                            clauseDocs[clauseId] = doc;
+                            for (int i = 0; i < clause.numQueries; i++) {
+                                final int queryId = clause.queries[i];
+                                if (queryDocs[queryId] != doc) {
+                                    queryDocs[queryId] = doc;
+                                    touched[numTouched++] = queryId;
+                                }
+                            }
+                        }
+                        if (top.nextDoc() == DocIdSetIterator.NO_MORE_DOCS) {
+                            queue.pop();
+                        } else {
+                            queue.updateTop();
+                        }
+                    } while (queue.size() > 0 && queue.top().doc == doc);
+
+                    for (int i = 0; i < numTouched; i++) {
+                        final int queryId = touched[i];
+                        final float score = nodes.get(queryId).score(doc);
+                        if (score != score) { // NaN, no match
+                            continue;
+                        }
+                        if (queryLeaves[queryId] != leaf.ord) {
+                            // collectors only see the segments they have hits in
+                            collectors[queryId].setNextReader(leaf);
+                            collectors[queryId].setScorer(scorer);
+                            queryLeaves[queryId] = leaf.ord;
+                        }
+                        scorer.doc = doc;
+                        scorer.score = score;
+                        collectors[queryId].collect(doc);
+                    }
+                }
+            }
+        }
+
+        private DocsAndPositionsEnum postings(AtomicReaderContext leaf, int termId, Bits liveDocs) throws IOException {
+            final TermState state = termStates.get(termId).get(leaf.ord);
+            if (state == null) {
+                return null;
+            }
+            final Term term = terms.get(termId);
+            final Terms fieldTerms = leaf.reader().terms(term.field());
+            if (fieldTerms == null) {
+                return null;
+            }
+            final TermsEnum termsEnum = fieldTerms.iterator(null);
+            termsEnum.seekExact(term.bytes(), state);
+            final DocsAndPositionsEnum postings = termsEnum.docsAndPositions(liveDocs, null,
+                    DocsAndPositionsEnum.FLAG_PAYLOADS);
+            if (postings == null) {
+                throw new IllegalStateException("field \"" + term.field()
+                        + "\" was indexed without position data; cannot run PayloadBatchSearcher (term="
+                        + term.text() + ")");
+            }
+            return postings;
+        }
+
+        private int[][] termClauses() {
+            final int[] counts = new int[terms.size()];
+            for (Clause clause : clauses) {
+                if (clause.numQueries > 0) {
+                    counts[clause.termId]++;
+                }
+            }
+            final int[][] termClauses = new int[terms.size()][];
+            for (int termId = 0; termId < termClauses.length; termId++) {
+                termClauses[termId] = new int[counts[termId]];
+                counts[termId] = 0;
+            }
+            for (int clauseId = 0; clauseId < clauses.size(); clauseId++) {
+                final Clause clause = clauses.get(clauseId);
+                if (clause.numQueries > 0) {
+                    termClauses[clause.termId][counts[clause.termId]++] = clauseId;
+                }
+            }
+            return termClauses;
+        }
+
+        private abstract class Node {
+            /** Returns the score of the current document, NaN if it does not match */
+            abstract float score(int doc);
+        }
+
+        private final class TermNode extends Node {
+            private final int clauseId;
+
+            TermNode(int clauseId) {
+                this.clauseId = clauseId;
+            }
+
+            @Override
+            float score(int doc) {
+                return clauseDocs[clauseId] == doc ? clauseScores[clauseId] : Float.NaN;
+            }
+        }
+
+        private final class BooleanNode extends Node {
+            private final Node[] required;
+            private final Node[] optional;
+            private final Node[] prohibited;
+            private final int minShouldMatch;
+            private final float[] coords;
+
+            BooleanNode(Node[] required, Node[] optional, Node[] prohibited, int minShouldMatch, float[] coords) {
+                this.required = required;
+                this.optional = optional;
+                this.prohibited = prohibited;
+                this.minShouldMatch = minShouldMatch;
+                this.coords = coords;
+            }
+
+            @Override
+            float score(int doc) {
+                float sum = 0F;
+                int overlap = 0;
+                for (Node node : required) {
+                    final float score = node.score(doc);
+                    if (score != score) {
+                        return Float.NaN;
+                    }
+                    sum += score;
+                    overlap++;
+                }
+                int optionalMatches = 0;
+                for (Node node : optional) {
+                    final float score = node.score(doc);
+                    if (score == score) {
+                        sum += score;
+                        optionalMatches++;
+                    }
+                }
+                if (optionalMatches < minShouldMatch || (required.length == 0 && optionalMatches == 0)) {
+                    return Float.NaN;
+                }
+                for (Node node : prohibited) {
+                    final float score = node.score(doc);
+                    if (score == score) {
+                        return Float.NaN;
+                    }
+                }
+                return sum * coords[overlap + optionalMatches];
+            }
+        }
+    }
+
+    /**
+     * What makes two term clauses score the same
+     */
+    private static final class ClauseKey {
+        final Term term;
+        final float boost;
+        final float topLevelBoost;
+        final PayloadFunction function;
+        final boolean includeSpanScore;
+
+        ClauseKey(SparsePayloadTermQuery query, float topLevelBoost) {
+            this.term = query.getTerm();
+            this.boost = query.getBoost();
+            this.topLevelBoost = topLevelBoost;
+            this.function = query.getPayloadFunction();
+            this.includeSpanScore = query.isIncludeSpanScore();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ClauseKey)) {
+                return false;
+            }
+            ClauseKey other = (ClauseKey) obj;
+            return term.equals(other.term)
+                    && Float.floatToIntBits(boost) == Float.floatToIntBits(other.boost)
+                    && Float.floatToIntBits(topLevelBoost) == Float.floatToIntBits(other.topLevelBoost)
+                    && function.equals(other.function)
+                    && includeSpanScore == other.includeSpanScore;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = term.hashCode();
+            result = 31 * result + Float.floatToIntBits(boost);
+            result = 31 * result + Float.floatToIntBits(topLevelBoost);
+            result = 31 * result + function.hashCode();
+            return 31 * result + (includeSpanScore ? 1 : 0);
+        }
+    }
+
+    private static final class Clause {
+        final int termId;
+        final ClauseKey key;
+        final Similarity.SimWeight weight;
+        final boolean missingNeutral;
+        int[] queries = new int[1];
+        int numQueries;
+
+        Clause(int termId, ClauseKey key, Similarity.SimWeight weight, boolean missingNeutral) {
+            this.termId = termId;
+            this.key = key;
+            this.weight = weight;
+            this.missingNeutral = missingNeutral;
+        }
+
+        void addQuery(int queryId) {
+            // a query may use the same clause twice
+            if (numQueries > 0 && queries[numQueries - 1] == queryId) {
+                return;
+            }
+            queries = ArrayUtil.grow(queries, numQueries + 1);
+            queries[numQueries++] = queryId;
+        }
+    }
+
+    /**
+     * Postings of one term in the current segment, with the positions and payloads of the
+     * current document buffered so that all clauses on the term can score them
+     */
+    private static final class TermPostings {
+        final int termId;
+        DocsAndPositionsEnum postings;
+        int doc;
+        int freq;
+        int[] positions = new int[8];
+        BytesRef[] payloads = new BytesRef[8];
+        private BytesRef[] payloadBuffers = new BytesRef[8];
+
+        TermPostings(int termId) {
+            this.termId = termId;
+        }
+
+        int reset(DocsAndPositionsEnum postings) throws IOException {
+            this.postings = postings;
+            return nextDoc();
+        }
+
+        int nextDoc() throws IOException {
+            return doc = postings.nextDoc();
+        }
+
+        void readPositions() throws IOException {
+            freq = postings.freq();
+            if (positions.length < freq) {
+                positions = ArrayUtil.grow(positions, freq);
+                payloads = new BytesRef[positions.length];
+                payloadBuffers = Arrays.copyOf(payloadBuffers, positions.length);
+            }
+            for (int i = 0; i < freq; i++) {
+                positions[i] = postings.nextPosition();
+                final BytesRef payload = postings.getPayload();
+                if (payload == null) {
+                    payloads[i] = null;
+                } else {
+                    if (payloadBuffers[i] == null) {
+                        payloadBuffers[i] = new BytesRef();
+                    }
+                    // the enum may reuse its payload bytes
+                    payloadBuffers[i].copyBytes(payload);
+                    payloads[i] = payloadBuffers[i];
+                }
+            }
+        }
+    }
+
+    private static final class BatchScorer extends Scorer {
+        int doc = -1;
+        float score;
+
+        BatchScorer() {
+            super(null);
+        }
+
+        @Override
+        public float score() {
+            return score;
+        }
+
+        @Override
+        public int freq() {
+            return 1;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int advance(int target) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long cost() {
+            return 1;
+        }
+    }
+}
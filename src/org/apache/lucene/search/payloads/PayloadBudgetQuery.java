@@ -0,0 +1,362 @@
+package org.apache.lucene.search.payloads;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.ComplexExplanation;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.PayloadScoringListener;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.ToStringUtils;
+
+/**
+ * Runs a query within a budget of postings entries, estimated by {@link PayloadQueryCost}
+ * when the query is rewritten, i.e. before prefix and fuzzy terms are expanded and before
+ * any postings are read. A query over budget is, depending on the {@link Action}, rejected,
+ * replaced by a cheaper degraded query, or run with a deadline that its scorers check as
+ * they advance.
+ *
+ * The cost is estimated against the reader the query is rewritten for, so a query that is
+ * run on several indexes, e.g. the shards of an index, is checked against each of them on
+ * its own: it can be rejected or degraded on some and run as is on others.
+ *
+ * A query within budget, or one that only has its cost estimated, runs through its own
+ * bulk scorer, e.g. the pruning of a {@link PayloadMaxScoreQuery}. A query over budget that
+ * runs with a deadline is collected through its scorers, which check the deadline, so it
+ * is not pruned.
+ */
+public class PayloadBudgetQuery extends Query {
+
+    /**
+     * What happens to a query whose estimated cost exceeds the budget
+     */
+    public static enum Action {
+        /** Fail the query */
+        REJECT,
+        /** Run the degraded query instead, or fail if there is none */
+        DEGRADE,
+        /** Run the query, but stop matching documents once the timeout has passed */
+        TIMEOUT;
+
+        public static Action fromString(String action) {
+            for (Action value : values()) {
+                if (value.name().equalsIgnoreCase(action)) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Unknown budget action [" + action + "]");
+        }
+    }
+
+    /** Documents matched between two checks of the deadline */
+    private static final int CHECK_INTERVAL = 256;
+
+    private final Query query;
+    private final Query degraded;
+    private final long maxCost;
+    private final Action action;
+    private final long timeoutNanos;
+    private final PayloadScoringListener listener;
+    // estimated when rewritten, -1 before
+    private final long cost;
+
+    /**
+     * @param query query to run
+     * @param degraded cheaper query to run instead if <code>query</code> is over budget, may
+     *                 be <code>null</code> unless the action is {@link Action#DEGRADE}
+     * @param maxCost budget in postings entries, {@link Long#MAX_VALUE} only estimates the cost
+     * @param action what happens to a query over budget
+     * @param timeoutNanos time a query over budget may match documents for, with {@link Action#TIMEOUT}
+     * @param listener receives the estimated cost and timeouts, may be <code>null</code>
+     */
+    public PayloadBudgetQuery(Query query, Query degraded, long maxCost, Action action, long timeoutNanos,
+            PayloadScoringListener listener) {
+        this(query, degraded, maxCost, action, timeoutNanos, listener, -1);
+    }
+
+    private PayloadBudgetQuery(Query query, Query degraded, long maxCost, Action action, long timeoutNanos,
+            PayloadScoringListener listener, long cost) {
+        if (maxCost < 0) {
+            throw new IllegalArgumentException("maxCost must be >= 0, got " + maxCost);
+        }
+        if (action == Action.DEGRADE && degraded == null) {
+            throw new IllegalArgumentException("a degraded query is required to degrade");
+        }
+        if (action == Action.TIMEOUT && timeoutNanos <= 0) {
+            throw new IllegalArgumentException("timeoutNanos must be > 0, got " + timeoutNanos);
+        }
+        this.query = query;
+        this.degraded = degraded;
+        this.maxCost = maxCost;
+        this.action = action;
+        this.timeoutNanos = timeoutNanos;
+        this.listener = listener;
+        this.cost = cost;
+    }
+
+    public Query getQuery() {
+        return query;
+    }
+
+    public Query getDegraded() {
+        return degraded;
+    }
+
+    public long getMaxCost() {
+        return maxCost;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public long getTimeoutNanos() {
+        return timeoutNanos;
+    }
+
+    /**
+     * Returns the estimated cost of the query, or <code>-1</code> if it was not rewritten yet
+     */
+    public long getCost() {
+        return cost;
+    }
+
+    /**
+     * Estimates the cost of the query and rejects or degrades it if it is over budget.
+     * Later rewrites only rewrite the query and keep the estimate.
+     */
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        if (cost >= 0) {
+            final Query rewritten = query.rewrite(reader);
+            if (rewritten == query) {
+                return this;
+            }
+            return copy(rewritten, cost);
+        }
+        final long estimate = PayloadQueryCost.estimate(reader, query);
+        final boolean overBudget = estimate > maxCost;
+        if (listener != null) {
+            listener.queryCostEstimated(estimate, overBudget);
+        }
+        if (overBudget && action == Action.REJECT) {
+            throw overBudget(estimate);
+        }
+        if (overBudget && action == Action.DEGRADE) {
+            final Query cheaper = degraded.clone();
+            cheaper.setBoost(cheaper.getBoost() * getBoost());
+            return cheaper;
+        }
+        return copy(query.rewrite(reader), estimate);
+    }
+
+    /**
+     * Returns the exception a query over budget is rejected with
+     */
+    protected RuntimeException overBudget(long estimate) {
+        return new IllegalArgumentException("query cost " + estimate + " exceeds the budget of " + maxCost + ": "
+                + query);
+    }
+
+    private PayloadBudgetQuery copy(Query rewritten, long cost) {
+        final PayloadBudgetQuery copy = new PayloadBudgetQuery(rewritten, degraded, maxCost, action, timeoutNanos,
+                listener, cost);
+        copy.setBoost(getBoost());
+        return copy;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher) throws IOException {
+        final long estimate = cost >= 0 ? cost : PayloadQueryCost.estimate(searcher.getIndexReader(), query);
+        return new BudgetWeight(query.createWeight(searcher), estimate);
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+        query.extractTerms(terms);
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("payloadBudget(");
+        buffer.append(query.toString(field));
+        buffer.append(", max_cost=").append(maxCost);
+        buffer.append(", ").append(action.name().toLowerCase(Locale.ROOT));
+        if (cost >= 0) {
+            buffer.append(", cost=").append(cost);
+        }
+        buffer.append(')');
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 31 * super.hashCode() + query.hashCode();
+        result = 31 * result + (degraded == null ? 0 : degraded.hashCode());
+        result = 31 * result + (int) (maxCost ^ (maxCost >>> 32));
+        result = 31 * result + action.hashCode();
+        result = 31 * result + (int) (timeoutNanos ^ (timeoutNanos >>> 32));
+        return 31 * result + (int) (cost ^ (cost >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!super.equals(obj)) {
+            return false;
+        }
+        PayloadBudgetQuery other = (PayloadBudgetQuery) obj;
+        return maxCost == other.maxCost && action == other.action && timeoutNanos == other.timeoutNanos
+                && cost == other.cost && query.equals(other.query)
+                && (degraded == null ? other.degraded == null : degraded.equals(other.degraded));
+    }
+
+    final class BudgetWeight extends Weight {
+        private final Weight weight;
+        private final long estimate;
+        // 0 if the query runs without deadline
+        private final long deadline;
+        private final AtomicBoolean timedOut = new AtomicBoolean();
+
+        BudgetWeight(Weight weight, long estimate) {
+            this.weight = weight;
+            this.estimate = estimate;
+            // the weight is created once per search, so the deadline holds for all segments
+            this.deadline = action == Action.TIMEOUT && estimate > maxCost ? System.nanoTime() + timeoutNanos : 0;
+        }
+
+        @Override
+        public Query getQuery() {
+            return PayloadBudgetQuery.this;
+        }
+
+        @Override
+        public float getValueForNormalization() throws IOException {
+            final float boost = getBoost();
+            return weight.getValueForNormalization() * boost * boost;
+        }
+
+        @Override
+        public void normalize(float norm, float topLevelBoost) {
+            weight.normalize(norm, topLevelBoost * getBoost());
+        }
+
+        @Override
+        public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            final Scorer scorer = weight.scorer(context, acceptDocs);
+            if (scorer == null || deadline == 0) {
+                return scorer;
+            }
+            return new DeadlineScorer(this, scorer);
+        }
+
+        /**
+         * Returns the bulk scorer of the query, unless it runs with a deadline that only the
+         * scorers check
+         */
+        @Override
+        public BulkScorer bulkScorer(AtomicReaderContext context, boolean scoreDocsInOrder, Bits acceptDocs)
+                throws IOException {
+            if (deadline == 0) {
+                return weight.bulkScorer(context, scoreDocsInOrder, acceptDocs);
+            }
+            return super.bulkScorer(context, scoreDocsInOrder, acceptDocs);
+        }
+
+        @Override
+        public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
+            final Explanation expl = weight.explain(context, doc);
+            if (!expl.isMatch()) {
+                return expl;
+            }
+            final ComplexExplanation result = new ComplexExplanation(true, expl.getValue(),
+                    "estimated cost " + estimate + " of a budget of " + maxCost + ":");
+            result.addDetail(expl);
+            return result;
+        }
+
+        @Override
+        public boolean scoresDocsOutOfOrder() {
+            return weight.scoresDocsOutOfOrder();
+        }
+
+        void timedOut() {
+            if (timedOut.compareAndSet(false, true) && listener != null) {
+                listener.queryTimedOut();
+            }
+        }
+    }
+
+    /**
+     * Stops matching documents once the deadline of the weight has passed. Documents
+     * already collected keep their scores, so a timed out query returns partial results.
+     */
+    static final class DeadlineScorer extends Scorer {
+        private final BudgetWeight weight;
+        private final Scorer scorer;
+        private int untilCheck = CHECK_INTERVAL;
+        private int doc = -1;
+
+        DeadlineScorer(BudgetWeight weight, Scorer scorer) {
+            super(weight);
+            this.weight = weight;
+            this.scorer = scorer;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return doc = expired() ? NO_MORE_DOCS : scorer.nextDoc();
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            return doc = expired() ? NO_MORE_DOCS : scorer.advance(target);
+        }
+
+        private boolean expired() {
+            if (--untilCheck > 0) {
+                return false;
+            }
+            untilCheck = CHECK_INTERVAL;
+            if (System.nanoTime() - weight.deadline < 0) {
+                return false;
+            }
+            weight.timedOut();
+            return true;
+        }
+
+        @Override
+        public float score() throws IOException {
+            return scorer.score();
+        }
+
+        @Override
+        public int freq() throws IOException {
+            return scorer.freq();
+        }
+
+        @Override
+        public long cost() {
+            return scorer.cost();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.apache.lucene.search.payloads;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.similarities.ArticlePayloadIBSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Best-case scoring inputs of a term in one segment, for the whole postings list and per
+ * block of {@link #BLOCK_SIZE} documents: the highest freq, the shortest document length
+ * and the highest payload factor of any position. Positions without a payload count as
+ * a factor of 1, so the maximum bounds the result of every {@link PayloadFunction}
+ * shipped with Lucene.
+ *
+ * Combined with the query's stats these give upper bounds for the score of a
+ * {@link PayloadTermQuery} on any document of the segment or of a block.
+ */
+public final class PayloadImpacts {
+
+    public static final int BLOCK_SIZE = 128;
+
+    private final int[] blockLastDoc;
+    private final int[] blockMaxFreq;
+    private final float[] blockMinDocLen;
+    private final float[] blockMaxFactor;
+    private final int maxFreq;
+    private final float minDocLen;
+    private final float maxFactor;
+
+    private PayloadImpacts(int[] blockLastDoc, int[] blockMaxFreq, float[] blockMinDocLen, float[] blockMaxFactor) {
+        this.blockLastDoc = blockLastDoc;
+        this.blockMaxFreq = blockMaxFreq;
+        this.blockMinDocLen = blockMinDocLen;
+        this.blockMaxFactor = blockMaxFactor;
+        int maxFreq = 0;
+        float minDocLen = Float.POSITIVE_INFINITY;
+        float maxFactor = 0;
+        for (int i = 0; i < blockLastDoc.length; i++) {
+            maxFreq = Math.max(maxFreq, blockMaxFreq[i]);
+            minDocLen = Math.min(minDocLen, blockMinDocLen[i]);
+            maxFactor = Math.max(maxFactor, blockMaxFactor[i]);
+        }
+        this.maxFreq = maxFreq;
+        this.minDocLen = minDocLen;
+        this.maxFactor = maxFactor;
+    }
+
+    /**
+     * Reads every posting of the term the given enum is positioned on, ignoring deletions.
+     *
+     * @param norms norms of the term's field in the segment, or <code>null</code>
+     * @param docScorer scorer used to turn payloads into payload factors, or <code>null</code>
+     *                  to use {@link ArticlePayloadIBSimilarity#scorePayload} directly
+     */
+    public static PayloadImpacts compute(TermsEnum termsEnum, NumericDocValues norms,
+            ArticlePayloadIBSimilarity similarity, Similarity.SimScorer docScorer) throws IOException {
+        final int numBlocks = (termsEnum.docFreq() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int[] blockLastDoc = new int[numBlocks];
+        int[] blockMaxFreq = new int[numBlocks];
+        float[] blockMinDocLen = new float[numBlocks];
+        float[] blockMaxFactor = new float[numBlocks];
+        DocsAndPositionsEnum postings = termsEnum.docsAndPositions(null, null, DocsAndPositionsEnum.FLAG_PAYLOADS);
+        int block = -1;
+        int inBlock = BLOCK_SIZE;
+        if (postings != null) {
+            for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                if (inBlock == BLOCK_SIZE) {
+                    block++;
+                    if (block == blockLastDoc.length) {
+                        // doc freq was off, grow rather than fail
+                        final int size = ArrayUtil.oversize(block + 1, 4);
+                        blockLastDoc = ArrayUtil.grow(blockLastDoc, size);
+                        blockMaxFreq = ArrayUtil.grow(blockMaxFreq, size);
+                        blockMinDocLen = ArrayUtil.grow(blockMinDocLen, size);
+                        blockMaxFactor = ArrayUtil.grow(blockMaxFactor, size);
+                    }
+                    blockMinDocLen[block] = Float.POSITIVE_INFINITY;
+                    inBlock = 0;
+                }
+                inBlock++;
+                final int freq = postings.freq();
+                blockLastDoc[block] = doc;
+                blockMaxFreq[block] = Math.max(blockMaxFreq[block], freq);
+                blockMinDocLen[block] = Math.min(blockMinDocLen[block], similarity.docLength(norms, doc));
+                float maxFactor = blockMaxFactor[block];
+                for (int i = 0; i < freq; i++) {
+                    final int position = postings.nextPosition();
+                    final BytesRef payload = postings.getPayload();
+                    final float factor;
+                    if (payload == null) {
+                        factor = 1.0F;
+                    } else if (docScorer == null) {
+                        factor = similarity.scorePayload(doc, position, position + 1, payload);
+                    } else {
+                        factor = docScorer.computePayloadFactor(doc, position, position + 1, payload);
+                    }
+                    maxFactor = Math.max(maxFactor, factor);
+                }
+                blockMaxFactor[block] = maxFactor;
+            }
+        }
+        final int count = block + 1;
+        return new PayloadImpacts(trim(blockLastDoc, count), trim(blockMaxFreq, count), trim(blockMinDocLen, count), trim(blockMaxFactor, count));
+    }
+
+    private static int[] trim(int[] array, int length) {
+        if (array.length == length) {
+            return array;
+        }
+        int[] trimmed = new int[length];
+        System.arraycopy(array, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    private static float[] trim(float[] array, int length) {
+        if (array.length == length) {
+            return array;
+        }
+        float[] trimmed = new float[length];
+        System.arraycopy(array, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    public int numBlocks() {
+        return blockLastDoc.length;
+    }
+
+    public int maxFreq() {
+        return maxFreq;
+    }
+
+    public float minDocLen() {
+        return minDocLen;
+    }
+
+    public float maxFactor() {
+        return maxFactor;
+    }
+
+    /**
+     * Returns the index of the block containing <code>doc</code>, starting the search at
+     * block <code>from</code>, or {@link #numBlocks()} if <code>doc</code> is after the last
+     * posting.
+     */
+    public int block(int doc, int from) {
+        int block = Math.max(from, 0);
+        while (block < blockLastDoc.length && blockLastDoc[block] < doc) {
+            block++;
+        }
+        return block;
+    }
+
+    public int blockLastDoc(int block) {
+        return blockLastDoc[block];
+    }
+
+    public float blockMaxFactor(int block) {
+        return blockMaxFactor[block];
+    }
+
+    /**
+     * Upper bound for the score of a {@link PayloadTermQuery} on any document of the segment.
+     *
+     * @param slopFactor what each occurrence adds to the span freq
+     */
+    public float maxScore(ArticlePayloadIBSimilarity similarity, Similarity.SimWeight stats, float slopFactor) {
+        if (blockLastDoc.length == 0) {
+            return 0;
+        }
+        return similarity.maxScore(stats, maxFreq * slopFactor, minDocLen) * maxFactor;
+    }
+
+    /**
+     * Upper bound for the score of a {@link PayloadTermQuery} on any document of a block.
+     */
+    public float blockMaxScore(int block, ArticlePayloadIBSimilarity similarity, Similarity.SimWeight stats,
+            float slopFactor) {
+        return similarity.maxScore(stats, blockMaxFreq[block] * slopFactor, blockMinDocLen[block])
+                * blockMaxFactor[block];
+    }
+}
@@ -0,0 +1,134 @@
+package org.apache.lucene.search.payloads;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.FilterAtomicReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.similarities.ArticlePayloadIBSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+
+/**
+ * Keeps the {@link PayloadImpacts} of the most recently used terms per segment core.
+ * Impacts are computed the first time a term of a segment is asked for, and dropped when
+ * the segment core is closed.
+ */
+public class PayloadImpactsCache implements SegmentReader.CoreClosedListener {
+
+    private final int maxTerms;
+    private final LinkedHashMap<Key, PayloadImpacts> impacts;
+    private final Map<Object, Set<Key>> keysByCore = new HashMap<>();
+
+    /**
+     * @param maxTerms maximum number of (segment, term) pairs to keep impacts for
+     */
+    public PayloadImpactsCache(final int maxTerms) {
+        this.maxTerms = maxTerms;
+        this.impacts = new LinkedHashMap<Key, PayloadImpacts>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, PayloadImpacts> eldest) {
+                if (size() > PayloadImpactsCache.this.maxTerms) {
+                    Set<Key> coreKeys = keysByCore.get(eldest.getKey().coreKey);
+                    if (coreKeys != null) {
+                        coreKeys.remove(eldest.getKey());
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the impacts of the term the given enum is positioned on, computing them if
+     * needed, or <code>null</code> if they cannot be cached for this reader.
+     */
+    public PayloadImpacts get(AtomicReader reader, Term term, TermsEnum termsEnum,
+            ArticlePayloadIBSimilarity similarity, Similarity.SimScorer docScorer) throws IOException {
+        final PayloadImpacts cached = getIfPresent(reader, term);
+        if (cached != null) {
+            return cached;
+        }
+        final SegmentReader segmentReader = segmentReader(reader);
+        if (segmentReader == null) {
+            return null;
+        }
+        final PayloadImpacts computed = PayloadImpacts.compute(termsEnum,
+                reader.getNormValues(term.field()), similarity, docScorer);
+        final Key key = new Key(segmentReader.getCoreCacheKey(), term);
+        synchronized (this) {
+            Set<Key> coreKeys = keysByCore.get(key.coreKey);
+            if (coreKeys == null) {
+                coreKeys = new HashSet<>();
+                keysByCore.put(key.coreKey, coreKeys);
+                segmentReader.addCoreClosedListener(this);
+            }
+            coreKeys.add(key);
+            impacts.put(key, computed);
+        }
+        return computed;
+    }
+
+    /**
+     * Returns the impacts of a term if they were already computed, without reading postings.
+     */
+    public PayloadImpacts getIfPresent(AtomicReader reader, Term term) {
+        final SegmentReader segmentReader = segmentReader(reader);
+        if (segmentReader == null) {
+            return null;
+        }
+        synchronized (this) {
+            return impacts.get(new Key(segmentReader.getCoreCacheKey(), term));
+        }
+    }
+
+    @Override
+    public synchronized void onClose(Object ownerCoreCacheKey) {
+        Set<Key> keys = keysByCore.remove(ownerCoreCacheKey);
+        if (keys != null) {
+            for (Key key : keys) {
+                impacts.remove(key);
+            }
+        }
+    }
+
+    public synchronized int count() {
+        return impacts.size();
+    }
+
+    private static SegmentReader segmentReader(AtomicReader reader) {
+        AtomicReader unwrapped = FilterAtomicReader.unwrap(reader);
+        return unwrapped instanceof SegmentReader ? (SegmentReader) unwrapped : null;
+    }
+
+    private static final class Key {
+        final Object coreKey;
+        final Term term;
+
+        Key(Object coreKey, Term term) {
+            this.coreKey = coreKey;
+            this.term = term;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return coreKey == other.coreKey && term.equals(other.term);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(coreKey) + term.hashCode();
+        }
+    }
+}
@@ -0,0 +1,810 @@
+package org.apache.lucene.search.payloads;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ComplexExplanation;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.ArticlePayloadIBSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.ToStringUtils;
+
+/**
+ * A disjunction of payload term clauses, each scored like a {@link PayloadTermQuery}
+ * with span scores included, that only returns documents which can still make it into
+ * the top <code>k</code> hits.
+ *
+ * Clauses get upper bounds from their {@link PayloadImpacts}. Following the MaxScore
+ * algorithm, clauses whose summed bounds cannot reach the score of the current k-th best
+ * hit are only used to complete the scores of candidates found by the others, and
+ * candidates are dropped as soon as their remaining bounds cannot reach it. Per-block
+ * bounds reject candidates before any payload is read.
+ *
+ * The k-th best score is tracked by the query itself from the documents it hands to the
+ * collector, so documents may only be skipped when its {@link BulkScorer} collects straight
+ * into the collector of the search. A boolean query with only optional clauses also asks
+ * its clauses for bulk scorers and sums their scores, so searches must turn pruning off
+ * through {@link #prune(IndexSearcher)} unless this query is the top-level query, see
+ * {@link #isTopLevel(Query)}, and likewise when they collect more than k hits or drop hits
+ * after collection, e.g. by a minimum score. As a sub query that only asks for scorers, e.g.
+ * of a leap-frog filtered query, it scores the plain disjunction. With pruning the total hit
+ * count is a lower bound.
+ *
+ * Clauses belong to nested {@link Group}s, which score like the optional clauses of a
+ * {@link org.apache.lucene.search.BooleanQuery}: the sum of the scores of their matching
+ * children, times the coord of the searcher's similarity unless coord is disabled. Bounds
+ * leave coord out, so searches whose similarity has a coord above 1 are not pruned.
+ */
+public class PayloadMaxScoreQuery extends Query {
+
+    private final List<Clause> clauses;
+    private final List<Group> groups;
+    private final int topK;
+    private final PayloadImpactsCache impactsCache;
+
+    /**
+     * A plain sum of the given clauses, without coord
+     */
+    public PayloadMaxScoreQuery(List<Clause> clauses, int topK, PayloadImpactsCache impactsCache) {
+        this(clauses, Collections.singletonList(new Group(-1, clauses.size(), true)), topK, impactsCache);
+    }
+
+    /**
+     * @param clauses clauses, each in one of the groups
+     * @param groups groups, the root first and every other group after its parent
+     */
+    public PayloadMaxScoreQuery(List<Clause> clauses, List<Group> groups, int topK, PayloadImpactsCache impactsCache) {
+        if (topK <= 0) {
+            throw new IllegalArgumentException("topK must be > 0, got " + topK);
+        }
+        if (groups.isEmpty() || groups.get(0).parent != -1) {
+            throw new IllegalArgumentException("the first group must be the root, got " + groups);
+        }
+        final int[] children = new int[groups.size()];
+        for (int i = 1; i < groups.size(); i++) {
+            final int parent = groups.get(i).parent;
+            if (parent < 0 || parent >= i) {
+                throw new IllegalArgumentException("group " + i + " must come after its parent, got " + parent);
+            }
+            children[parent]++;
+        }
+        for (Clause clause : clauses) {
+            if (clause.group < 0 || clause.group >= groups.size()) {
+                throw new IllegalArgumentException("group of clause " + clause.term + " must be < " + groups.size()
+                        + ", got " + clause.group);
+            }
+            children[clause.group]++;
+        }
+        for (int i = 0; i < groups.size(); i++) {
+            if (children[i] > groups.get(i).maxOverlap) {
+                throw new IllegalArgumentException("maxOverlap of group " + i + " must be >= " + children[i]
+                        + ", got " + groups.get(i).maxOverlap);
+            }
+        }
+        this.clauses = Collections.unmodifiableList(new ArrayList<>(clauses));
+        this.groups = Collections.unmodifiableList(new ArrayList<>(groups));
+        this.topK = topK;
+        this.impactsCache = impactsCache;
+    }
+
+    public List<Clause> getClauses() {
+        return clauses;
+    }
+
+    public List<Group> getGroups() {
+        return groups;
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher) throws IOException {
+        return new MaxScoreWeight(searcher);
+    }
+
+    /**
+     * Returns whether the bulk scorer of a search on <code>searcher</code> may skip the
+     * documents that cannot make it into the top k hits. The default assumes this query is
+     * the top-level query of the search, which collects at most k hits and keeps every
+     * document it collects.
+     */
+    protected boolean prune(IndexSearcher searcher) {
+        return true;
+    }
+
+    /**
+     * Returns whether this query is the given top-level query of a search, or the only
+     * query below it through filtered, budget and parallel queries, which hand the documents
+     * of this query to the collector as they are.
+     */
+    protected boolean isTopLevel(Query topLevel) {
+        Query query = topLevel;
+        while (true) {
+            if (query instanceof FilteredQuery) {
+                query = ((FilteredQuery) query).getQuery();
+            } else if (query instanceof PayloadBudgetQuery) {
+                query = ((PayloadBudgetQuery) query).getQuery();
+            } else if (query instanceof PayloadParallelQuery) {
+                query = ((PayloadParallelQuery) query).getQuery();
+            } else {
+                return query == this;
+            }
+        }
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+        for (Clause clause : clauses) {
+            terms.add(clause.term);
+        }
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("maxScore(");
+        for (int i = 0; i < clauses.size(); i++) {
+            if (i > 0) {
+                buffer.append(' ');
+            }
+            Clause clause = clauses.get(i);
+            if (!clause.term.field().equals(field)) {
+                buffer.append(clause.term.field()).append(':');
+            }
+            buffer.append(clause.term.text()).append(ToStringUtils.boost(clause.boost));
+        }
+        buffer.append(", top=").append(topK).append(')');
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * super.hashCode() + clauses.hashCode()) + groups.hashCode()) + topK;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!super.equals(obj)) {
+            return false;
+        }
+        PayloadMaxScoreQuery other = (PayloadMaxScoreQuery) obj;
+        return topK == other.topK && clauses.equals(other.clauses) && groups.equals(other.groups)
+                && impactsCache == other.impactsCache;
+    }
+
+    /**
+     * A payload term clause of a {@link PayloadMaxScoreQuery}.
+     */
+    public static final class Clause {
+        final Term term;
+        final float boost;
+        final PayloadFunction function;
+        final int group;
+
+        /**
+         * A clause of the root group
+         */
+        public Clause(Term term, float boost, PayloadFunction function) {
+            this(term, boost, function, 0);
+        }
+
+        public Clause(Term term, float boost, PayloadFunction function, int group) {
+            this.term = term;
+            this.boost = boost;
+            this.function = function;
+            this.group = group;
+        }
+
+        public Term getTerm() {
+            return term;
+        }
+
+        public float getBoost() {
+            return boost;
+        }
+
+        public PayloadFunction getFunction() {
+            return function;
+        }
+
+        public int getGroup() {
+            return group;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Clause)) {
+                return false;
+            }
+            Clause other = (Clause) obj;
+            return term.equals(other.term) && Float.floatToIntBits(boost) == Float.floatToIntBits(other.boost)
+                    && function.equals(other.function) && group == other.group;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (31 * term.hashCode() + Float.floatToIntBits(boost)) + function.hashCode()) + group;
+        }
+    }
+
+    /**
+     * A group of clauses and groups of a {@link PayloadMaxScoreQuery}, scored like a boolean
+     * query of optional clauses.
+     */
+    public static final class Group {
+        final int parent;
+        final int maxOverlap;
+        final boolean coordDisabled;
+
+        /**
+         * @param parent index of the parent group, <code>-1</code> for the root
+         * @param maxOverlap number of clauses of the boolean query, coord is computed against
+         * @param coordDisabled whether the boolean query disables coord
+         */
+        public Group(int parent, int maxOverlap, boolean coordDisabled) {
+            this.parent = parent;
+            this.maxOverlap = maxOverlap;
+            this.coordDisabled = coordDisabled;
+        }
+
+        public int getParent() {
+            return parent;
+        }
+
+        public int getMaxOverlap() {
+            return maxOverlap;
+        }
+
+        public boolean isCoordDisabled() {
+            return coordDisabled;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Group)) {
+                return false;
+            }
+            Group other = (Group) obj;
+            return parent == other.parent && maxOverlap == other.maxOverlap && coordDisabled == other.coordDisabled;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * parent + maxOverlap) + (coordDisabled ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return "group(parent=" + parent + ", maxOverlap=" + maxOverlap + (coordDisabled ? ", no coord)" : ")");
+        }
+    }
+
+    /**
+     * The k best scores collected so far, shared by the scorers of all segments.
+     */
+    static final class TopScores {
+        private final float[] heap;
+        private int size;
+        private volatile float threshold = Float.NEGATIVE_INFINITY;
+
+        TopScores(int k) {
+            this.heap = new float[k];
+        }
+
+        /** Scores at or below the threshold cannot enter the top hits. */
+        float threshold() {
+            return threshold;
+        }
+
+        synchronized void offer(float score) {
+            if (size < heap.length) {
+                heap[size++] = score;
+                if (size == heap.length) {
+                    // heapify once full
+                    for (int i = size / 2 - 1; i >= 0; i--) {
+                        siftDown(i);
+                    }
+                    threshold = heap[0];
+                }
+            } else if (score > heap[0]) {
+                heap[0] = score;
+                siftDown(0);
+                threshold = heap[0];
+            }
+        }
+
+        private void siftDown(int i) {
+            final float value = heap[i];
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && heap[child + 1] < heap[child]) {
+                    child++;
+                }
+                if (heap[child] >= value) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = value;
+        }
+    }
+
+    protected class MaxScoreWeight extends Weight {
+        private final Similarity similarity;
+        private final TermContext[] termStates;
+        private final Similarity.SimWeight[] stats;
+        private final ArticlePayloadIBSimilarity[] bounds;
+        private final int[] parents;
+        /** coords[g][overlap] is the coord of group g */
+        private final float[][] coords;
+        /** <code>null</code> if this search must not skip documents */
+        private final TopScores topScores;
+
+        public MaxScoreWeight(IndexSearcher searcher) throws IOException {
+            this.similarity = searcher.getSimilarity();
+            final int size = clauses.size();
+            this.termStates = new TermContext[size];
+            this.stats = new Similarity.SimWeight[size];
+            this.bounds = new ArticlePayloadIBSimilarity[size];
+            for (int i = 0; i < size; i++) {
+                final Term term = clauses.get(i).term;
+                termStates[i] = TermContext.build(searcher.getTopReaderContext(), term);
+                bounds[i] = ArticlePayloadIBSimilarity.forField(similarity, term.field());
+                // bounds are computed from the unwrapped similarity's own stats
+                stats[i] = similarity(i).computeWeight(clauses.get(i).boost,
+                        searcher.collectionStatistics(term.field()),
+                        searcher.termStatistics(term, termStates[i]));
+            }
+            this.parents = new int[groups.size()];
+            this.coords = new float[groups.size()][];
+            boolean boundedCoord = true;
+            for (int g = 0; g < coords.length; g++) {
+                final Group group = groups.get(g);
+                parents[g] = group.parent;
+                coords[g] = new float[group.maxOverlap + 1];
+                for (int overlap = 0; overlap <= group.maxOverlap; overlap++) {
+                    // like BooleanWeight, which does not apply coord to a single clause
+                    coords[g][overlap] = group.coordDisabled || group.maxOverlap == 1 ? 1F
+                            : similarity.coord(overlap, group.maxOverlap);
+                    boundedCoord &= coords[g][overlap] <= 1F;
+                }
+            }
+            this.topScores = boundedCoord && prune(searcher) ? new TopScores(topK) : null;
+        }
+
+        /** Returns the similarity that scores clause <code>i</code> */
+        private Similarity similarity(int i) {
+            return bounds[i] != null ? bounds[i] : similarity;
+        }
+
+        @Override
+        public Query getQuery() {
+            return PayloadMaxScoreQuery.this;
+        }
+
+        @Override
+        public float getValueForNormalization() {
+            float sum = 0;
+            for (Similarity.SimWeight stat : stats) {
+                sum += stat.getValueForNormalization();
+            }
+            return sum * getBoost() * getBoost();
+        }
+
+        @Override
+        public void normalize(float queryNorm, float topLevelBoost) {
+            for (Similarity.SimWeight stat : stats) {
+                stat.normalize(queryNorm, topLevelBoost * getBoost());
+            }
+        }
+
+        private ClauseScorer[] clauseScorers(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            final List<ClauseScorer> scorers = new ArrayList<>();
+            for (int i = 0; i < stats.length; i++) {
+                final Clause clause = clauses.get(i);
+                final TermState state = termStates[i].get(context.ord);
+                if (state == null) {
+                    continue;
+                }
+                final Terms terms = context.reader().terms(clause.term.field());
+                if (terms == null) {
+                    continue;
+                }
+                final TermsEnum termsEnum = terms.iterator(null);
+                termsEnum.seekExact(clause.term.bytes(), state);
+                final Similarity.SimScorer docScorer = similarity(i).simScorer(stats[i], context);
+                PayloadImpacts impacts = null;
+                if (bounds[i] != null && impactsCache != null) {
+                    impacts = impactsCache.get(context.reader(), clause.term, termsEnum, bounds[i], docScorer);
+                }
+                final DocsAndPositionsEnum postings = termsEnum.docsAndPositions(acceptDocs, null,
+                        DocsAndPositionsEnum.FLAG_PAYLOADS);
+                if (postings == null) {
+                    throw new IllegalStateException("field \"" + clause.term.field()
+                            + "\" was indexed without position data; cannot run PayloadMaxScoreQuery (term="
+                            + clause.term.text() + ")");
+                }
+                scorers.add(new ClauseScorer(clause, postings, docScorer, impacts, bounds[i], stats[i]));
+            }
+            return scorers.toArray(new ClauseScorer[scorers.size()]);
+        }
+
+        /**
+         * Scores the plain disjunction, since the caller may not collect every document
+         */
+        @Override
+        public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            final ClauseScorer[] scorers = clauseScorers(context, acceptDocs);
+            if (scorers.length == 0) {
+                return null;
+            }
+            return new MaxScoreScorer(this, scorers, parents, coords, null);
+        }
+
+        /**
+         * Skips the documents that cannot beat the k-th best document collected so far, if
+         * the search allows pruning
+         */
+        @Override
+        public BulkScorer bulkScorer(AtomicReaderContext context, boolean scoreDocsInOrder, Bits acceptDocs)
+                throws IOException {
+            if (topScores == null) {
+                return super.bulkScorer(context, scoreDocsInOrder, acceptDocs);
+            }
+            final ClauseScorer[] scorers = clauseScorers(context, acceptDocs);
+            if (scorers.length == 0) {
+                return null;
+            }
+            return new MaxScoreBulkScorer(new MaxScoreScorer(this, scorers, parents, coords, topScores), topScores);
+        }
+
+        @Override
+        public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
+            // explain every matching clause, regardless of pruning
+            final ComplexExplanation[] sums = new ComplexExplanation[coords.length];
+            final int[] overlaps = new int[coords.length];
+            for (int g = 0; g < sums.length; g++) {
+                sums[g] = new ComplexExplanation(true, 0, "sum of:");
+            }
+            for (ClauseScorer scorer : clauseScorers(context, context.reader().getLiveDocs())) {
+                if (scorer.advance(doc) != doc) {
+                    continue;
+                }
+                ComplexExplanation clauseExpl = new ComplexExplanation();
+                clauseExpl.setDescription("weight(" + scorer.clause.term + " in " + doc + ") ["
+                        + scorer.docScorer.getClass().getSimpleName() + "], result of:");
+                float sloppyFreq = scorer.sloppyFreq();
+                Explanation spanExpl = scorer.docScorer.explain(doc, new Explanation(sloppyFreq, "phraseFreq=" + sloppyFreq));
+                clauseExpl.addDetail(spanExpl);
+                float payloadScore = scorer.payloadScore();
+                clauseExpl.addDetail(new Explanation(payloadScore,
+                        scorer.clause.function.getClass().getSimpleName() + ".docScore()"));
+                clauseExpl.setValue(spanExpl.getValue() * payloadScore);
+                clauseExpl.setMatch(true);
+                final ComplexExplanation sum = sums[scorer.clause.group];
+                sum.addDetail(clauseExpl);
+                sum.setValue(sum.getValue() + clauseExpl.getValue());
+                overlaps[scorer.clause.group]++;
+            }
+            for (int g = coords.length - 1; g > 0; g--) {
+                if (overlaps[g] > 0) {
+                    final Explanation groupExpl = groupExplanation(sums[g], g, overlaps[g]);
+                    final ComplexExplanation parent = sums[parents[g]];
+                    parent.addDetail(groupExpl);
+                    parent.setValue(parent.getValue() + groupExpl.getValue());
+                    overlaps[parents[g]]++;
+                }
+            }
+            if (overlaps[0] == 0) {
+                return new ComplexExplanation(false, 0, "no matching clause");
+            }
+            return groupExplanation(sums[0], 0, overlaps[0]);
+        }
+
+        private Explanation groupExplanation(ComplexExplanation sum, int group, int overlap) {
+            final float coord = coords[group][overlap];
+            if (coord == 1F) {
+                return sum;
+            }
+            final ComplexExplanation result = new ComplexExplanation(true, sum.getValue() * coord, "product of:");
+            result.addDetail(sum);
+            result.addDetail(new Explanation(coord, "coord(" + overlap + "/" + groups.get(group).maxOverlap + ")"));
+            return result;
+        }
+    }
+
+    static final class ClauseScorer {
+        final Clause clause;
+        final DocsAndPositionsEnum postings;
+        final Similarity.SimScorer docScorer;
+        final float slopFactor;
+        /** Upper bound of this clause's score in the segment */
+        final float maxScore;
+        private final PayloadImpacts impacts;
+        private final ArticlePayloadIBSimilarity similarity;
+        private final Similarity.SimWeight stats;
+        private final float[] blockMaxScores;
+        private int block = 0;
+        int doc = -1;
+
+        ClauseScorer(Clause clause, DocsAndPositionsEnum postings, Similarity.SimScorer docScorer,
+                PayloadImpacts impacts, ArticlePayloadIBSimilarity similarity, Similarity.SimWeight stats) {
+            this.clause = clause;
+            this.postings = postings;
+            this.docScorer = docScorer;
+            this.impacts = impacts;
+            this.similarity = similarity;
+            this.stats = stats;
+            // a term span contributes the slop factor of a match of length 1 per occurrence
+            this.slopFactor = docScorer.computeSlopFactor(1);
+            if (impacts != null) {
+                this.maxScore = impacts.maxScore(similarity, stats, slopFactor);
+                this.blockMaxScores = new float[impacts.numBlocks()];
+                Arrays.fill(blockMaxScores, Float.NaN);
+            } else {
+                this.maxScore = Float.POSITIVE_INFINITY;
+                this.blockMaxScores = null;
+            }
+        }
+
+        int advance(int target) throws IOException {
+            return doc = postings.advance(target);
+        }
+
+        float sloppyFreq() throws IOException {
+            return postings.freq() * slopFactor;
+        }
+
+        float payloadScore() throws IOException {
+            return PayloadScores.payloadScore(doc, clause.term.field(), postings, clause.function, docScorer,
+                    similarity != null && similarity.isMissingPayloadsNeutral());
+        }
+
+        float score() throws IOException {
+            return docScorer.score(doc, sloppyFreq()) * payloadScore();
+        }
+
+        /** Upper bound of this clause's score on <code>target</code>, which must not be before the last target. */
+        float blockMaxScore(int target) {
+            if (blockMaxScores == null) {
+                return maxScore;
+            }
+            block = impacts.block(target, block);
+            if (block == blockMaxScores.length) {
+                return 0;
+            }
+            float score = blockMaxScores[block];
+            if (score != score) { // NaN, not computed yet
+                score = impacts.blockMaxScore(block, similarity, stats, slopFactor);
+                blockMaxScores[block] = score;
+            }
+            return score;
+        }
+    }
+
+    static final class MaxScoreScorer extends Scorer {
+        /** Sorted by increasing upper bound */
+        private final ClauseScorer[] clauses;
+        /** boundSums[i] is the sum of the upper bounds of clauses 0..i */
+        private final float[] boundSums;
+        private final int[] parents;
+        private final float[][] coords;
+        /** Scores and number of matching children of the groups for the current candidate */
+        private final float[] groupSums;
+        private final int[] overlaps;
+        /** <code>null</code> to return every matching document */
+        private final TopScores topScores;
+        private final long cost;
+        private int doc = -1;
+        private float score;
+        private int freq;
+
+        MaxScoreScorer(Weight weight, ClauseScorer[] clauses, int[] parents, float[][] coords, TopScores topScores) {
+            super(weight);
+            this.clauses = clauses;
+            this.parents = parents;
+            this.coords = coords;
+            this.groupSums = new float[parents.length];
+            this.overlaps = new int[parents.length];
+            this.topScores = topScores;
+            Arrays.sort(clauses, new Comparator<ClauseScorer>() {
+                @Override
+                public int compare(ClauseScorer o1, ClauseScorer o2) {
+                    return Float.compare(o1.maxScore, o2.maxScore);
+                }
+            });
+            this.boundSums = new float[clauses.length];
+            float sum = 0;
+            long cost = 0;
+            for (int i = 0; i < clauses.length; i++) {
+                sum += clauses[i].maxScore;
+                boundSums[i] = sum;
+                cost += clauses[i].postings.cost();
+            }
+            this.cost = cost;
+        }
+
+        /** Clauses before the returned index cannot produce a competitive hit on their own. */
+        private int firstEssential(float threshold) {
+            int i = 0;
+            while (i < clauses.length && boundSums[i] <= threshold) {
+                i++;
+            }
+            return i;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return advance(doc + 1);
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            while (true) {
+                final float threshold = topScores == null ? Float.NEGATIVE_INFINITY : topScores.threshold();
+                final int firstEssential = firstEssential(threshold);
+                if (firstEssential == clauses.length) {
+                    return doc = NO_MORE_DOCS;
+                }
+                int candidate = NO_MORE_DOCS;
+                for (int i = firstEssential; i < clauses.length; i++) {
+                    ClauseScorer clause = clauses[i];
+                    if (clause.doc < target) {
+                        clause.advance(target);
+                    }
+                    candidate = Math.min(candidate, clause.doc);
+                }
+                if (candidate == NO_MORE_DOCS) {
+                    return doc = NO_MORE_DOCS;
+                }
+                if (competitive(candidate, firstEssential, threshold)) {
+                    return doc = candidate;
+                }
+                target = candidate + 1;
+            }
+        }
+
+        /** Scores the candidate, returns false as soon as it cannot beat the threshold. */
+        private boolean competitive(int candidate, int firstEssential, float threshold) throws IOException {
+            float bound = 0;
+            for (int i = 0; i < clauses.length; i++) {
+                if (i < firstEssential || clauses[i].doc == candidate) {
+                    bound += clauses[i].blockMaxScore(candidate);
+                }
+            }
+            if (bound <= threshold) {
+                return false;
+            }
+            Arrays.fill(groupSums, 0F);
+            Arrays.fill(overlaps, 0);
+            // the plain sum bounds the score, coord is at most 1 when there is a threshold
+            float sum = 0;
+            int matches = 0;
+            for (int i = firstEssential; i < clauses.length; i++) {
+                if (clauses[i].doc == candidate) {
+                    sum += add(clauses[i]);
+                    matches++;
+                }
+            }
+            for (int i = firstEssential - 1; i >= 0; i--) {
+                if (sum + boundSums[i] <= threshold) {
+                    return false;
+                }
+                ClauseScorer clause = clauses[i];
+                if (clause.doc < candidate) {
+                    clause.advance(candidate);
+                }
+                if (clause.doc == candidate) {
+                    sum += add(clause);
+                    matches++;
+                }
+            }
+            final float score = groupScore();
+            if (score <= threshold) {
+                return false;
+            }
+            this.score = score;
+            freq = matches;
+            return true;
+        }
+
+        /** Adds the score of a matching clause to its group and returns it */
+        private float add(ClauseScorer clause) throws IOException {
+            final float score = clause.score();
+            groupSums[clause.clause.group] += score;
+            overlaps[clause.clause.group]++;
+            return score;
+        }
+
+        /** Sums the groups up to the root, applying their coord */
+        private float groupScore() {
+            for (int g = groupSums.length - 1; g > 0; g--) {
+                if (overlaps[g] > 0) {
+                    groupSums[parents[g]] += groupSums[g] * coords[g][overlaps[g]];
+                    overlaps[parents[g]]++;
+                }
+            }
+            return groupSums[0] * coords[0][overlaps[0]];
+        }
+
+        @Override
+        public float score() {
+            return score;
+        }
+
+        @Override
+        public int freq() {
+            return freq;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public long cost() {
+            return cost;
+        }
+    }
+
+    /**
+     * Collects the documents of a {@link MaxScoreScorer} and raises the threshold with the
+     * score of every document after it was collected.
+     */
+    static final class MaxScoreBulkScorer extends BulkScorer {
+        private final MaxScoreScorer scorer;
+        private final TopScores topScores;
+
+        MaxScoreBulkScorer(MaxScoreScorer scorer, TopScores topScores) {
+            this.scorer = scorer;
+            this.topScores = topScores;
+        }
+
+        @Override
+        public boolean score(Collector collector, int max) throws IOException {
+            collector.setScorer(scorer);
+            int doc = scorer.docID();
+            if (doc == -1) {
+                doc = scorer.nextDoc();
+            }
+            while (doc < max) {
+                collector.collect(doc);
+                topScores.offer(scorer.score());
+                doc = scorer.nextDoc();
+            }
+            return doc != DocIdSetIterator.NO_MORE_DOCS;
+        }
+    }
+}
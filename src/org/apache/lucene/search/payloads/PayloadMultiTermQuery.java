@@ -0,0 +1,105 @@
+package org.apache.lucene.search.payloads;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.ArticlePayloadIBSimilarity;
+import org.apache.lucene.util.ToStringUtils;
+
+/**
+ * Expands a prefix, fuzzy or other {@link MultiTermQuery} into payload term clauses with a
+ * {@link PayloadTopTermsRewrite}.
+ *
+ * Rewrites that rank by payload need the field's similarity, which is only known once a
+ * searcher is at hand, so those are left unexpanded by {@link #rewrite(IndexReader)} and
+ * expanded when the weight is created.
+ */
+public class PayloadMultiTermQuery extends Query {
+
+    private final MultiTermQuery query;
+    private final PayloadTopTermsRewrite rewriteMethod;
+
+    public PayloadMultiTermQuery(MultiTermQuery query, PayloadTopTermsRewrite rewriteMethod) {
+        this.query = query;
+        this.rewriteMethod = rewriteMethod;
+        setBoost(query.getBoost());
+    }
+
+    public MultiTermQuery getQuery() {
+        return query;
+    }
+
+    public PayloadTopTermsRewrite getRewriteMethod() {
+        return rewriteMethod;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        if (rewriteMethod.needsSimilarity()) {
+            return this;
+        }
+        return expand(reader, rewriteMethod);
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher) throws IOException {
+        PayloadTopTermsRewrite method = rewriteMethod;
+        if (method.needsSimilarity()) {
+            final ArticlePayloadIBSimilarity similarity = ArticlePayloadIBSimilarity.forField(searcher.getSimilarity(), query.getField());
+            if (similarity != null) {
+                method = method.withSimilarity(similarity);
+            }
+        }
+        return searcher.rewrite(expand(searcher.getIndexReader(), method)).createWeight(searcher);
+    }
+
+    private Query expand(IndexReader reader, PayloadTopTermsRewrite method) throws IOException {
+        final MultiTermQuery expanded = (MultiTermQuery) query.clone();
+        expanded.setBoost(getBoost());
+        expanded.setRewriteMethod(method);
+        return expanded.rewrite(reader);
+    }
+
+    /**
+     * Terms are only known after expansion, see {@link #rewrite(IndexReader)}
+     */
+    @Override
+    public void extractTerms(Set<Term> terms) {
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("payloadExpand(");
+        buffer.append(query.toString(field));
+        buffer.append(", size=").append(rewriteMethod.getSize());
+        buffer.append(", ranking=").append(rewriteMethod.getRanking().name().toLowerCase(Locale.ROOT));
+        buffer.append(')');
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * super.hashCode() + query.hashCode()) + rewriteMethod.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!super.equals(obj)) {
+            return false;
+        }
+        PayloadMultiTermQuery other = (PayloadMultiTermQuery) obj;
+        return query.equals(other.query) && rewriteMethod.equals(other.rewriteMethod);
+    }
+}
@@ -0,0 +1,273 @@
+package org.apache.lucene.search.payloads;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.ToStringUtils;
+
+/**
+ * Matches and scores the documents of a query exactly like the query itself, but creates
+ * the scorers of all segments of the top level reader on several threads as soon as the
+ * first one is asked for. Creating the scorer of a payload query seeks its terms, builds
+ * the per-segment {@link org.apache.lucene.search.similarities.Similarity.SimScorer}s and
+ * may read the payload impacts of its terms, which then overlaps with collecting the
+ * earlier segments on the search thread. At most <code>parallelism</code> tasks create
+ * scorers at a time.
+ *
+ * Only scorers asked for with the live docs of their segment are created ahead, e.g. a
+ * scorer asked for under a random access filter is created on the calling thread. When the
+ * searcher asks for bulk scorers, the bulk scorers of the query are created ahead instead,
+ * so that e.g. the pruning of a {@link PayloadMaxScoreQuery} is kept. Callers that own
+ * collection and want to collect on several threads use a {@link PayloadParallelSearcher}
+ * instead.
+ */
+public class PayloadParallelQuery extends Query {
+
+    private final Query query;
+    private final int parallelism;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param parallelism number of tasks creating scorers at a time at most
+     * @param pool pool the scorers are created on
+     */
+    public PayloadParallelQuery(Query query, int parallelism, ForkJoinPool pool) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be > 0, got " + parallelism);
+        }
+        this.query = query;
+        this.parallelism = parallelism;
+        this.pool = pool;
+    }
+
+    public Query getQuery() {
+        return query;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        final Query rewritten = query.rewrite(reader);
+        if (rewritten == query) {
+            return this;
+        }
+        final PayloadParallelQuery copy = new PayloadParallelQuery(rewritten, parallelism, pool);
+        copy.setBoost(getBoost());
+        return copy;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher) throws IOException {
+        return new ParallelWeight(query.createWeight(searcher));
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+        query.extractTerms(terms);
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("payloadParallel(");
+        buffer.append(query.toString(field));
+        buffer.append(", parallelism=").append(parallelism);
+        buffer.append(')');
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * super.hashCode() + query.hashCode()) + parallelism;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!super.equals(obj)) {
+            return false;
+        }
+        PayloadParallelQuery other = (PayloadParallelQuery) obj;
+        return parallelism == other.parallelism && query.equals(other.query);
+    }
+
+    final class ParallelWeight extends Weight {
+        private final Weight weight;
+        // the top level context the scorers were created ahead for, and one task per group of its leaves
+        private IndexReaderContext topContext;
+        private List<ScorerTask> tasks;
+
+        ParallelWeight(Weight weight) {
+            this.weight = weight;
+        }
+
+        @Override
+        public Query getQuery() {
+            return PayloadParallelQuery.this;
+        }
+
+        @Override
+        public float getValueForNormalization() throws IOException {
+            final float boost = getBoost();
+            return weight.getValueForNormalization() * boost * boost;
+        }
+
+        @Override
+        public void normalize(float norm, float topLevelBoost) {
+            weight.normalize(norm, topLevelBoost * getBoost());
+        }
+
+        @Override
+        public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            if (acceptDocs != context.reader().getLiveDocs()) {
+                return weight.scorer(context, acceptDocs);
+            }
+            final ScorerTask task = task(context, false, false);
+            return task == null ? weight.scorer(context, acceptDocs) : (Scorer) task.take(context);
+        }
+
+        @Override
+        public BulkScorer bulkScorer(AtomicReaderContext context, boolean scoreDocsInOrder, Bits acceptDocs)
+                throws IOException {
+            if (acceptDocs != context.reader().getLiveDocs()) {
+                return weight.bulkScorer(context, scoreDocsInOrder, acceptDocs);
+            }
+            final ScorerTask task = task(context, true, scoreDocsInOrder);
+            return task == null ? weight.bulkScorer(context, scoreDocsInOrder, acceptDocs)
+                    : (BulkScorer) task.take(context);
+        }
+
+        @Override
+        public boolean scoresDocsOutOfOrder() {
+            return weight.scoresDocsOutOfOrder();
+        }
+
+        /**
+         * Returns the task creating the scorer of the given leaf, creating the scorers of
+         * all leaves of its top level reader on the first call. Scorers of another kind
+         * than the first ones asked for are not created ahead.
+         */
+        private synchronized ScorerTask task(AtomicReaderContext context, boolean bulk, boolean scoreDocsInOrder) {
+            final IndexReaderContext top = ReaderUtil.getTopLevelContext(context);
+            if (tasks == null) {
+                topContext = top;
+                final List<AtomicReaderContext> leaves = top.leaves();
+                final int numTasks = Math.max(1, Math.min(parallelism, leaves.size()));
+                tasks = new ArrayList<>(numTasks);
+                // contiguous groups of leaves, so that the first leaves are ready first
+                for (int i = 0; i < numTasks; i++) {
+                    int from = (int) ((long) leaves.size() * i / numTasks);
+                    int to = (int) ((long) leaves.size() * (i + 1) / numTasks);
+                    final ScorerTask task = new ScorerTask(leaves.subList(from, to), bulk, scoreDocsInOrder);
+                    tasks.add(task);
+                    pool.execute(task);
+                }
+            } else if (top != topContext || !tasks.get(0).creates(bulk, scoreDocsInOrder)) {
+                return null;
+            }
+            for (ScorerTask task : tasks) {
+                if (task.contains(context)) {
+                    return task;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
+            return weight.explain(context, doc);
+        }
+
+        /**
+         * Creates the scorers, or bulk scorers, of a group of leaves with their live docs,
+         * each handed out once
+         */
+        final class ScorerTask extends RecursiveTask<Object[]> {
+            private final List<AtomicReaderContext> leaves;
+            private final boolean bulk;
+            private final boolean scoreDocsInOrder;
+            private final boolean[] taken;
+
+            ScorerTask(List<AtomicReaderContext> leaves, boolean bulk, boolean scoreDocsInOrder) {
+                this.leaves = leaves;
+                this.bulk = bulk;
+                this.scoreDocsInOrder = scoreDocsInOrder;
+                this.taken = new boolean[leaves.size()];
+            }
+
+            boolean contains(AtomicReaderContext context) {
+                return !leaves.isEmpty() && context.ord >= leaves.get(0).ord
+                        && context.ord <= leaves.get(leaves.size() - 1).ord;
+            }
+
+            boolean creates(boolean bulk, boolean scoreDocsInOrder) {
+                return this.bulk == bulk && (!bulk || this.scoreDocsInOrder == scoreDocsInOrder);
+            }
+
+            @Override
+            protected Object[] compute() {
+                final Object[] scorers = new Object[leaves.size()];
+                try {
+                    for (int i = 0; i < scorers.length; i++) {
+                        scorers[i] = create(leaves.get(i));
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return scorers;
+            }
+
+            private Object create(AtomicReaderContext leaf) throws IOException {
+                final Bits liveDocs = leaf.reader().getLiveDocs();
+                return bulk ? weight.bulkScorer(leaf, scoreDocsInOrder, liveDocs) : weight.scorer(leaf, liveDocs);
+            }
+
+            /**
+             * Returns the scorer created ahead for the leaf, or a new one if it was taken
+             * already, e.g. by a second pass over the same leaf
+             */
+            Object take(AtomicReaderContext context) throws IOException {
+                final int index = context.ord - leaves.get(0).ord;
+                synchronized (this) {
+                    if (taken[index]) {
+                        return create(context);
+                    }
+                    taken[index] = true;
+                }
+                try {
+                    return join()[index];
+                } catch (RuntimeException e) {
+                    // join rethrows the IOException of the task wrapped, possibly more than once
+                    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                        if (cause instanceof IOException) {
+                            throw (IOException) cause;
+                        }
+                    }
+                    throw e;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.apache.lucene.search.payloads;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Searches the segments of a reader for the top hits of one query on several threads of a
+ * {@link ForkJoinPool}. The reader is cut into slices, whole segments or doc id ranges of
+ * segments larger than <code>minSliceDocs</code>, and the slices are dealt to at most
+ * <code>parallelism</code> tasks, so that one heavy query cannot occupy the whole pool.
+ * Each task creates the scorers of its slices, which includes the per-segment
+ * {@link org.apache.lucene.search.similarities.Similarity.SimScorer}s, and collects its
+ * own top hits; the calling thread runs the first task itself and merges the results.
+ *
+ * Hits and their order are the same as those of {@link IndexSearcher#search(Query, int)},
+ * ties are broken by doc id.
+ */
+public class PayloadParallelSearcher {
+
+    private final IndexSearcher searcher;
+    private final ForkJoinPool pool;
+    private final int minSliceDocs;
+
+    /**
+     * @param minSliceDocs segments with more documents are split into doc id ranges of about
+     *                     this many documents
+     */
+    public PayloadParallelSearcher(IndexSearcher searcher, ForkJoinPool pool, int minSliceDocs) {
+        if (minSliceDocs <= 0) {
+            throw new IllegalArgumentException("minSliceDocs must be > 0, got " + minSliceDocs);
+        }
+        this.searcher = searcher;
+        this.pool = pool;
+        this.minSliceDocs = minSliceDocs;
+    }
+
+    /**
+     * Returns the top <code>n</code> hits of <code>query</code>, searched by at most
+     * <code>parallelism</code> tasks at a time
+     */
+    public TopDocs search(Query query, int n, int parallelism) throws IOException {
+        return search(searcher.createNormalizedWeight(query), n, parallelism);
+    }
+
+    /**
+     * Returns the top <code>n</code> hits of a normalized weight, see {@link #search(Query, int, int)}
+     */
+    public TopDocs search(Weight weight, int n, int parallelism) throws IOException {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be > 0, got " + parallelism);
+        }
+        n = Math.max(1, Math.min(n, searcher.getIndexReader().maxDoc()));
+        final List<Slice> slices = slices();
+        final int numTasks = Math.max(1, Math.min(parallelism, slices.size()));
+        // contiguous groups of slices, so that task order is doc id order
+        final List<SliceTask> tasks = new ArrayList<>(numTasks);
+        for (int i = 0; i < numTasks; i++) {
+            int from = (int) ((long) slices.size() * i / numTasks);
+            int to = (int) ((long) slices.size() * (i + 1) / numTasks);
+            tasks.add(new SliceTask(weight, slices.subList(from, to), n));
+        }
+        for (int i = 1; i < tasks.size(); i++) {
+            pool.execute(tasks.get(i));
+        }
+        final TopDocs[] results = new TopDocs[tasks.size()];
+        try {
+            results[0] = tasks.get(0).collect();
+            for (int i = 1; i < tasks.size(); i++) {
+                results[i] = tasks.get(i).join();
+            }
+        } catch (IOException | RuntimeException e) {
+            cancel(tasks);
+            // join rethrows the IOException of a task wrapped, possibly more than once
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw e;
+        }
+        return TopDocs.merge(null, n, results);
+    }
+
+    private static void cancel(List<SliceTask> tasks) {
+        for (ForkJoinTask<?> task : tasks) {
+            task.cancel(false);
+        }
+    }
+
+    private List<Slice> slices() {
+        final List<Slice> slices = new ArrayList<>();
+        for (AtomicReaderContext context : searcher.getIndexReader().leaves()) {
+            final int maxDoc = context.reader().maxDoc();
+            final int numRanges = Math.max(1, maxDoc / minSliceDocs);
+            for (int i = 0; i < numRanges; i++) {
+                slices.add(new Slice(context, (int) ((long) maxDoc * i / numRanges),
+                        (int) ((long) maxDoc * (i + 1) / numRanges)));
+            }
+        }
+        return slices;
+    }
+
+    /**
+     * The documents [<code>from</code>, <code>to</code>) of a segment
+     */
+    private static final class Slice {
+        final AtomicReaderContext context;
+        final int from;
+        final int to;
+
+        Slice(AtomicReaderContext context, int from, int to) {
+            this.context = context;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private static final class SliceTask extends RecursiveTask<TopDocs> {
+        private final Weight weight;
+        private final List<Slice> slices;
+        private final int n;
+
+        SliceTask(Weight weight, List<Slice> slices, int n) {
+            this.weight = weight;
+            this.slices = slices;
+            this.n = n;
+        }
+
+        @Override
+        protected TopDocs compute() {
+            try {
+                return collect();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        TopDocs collect() throws IOException {
+            final TopScoreDocCollector collector = TopScoreDocCollector.create(n, true);
+            for (Slice slice : slices) {
+                // scorers are not thread safe, every slice gets its own
+                final Scorer scorer = weight.scorer(slice.context, slice.context.reader().getLiveDocs());
+                if (scorer == null) {
+                    continue;
+                }
+                collector.setNextReader(slice.context);
+                collector.setScorer(scorer);
+                int doc = slice.from == 0 ? scorer.nextDoc() : scorer.advance(slice.from);
+                while (doc < slice.to && doc != DocIdSetIterator.NO_MORE_DOCS) {
+                    collector.collect(doc);
+                    doc = scorer.nextDoc();
+                }
+            }
+            return collector.topDocs();
+        }
+    }
+}
@@ -0,0 +1,536 @@
+package org.apache.lucene.search.payloads;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.ComplexExplanation;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.ArticlePayloadIBSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.ToStringUtils;
+
+/**
+ * Scores the terms of a phrase in one field like an ordered {@link PayloadNearQuery} over
+ * span term clauses, without span objects. On fields that count missing payloads as
+ * neutral, positions without a payload are given a factor of 1 like in a
+ * {@link SparsePayloadTermQuery}. Documents are intersected on the rarest term first, and
+ * positions of the other terms are read only as far as the matches need them. A match is
+ * the terms in order with at most <code>slop</code> other positions in between, found and
+ * shrunk like {@link org.apache.lucene.search.spans.NearSpansOrdered} does, so both find
+ * the same matches.
+ *
+ * Every match adds its slop factor to the frequency, read from a table computed once per
+ * segment: by default the similarity's
+ * {@link Similarity.SimScorer#computeSlopFactor(int) slop factor} of the match length, or
+ * with a <code>slopDecay</code> in (0, 1] the factor of an exact match times
+ * <code>slopDecay</code> per position of slop. The payloads of the matched positions are
+ * combined by the {@link PayloadFunction}.
+ *
+ * With <code>maxMatches</code> &gt; 0 a document stops after its first
+ * <code>maxMatches</code> matches; with <code>bestMatchOnly</code> only the match of least
+ * slop is scored, and a document stops at its first exact match.
+ */
+public class PayloadPhraseQuery extends Query {
+
+    private final Term[] terms;
+    private final int slop;
+    private final PayloadFunction function;
+    private final float slopDecay;
+    private final int maxMatches;
+    private final boolean bestMatchOnly;
+
+    /**
+     * @param slopDecay factor per position of slop, or <code>0</code> for the similarity's slop factors
+     * @param maxMatches matches scored per document at most, <code>0</code> for all
+     * @param bestMatchOnly whether only the match of least slop of a document is scored
+     */
+    public PayloadPhraseQuery(Term[] terms, int slop, PayloadFunction function, float slopDecay, int maxMatches,
+            boolean bestMatchOnly) {
+        if (terms.length == 0) {
+            throw new IllegalArgumentException("a phrase needs at least one term");
+        }
+        for (Term term : terms) {
+            if (!term.field().equals(terms[0].field())) {
+                throw new IllegalArgumentException("all terms of a phrase must be in the same field, got ["
+                        + terms[0].field() + "] and [" + term.field() + "]");
+            }
+        }
+        if (slop < 0) {
+            throw new IllegalArgumentException("slop must be >= 0, got " + slop);
+        }
+        if (slopDecay < 0F || slopDecay > 1F) {
+            throw new IllegalArgumentException("slopDecay must be in [0, 1], got " + slopDecay);
+        }
+        if (maxMatches < 0) {
+            throw new IllegalArgumentException("maxMatches must be >= 0, got " + maxMatches);
+        }
+        this.terms = terms.clone();
+        this.slop = slop;
+        this.function = function;
+        this.slopDecay = slopDecay;
+        this.maxMatches = maxMatches;
+        this.bestMatchOnly = bestMatchOnly;
+    }
+
+    public Term[] getTerms() {
+        return terms.clone();
+    }
+
+    public String getField() {
+        return terms[0].field();
+    }
+
+    public int getSlop() {
+        return slop;
+    }
+
+    public PayloadFunction getFunction() {
+        return function;
+    }
+
+    public float getSlopDecay() {
+        return slopDecay;
+    }
+
+    public int getMaxMatches() {
+        return maxMatches;
+    }
+
+    public boolean isBestMatchOnly() {
+        return bestMatchOnly;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher) throws IOException {
+        return new PayloadPhraseWeight(searcher);
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+        terms.addAll(Arrays.asList(this.terms));
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("payloadPhrase(");
+        if (!getField().equals(field)) {
+            buffer.append(getField()).append(':');
+        }
+        buffer.append('"');
+        for (int i = 0; i < terms.length; i++) {
+            if (i > 0) {
+                buffer.append(' ');
+            }
+            buffer.append(terms[i].text());
+        }
+        buffer.append('"');
+        if (slop != 0) {
+            buffer.append('~').append(slop);
+        }
+        if (slopDecay > 0F) {
+            buffer.append(", decay=").append(slopDecay);
+        }
+        if (maxMatches > 0) {
+            buffer.append(", maxMatches=").append(maxMatches);
+        }
+        if (bestMatchOnly) {
+            buffer.append(", best");
+        }
+        buffer.append(')');
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 31 * super.hashCode() + Arrays.hashCode(terms);
+        result = 31 * result + slop;
+        result = 31 * result + function.hashCode();
+        result = 31 * result + Float.floatToIntBits(slopDecay);
+        result = 31 * result + maxMatches;
+        return 31 * result + (bestMatchOnly ? 1 : 0);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!super.equals(obj)) {
+            return false;
+        }
+        PayloadPhraseQuery other = (PayloadPhraseQuery) obj;
+        return slop == other.slop && Float.floatToIntBits(slopDecay) == Float.floatToIntBits(other.slopDecay)
+                && maxMatches == other.maxMatches && bestMatchOnly == other.bestMatchOnly
+                && Arrays.equals(terms, other.terms) && function.equals(other.function);
+    }
+
+    protected class PayloadPhraseWeight extends Weight {
+        private final Similarity similarity;
+        private final Similarity.SimWeight stats;
+        private final TermContext[] termStates;
+
+        public PayloadPhraseWeight(IndexSearcher searcher) throws IOException {
+            this.similarity = searcher.getSimilarity();
+            final IndexReaderContext context = searcher.getTopReaderContext();
+            this.termStates = new TermContext[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                termStates[i] = TermContext.build(context, terms[i]);
+            }
+            // like a span weight, a term that occurs twice in the phrase is weighted once
+            final Set<Term> uniqueTerms = new TreeSet<>(Arrays.asList(terms));
+            final TermStatistics[] termStats = new TermStatistics[uniqueTerms.size()];
+            int i = 0;
+            for (Term term : uniqueTerms) {
+                termStats[i++] = searcher.termStatistics(term, termStates[Arrays.asList(terms).indexOf(term)]);
+            }
+            this.stats = similarity.computeWeight(getBoost(), searcher.collectionStatistics(getField()), termStats);
+        }
+
+        @Override
+        public Query getQuery() {
+            return PayloadPhraseQuery.this;
+        }
+
+        @Override
+        public float getValueForNormalization() {
+            return stats.getValueForNormalization();
+        }
+
+        @Override
+        public void normalize(float queryNorm, float topLevelBoost) {
+            stats.normalize(queryNorm, topLevelBoost);
+        }
+
+        @Override
+        public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            final Terms fieldTerms = context.reader().terms(getField());
+            if (fieldTerms == null) {
+                return null;
+            }
+            final TermsEnum termsEnum = fieldTerms.iterator(null);
+            final TermPositions[] positions = new TermPositions[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                final TermState state = termStates[i].get(context.ord);
+                if (state == null) {
+                    // a term is missing from the segment, no document matches
+                    return null;
+                }
+                termsEnum.seekExact(terms[i].bytes(), state);
+                final DocsAndPositionsEnum postings = termsEnum.docsAndPositions(acceptDocs, null,
+                        DocsAndPositionsEnum.FLAG_PAYLOADS);
+                if (postings == null) {
+                    throw new IllegalStateException("field \"" + getField()
+                            + "\" was indexed without position data; cannot run PayloadPhraseQuery (term="
+                            + terms[i].text() + ")");
+                }
+                positions[i] = new TermPositions(postings, termsEnum.docFreq());
+            }
+            return new PayloadPhraseScorer(this, positions, similarity.simScorer(stats, context),
+                    ArticlePayloadIBSimilarity.missingPayloadsNeutral(similarity, getField()));
+        }
+
+        @Override
+        public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
+            PayloadPhraseScorer scorer = (PayloadPhraseScorer) scorer(context, context.reader().getLiveDocs());
+            if (scorer != null && scorer.advance(doc) == doc) {
+                ComplexExplanation result = new ComplexExplanation();
+                result.setDescription("weight(" + getQuery() + " in " + doc + ") ["
+                        + similarity.getClass().getSimpleName() + "], result of:");
+                Explanation freq = new Explanation(scorer.sloppyFreq, "phraseFreq=" + scorer.sloppyFreq
+                        + " of " + scorer.matches + " matches");
+                Explanation phraseExpl = scorer.docScorer.explain(doc, freq);
+                result.addDetail(phraseExpl);
+                Explanation payloadExpl = function.explain(doc, getField(), scorer.payloadsSeen, scorer.payloadScore);
+                result.addDetail(payloadExpl);
+                result.setValue(phraseExpl.getValue() * payloadExpl.getValue());
+                result.setMatch(true);
+                return result;
+            }
+            return new ComplexExplanation(false, 0.0f, "no matching phrase");
+        }
+    }
+
+    /**
+     * The positions and payloads of a term in the current document, read from the postings
+     * on demand and kept so that a match can look back at them
+     */
+    static final class TermPositions {
+        static final int END = Integer.MAX_VALUE;
+
+        final DocsAndPositionsEnum postings;
+        final int docFreq;
+        private int[] positions = new int[8];
+        // payload i is bytes[payloadStarts[i], payloadStarts[i + 1]), missing if payloadMissing[i]
+        private int[] payloadStarts = new int[9];
+        private boolean[] payloadMissing = new boolean[8];
+        private byte[] bytes = new byte[32];
+        private int freq;
+        private int read;
+
+        TermPositions(DocsAndPositionsEnum postings, int docFreq) {
+            this.postings = postings;
+            this.docFreq = docFreq;
+        }
+
+        void reset() throws IOException {
+            freq = postings.freq();
+            read = 0;
+        }
+
+        /**
+         * Returns the position at <code>index</code> in the document, or {@link #END}
+         */
+        int position(int index) throws IOException {
+            while (read <= index) {
+                if (read == freq) {
+                    return END;
+                }
+                readNext();
+            }
+            return positions[index];
+        }
+
+        private void readNext() throws IOException {
+            if (read == positions.length) {
+                final int size = ArrayUtil.oversize(read + 1, 4);
+                positions = Arrays.copyOf(positions, size);
+                payloadMissing = Arrays.copyOf(payloadMissing, size);
+                payloadStarts = Arrays.copyOf(payloadStarts, size + 1);
+            }
+            positions[read] = postings.nextPosition();
+            final BytesRef payload = postings.getPayload();
+            final int start = payloadStarts[read];
+            payloadMissing[read] = payload == null;
+            if (payload != null) {
+                bytes = ArrayUtil.grow(bytes, start + payload.length);
+                System.arraycopy(payload.bytes, payload.offset, bytes, start, payload.length);
+                payloadStarts[read + 1] = start + payload.length;
+            } else {
+                payloadStarts[read + 1] = start;
+            }
+            read++;
+        }
+
+        /**
+         * Points <code>scratch</code> at the payload of a position read already and returns
+         * it, or returns <code>null</code> if the position has none
+         */
+        BytesRef payload(int index, BytesRef scratch) {
+            if (payloadMissing[index]) {
+                return null;
+            }
+            scratch.bytes = bytes;
+            scratch.offset = payloadStarts[index];
+            scratch.length = payloadStarts[index + 1] - scratch.offset;
+            return scratch;
+        }
+    }
+
+    final class PayloadPhraseScorer extends Scorer {
+        // phrase order
+        private final TermPositions[] positions;
+        // rarest first
+        private final TermPositions[] byDocFreq;
+        final Similarity.SimScorer docScorer;
+        private final boolean missingNeutral;
+        private final String field;
+        // slop factors of matches by their slop
+        private final float[] slopFactors;
+        // position index of every term in the match being built, and of the best match
+        private final int[] indexes;
+        private final int[] bestIndexes;
+        private final BytesRef scratch = new BytesRef();
+        private int doc = -1;
+        float sloppyFreq;
+        int matches;
+        float payloadScore;
+        int payloadsSeen;
+
+        PayloadPhraseScorer(Weight weight, TermPositions[] positions, Similarity.SimScorer docScorer,
+                boolean missingNeutral) {
+            super(weight);
+            this.positions = positions;
+            this.byDocFreq = positions.clone();
+            Arrays.sort(byDocFreq, new Comparator<TermPositions>() {
+                @Override
+                public int compare(TermPositions a, TermPositions b) {
+                    return Integer.compare(a.docFreq, b.docFreq);
+                }
+            });
+            this.docScorer = docScorer;
+            this.missingNeutral = missingNeutral;
+            this.field = getField();
+            this.slopFactors = new float[slop + 1];
+            final float exact = docScorer.computeSlopFactor(positions.length);
+            for (int s = 0; s <= slop; s++) {
+                slopFactors[s] = slopDecay > 0F
+                        ? exact * (float) Math.pow(slopDecay, s)
+                        : docScorer.computeSlopFactor(positions.length + s);
+            }
+            this.indexes = new int[positions.length];
+            this.bestIndexes = new int[positions.length];
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return doNext(byDocFreq[0].postings.nextDoc());
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            return doNext(byDocFreq[0].postings.advance(target));
+        }
+
+        /**
+         * Moves the other terms to the candidate of the rarest one until all are on the same
+         * document and the document has a match
+         */
+        private int doNext(int candidate) throws IOException {
+            outer:
+            while (candidate != DocIdSetIterator.NO_MORE_DOCS) {
+                for (int i = 1; i < byDocFreq.length; i++) {
+                    final DocsAndPositionsEnum postings = byDocFreq[i].postings;
+                    int other = postings.docID();
+                    if (other < candidate) {
+                        other = postings.advance(candidate);
+                    }
+                    if (other > candidate) {
+                        candidate = byDocFreq[0].postings.advance(other);
+                        continue outer;
+                    }
+                }
+                doc = candidate;
+                if (matchDoc()) {
+                    return doc;
+                }
+                candidate = byDocFreq[0].postings.nextDoc();
+            }
+            return doc = DocIdSetIterator.NO_MORE_DOCS;
+        }
+
+        /**
+         * Finds the matches of the current document, summing their slop factors and payloads
+         */
+        private boolean matchDoc() throws IOException {
+            for (TermPositions term : positions) {
+                term.reset();
+            }
+            Arrays.fill(indexes, 0);
+            sloppyFreq = 0F;
+            matches = 0;
+            payloadScore = 0F;
+            payloadsSeen = 0;
+            final int last = positions.length - 1;
+            int bestSlop = Integer.MAX_VALUE;
+            while (positions[0].position(indexes[0]) != TermPositions.END) {
+                // stretch: every term after the previous one
+                int previous = positions[0].position(indexes[0]);
+                for (int i = 1; i <= last; i++) {
+                    int position = positions[i].position(indexes[i]);
+                    while (position <= previous) {
+                        position = positions[i].position(++indexes[i]);
+                    }
+                    if (position == TermPositions.END) {
+                        // a term has no position left after the previous one, no match follows
+                        return finish(bestSlop);
+                    }
+                    previous = position;
+                }
+                // shrink: every term at its last position before the next term. Unlike the
+                // spans, the positions are not moved past the match: the next stretch skips
+                // them, since no position of a term lies between its match and the next term's
+                for (int i = last - 1; i >= 0; i--) {
+                    final int next = positions[i + 1].position(indexes[i + 1]);
+                    while (positions[i].position(indexes[i] + 1) < next) {
+                        indexes[i]++;
+                    }
+                }
+                final int matchSlop = positions[last].position(indexes[last])
+                        - positions[0].position(indexes[0]) - last;
+                if (matchSlop <= slop) {
+                    if (bestMatchOnly) {
+                        if (matchSlop < bestSlop) {
+                            bestSlop = matchSlop;
+                            System.arraycopy(indexes, 0, bestIndexes, 0, indexes.length);
+                            if (matchSlop == 0) {
+                                break;
+                            }
+                        }
+                    } else {
+                        addMatch(indexes, matchSlop);
+                        if (matches == maxMatches) {
+                            break;
+                        }
+                    }
+                }
+                indexes[0]++;
+            }
+            return finish(bestSlop);
+        }
+
+        private boolean finish(int bestSlop) throws IOException {
+            if (bestMatchOnly && bestSlop != Integer.MAX_VALUE) {
+                addMatch(bestIndexes, bestSlop);
+            }
+            return matches > 0;
+        }
+
+        private void addMatch(int[] indexes, int matchSlop) throws IOException {
+            sloppyFreq += slopFactors[matchSlop];
+            matches++;
+            final int start = positions[0].position(indexes[0]);
+            final int end = positions[positions.length - 1].position(indexes[positions.length - 1]) + 1;
+            for (int i = 0; i < positions.length; i++) {
+                final BytesRef payload = positions[i].payload(indexes[i], scratch);
+                // positions without a payload are skipped unless the field counts them as neutral
+                if (payload != null || missingNeutral) {
+                    payloadScore = function.currentScore(doc, field, start, end, payloadsSeen, payloadScore,
+                            docScorer.computePayloadFactor(doc, start, end, payload));
+                    payloadsSeen++;
+                }
+            }
+        }
+
+        @Override
+        public float score() throws IOException {
+            return docScorer.score(doc, sloppyFreq) * function.docScore(doc, field, payloadsSeen, payloadScore);
+        }
+
+        @Override
+        public int freq() {
+            return matches;
+        }
+
+        @Override
+        public long cost() {
+            return byDocFreq[0].postings.cost();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package org.apache.lucene.search.payloads;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Estimates the work a query does before it runs, in postings entries read: one per
+ * document for terms scored without positions, one per document and position for terms
+ * that read positions and payloads. Boolean queries cost the sum of their clauses, span
+ * near queries additionally pay for their slop since sloppy matching revisits candidate
+ * windows, and multi term queries cost the terms they expand to (at most the expansion
+ * size of a {@link PayloadMultiTermQuery}). Queries the model does not know cost one
+ * entry per document of the index.
+ *
+ * The estimate only reads the terms dictionary, never postings.
+ */
+public final class PayloadQueryCost {
+
+    /** Terms of a plain multi term query counted at most, per segment */
+    private static final int MAX_EXPANSION_TERMS = 1024;
+
+    private PayloadQueryCost() {
+    }
+
+    public static long estimate(IndexReader reader, Query query) throws IOException {
+        if (query instanceof SpanTermQuery) {
+            return positionsCost(reader, ((SpanTermQuery) query).getTerm());
+        }
+        if (query instanceof TermQuery) {
+            return reader.docFreq(((TermQuery) query).getTerm());
+        }
+        if (query instanceof SpanNearQuery) {
+            final SpanNearQuery near = (SpanNearQuery) query;
+            long cost = 0;
+            for (SpanQuery clause : near.getClauses()) {
+                cost = add(cost, estimate(reader, clause));
+            }
+            return multiply(cost, slopFactor(near.getSlop()));
+        }
+        if (query instanceof SpanOrQuery) {
+            long cost = 0;
+            for (SpanQuery clause : ((SpanOrQuery) query).getClauses()) {
+                cost = add(cost, estimate(reader, clause));
+            }
+            return cost;
+        }
+        if (query instanceof PayloadPhraseQuery) {
+            final PayloadPhraseQuery phrase = (PayloadPhraseQuery) query;
+            long cost = 0;
+            for (Term term : phrase.getTerms()) {
+                cost = add(cost, positionsCost(reader, term));
+            }
+            return multiply(cost, slopFactor(phrase.getSlop()));
+        }
+        if (query instanceof PhraseQuery) {
+            final PhraseQuery phrase = (PhraseQuery) query;
+            long cost = 0;
+            for (Term term : phrase.getTerms()) {
+                cost = add(cost, positionsCost(reader, term));
+            }
+            return multiply(cost, slopFactor(phrase.getSlop()));
+        }
+        if (query instanceof BooleanQuery) {
+            long cost = 0;
+            for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                cost = add(cost, estimate(reader, clause.getQuery()));
+            }
+            return cost;
+        }
+        if (query instanceof ConstantScoreQuery && ((ConstantScoreQuery) query).getQuery() != null) {
+            return estimate(reader, ((ConstantScoreQuery) query).getQuery());
+        }
+        if (query instanceof PayloadMultiTermQuery) {
+            final PayloadMultiTermQuery multiTerm = (PayloadMultiTermQuery) query;
+            return expansionCost(reader, multiTerm.getQuery(), multiTerm.getRewriteMethod().getSize(), true);
+        }
+        if (query instanceof MultiTermQuery) {
+            return expansionCost(reader, (MultiTermQuery) query, MAX_EXPANSION_TERMS, false);
+        }
+        if (query instanceof CombinedFieldPayloadTermQuery) {
+            final CombinedFieldPayloadTermQuery combined = (CombinedFieldPayloadTermQuery) query;
+            long cost = 0;
+            for (Map.Entry<String, Float> field : combined.getFieldWeights().entrySet()) {
+                cost = add(cost, positionsCost(reader, new Term(field.getKey(), combined.getBytes())));
+            }
+            return cost;
+        }
+        if (query instanceof PayloadMaxScoreQuery) {
+            long cost = 0;
+            for (PayloadMaxScoreQuery.Clause clause : ((PayloadMaxScoreQuery) query).getClauses()) {
+                cost = add(cost, positionsCost(reader, clause.getTerm()));
+            }
+            return cost;
+        }
+        if (query instanceof PayloadRescoreQuery) {
+            final PayloadRescoreQuery rescore = (PayloadRescoreQuery) query;
+            return add(estimate(reader, rescore.getFirstPass()), estimate(reader, rescore.getPayloadQuery()));
+        }
+        if (query instanceof MappedPayloadTermQuery) {
+            return reader.docFreq(((MappedPayloadTermQuery) query).getTerm());
+        }
+        if (query instanceof AveragePayloadTermQuery) {
+            return reader.docFreq(((AveragePayloadTermQuery) query).getTerm());
+        }
+        return reader.maxDoc();
+    }
+
+    /**
+     * Documents plus positions of a term, falling back to twice the documents if the
+     * codec does not record total term frequencies
+     */
+    private static long positionsCost(IndexReader reader, Term term) throws IOException {
+        final long docFreq = reader.docFreq(term);
+        final long totalTermFreq = reader.totalTermFreq(term);
+        return add(docFreq, totalTermFreq < 0 ? docFreq : totalTermFreq);
+    }
+
+    private static long expansionCost(IndexReader reader, MultiTermQuery query, int maxTerms, boolean positions)
+            throws IOException {
+        final AttributeSource attributes = new AttributeSource();
+        long cost = 0;
+        for (AtomicReaderContext context : reader.leaves()) {
+            final Terms terms = context.reader().terms(query.getField());
+            if (terms == null) {
+                continue;
+            }
+            final TermsEnum termsEnum = new CostRewrite().termsEnum(query, terms, attributes);
+            int count = 0;
+            BytesRef bytes;
+            while (count < maxTerms && (bytes = termsEnum.next()) != null) {
+                final long docFreq = termsEnum.docFreq();
+                final long totalTermFreq = termsEnum.totalTermFreq();
+                cost = add(cost, positions ? add(docFreq, totalTermFreq < 0 ? docFreq : totalTermFreq) : docFreq);
+                count++;
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Sloppy matching revisits candidate windows, roughly once per doubling of the slop
+     */
+    private static long slopFactor(int slop) {
+        return 1 + (32 - Integer.numberOfLeadingZeros(Math.max(slop, 0)));
+    }
+
+    private static long add(long a, long b) {
+        final long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    private static long multiply(long a, long b) {
+        return a > Long.MAX_VALUE / b ? Long.MAX_VALUE : a * b;
+    }
+
+    /**
+     * Gives access to the terms enum of a multi term query without rewriting it
+     */
+    private static final class CostRewrite extends MultiTermQuery.RewriteMethod {
+        TermsEnum termsEnum(MultiTermQuery query, Terms terms, AttributeSource attributes) throws IOException {
+            return getTermsEnum(query, terms, attributes);
+        }
+
+        @Override
+        public Query rewrite(IndexReader reader, MultiTermQuery query) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.apache.lucene.search.payloads;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.payloads.PayloadFormat;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.similarities.ArticlePayloadIBSimilarity;
+import org.apache.lucene.search.spans.TermSpans;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * {@link TermSpans} that only return positions whose payload lies within
+ * [<code>minPayload</code>, <code>maxPayload</code>], decoded by the field's
+ * {@link ArticlePayloadIBSimilarity} or as a 4 byte float on other fields. Positions
+ * without a payload count as a payload of 1, like in {@link PayloadImpacts}.
+ *
+ * The payload of a position is checked as soon as the position is read, so documents
+ * without a position in the range are skipped before they are scored. With
+ * {@link PayloadImpacts} of the term, whole blocks whose highest payload is below
+ * <code>minPayload</code> are skipped without reading their positions.
+ */
+final class PayloadRangeSpans extends TermSpans {
+
+    private static final PayloadFormat DEFAULT_FORMAT = PayloadFormat.floats();
+
+    private final ArticlePayloadIBSimilarity similarity;
+    private final float minPayload;
+    private final float maxPayload;
+    private final PayloadImpacts impacts;
+    private int block = 0;
+
+    PayloadRangeSpans(DocsAndPositionsEnum postings, Term term, ArticlePayloadIBSimilarity similarity,
+            float minPayload, float maxPayload, PayloadImpacts impacts) {
+        super(postings, term);
+        this.similarity = similarity;
+        this.minPayload = minPayload;
+        this.maxPayload = maxPayload;
+        this.impacts = impacts;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        if (count == freq) {
+            if (!nextDoc(doc + 1)) {
+                return false;
+            }
+        }
+        return nextPosition();
+    }
+
+    @Override
+    public boolean skipTo(int target) throws IOException {
+        if (!nextDoc(target)) {
+            return false;
+        }
+        return nextPosition();
+    }
+
+    /**
+     * Moves to the first document at or after <code>target</code> that is not in a block
+     * below the minimum payload
+     */
+    private boolean nextDoc(int target) throws IOException {
+        if (impacts != null) {
+            block = impacts.block(target, block);
+            while (block < impacts.numBlocks() && impacts.blockMaxFactor(block) < minPayload) {
+                target = impacts.blockLastDoc(block) + 1;
+                block++;
+            }
+            if (block == impacts.numBlocks()) {
+                doc = DocIdSetIterator.NO_MORE_DOCS;
+                return false;
+            }
+        }
+        doc = target == doc + 1 ? postings.nextDoc() : postings.advance(target);
+        if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+            return false;
+        }
+        freq = postings.freq();
+        count = 0;
+        return true;
+    }
+
+    /**
+     * Moves to the next position within the range, in this or a following document
+     */
+    private boolean nextPosition() throws IOException {
+        while (true) {
+            while (count < freq) {
+                position = postings.nextPosition();
+                count++;
+                readPayload = false;
+                if (inRange(postings.getPayload())) {
+                    return true;
+                }
+            }
+            if (!nextDoc(doc + 1)) {
+                return false;
+            }
+        }
+    }
+
+    private boolean inRange(BytesRef payload) {
+        final float value;
+        if (payload == null) {
+            value = 1F;
+        } else if (similarity != null) {
+            value = similarity.scorePayload(doc, position, position + 1, payload);
+        } else {
+            value = DEFAULT_FORMAT.decode(payload.bytes, payload.offset, payload.length);
+        }
+        return value >= minPayload && value <= maxPayload;
+    }
+}
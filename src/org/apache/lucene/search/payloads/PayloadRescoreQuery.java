@@ -0,0 +1,272 @@
+package org.apache.lucene.search.payloads;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.ComplexExplanation;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.ToStringUtils;
+
+/**
+ * Ranks the documents of each segment with a cheap first pass query, and matches only the
+ * best <code>window</code> of them, scored by an expensive payload query of the same
+ * structure. All hits are scored on the payload query's scale, and positions and payloads
+ * are read for at most <code>window</code> documents per segment.
+ *
+ * The window of a segment is collected when its scorer is created, from the documents the
+ * scorer accepts, so random access filters are honoured. Since every document in the best
+ * <code>window</code> of the whole reader is in the window of its segment, they are all
+ * re-scored, but up to <code>window</code> further documents per segment may match too.
+ * Filters that are applied after the scorer, e.g. leap-frog filters, can take window slots,
+ * and the total hit count is at most <code>window</code> per segment.
+ */
+public class PayloadRescoreQuery extends Query {
+
+    private final Query firstPass;
+    private final Query payloadQuery;
+    private final int window;
+
+    /**
+     * @param firstPass query that selects and pre-ranks documents
+     * @param payloadQuery query that re-scores the window, it should match the same documents
+     * @param window number of documents to re-score
+     */
+    public PayloadRescoreQuery(Query firstPass, Query payloadQuery, int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be > 0, got " + window);
+        }
+        this.firstPass = firstPass;
+        this.payloadQuery = payloadQuery;
+        this.window = window;
+    }
+
+    public Query getFirstPass() {
+        return firstPass;
+    }
+
+    public Query getPayloadQuery() {
+        return payloadQuery;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        final Query rewrittenFirst = firstPass.rewrite(reader);
+        final Query rewrittenPayload = payloadQuery.rewrite(reader);
+        if (rewrittenFirst == firstPass && rewrittenPayload == payloadQuery) {
+            return this;
+        }
+        final PayloadRescoreQuery rewritten = new PayloadRescoreQuery(rewrittenFirst, rewrittenPayload, window);
+        rewritten.setBoost(getBoost());
+        return rewritten;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher) throws IOException {
+        return new RescoreWeight(searcher);
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+        firstPass.extractTerms(terms);
+        payloadQuery.extractTerms(terms);
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("payloadRescore(");
+        buffer.append(firstPass.toString(field));
+        buffer.append(", ");
+        buffer.append(payloadQuery.toString(field));
+        buffer.append(", window=").append(window);
+        buffer.append(')');
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 31 * super.hashCode() + firstPass.hashCode();
+        result = 31 * result + payloadQuery.hashCode();
+        return 31 * result + window;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!super.equals(obj)) {
+            return false;
+        }
+        PayloadRescoreQuery other = (PayloadRescoreQuery) obj;
+        return window == other.window && firstPass.equals(other.firstPass) && payloadQuery.equals(other.payloadQuery);
+    }
+
+    final class RescoreWeight extends Weight {
+        private final Weight firstWeight;
+        private final Weight payloadWeight;
+
+        RescoreWeight(IndexSearcher searcher) throws IOException {
+            // the first pass is ranked on its own, independent of the enclosing query's norm
+            this.firstWeight = searcher.createNormalizedWeight(firstPass);
+            this.payloadWeight = payloadQuery.createWeight(searcher);
+        }
+
+        @Override
+        public Query getQuery() {
+            return PayloadRescoreQuery.this;
+        }
+
+        @Override
+        public float getValueForNormalization() throws IOException {
+            final float boost = getBoost();
+            return payloadWeight.getValueForNormalization() * boost * boost;
+        }
+
+        @Override
+        public void normalize(float norm, float topLevelBoost) {
+            payloadWeight.normalize(norm, topLevelBoost * getBoost());
+        }
+
+        /**
+         * Returns the sorted segment doc ids of the best <code>window</code> first pass
+         * matches of the segment among <code>acceptDocs</code>
+         */
+        private int[] segmentWindow(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            final TopScoreDocCollector collector = TopScoreDocCollector.create(
+                    Math.min(window, Math.max(1, context.reader().maxDoc())), !firstWeight.scoresDocsOutOfOrder());
+            // collect the segment directly, the searcher may add collectors of its own to search()
+            collector.setNextReader(context);
+            final BulkScorer scorer = firstWeight.bulkScorer(context, !collector.acceptsDocsOutOfOrder(), acceptDocs);
+            if (scorer == null) {
+                return new int[0];
+            }
+            scorer.score(collector);
+            final TopDocs topDocs = collector.topDocs();
+            final int[] docs = new int[topDocs.scoreDocs.length];
+            int i = 0;
+            for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+                docs[i++] = scoreDoc.doc - context.docBase;
+            }
+            Arrays.sort(docs);
+            return docs;
+        }
+
+        @Override
+        public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            final int[] docs = segmentWindow(context, acceptDocs);
+            if (docs.length == 0) {
+                return null;
+            }
+            final Scorer payloadScorer = payloadWeight.scorer(context, acceptDocs);
+            if (payloadScorer == null) {
+                return null;
+            }
+            return new WindowScorer(this, payloadScorer, docs);
+        }
+
+        @Override
+        public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
+            final int[] docs = segmentWindow(context, context.reader().getLiveDocs());
+            if (Arrays.binarySearch(docs, doc) < 0) {
+                return new ComplexExplanation(false, 0F, "not within the top " + window
+                        + " of the first pass in its segment");
+            }
+            final Explanation payloadExpl = payloadWeight.explain(context, doc);
+            if (!payloadExpl.isMatch()) {
+                return payloadExpl;
+            }
+            final ComplexExplanation result = new ComplexExplanation(true, payloadExpl.getValue(),
+                    "rescored within the top " + window + " of the first pass in its segment:");
+            result.addDetail(payloadExpl);
+            return result;
+        }
+
+        @Override
+        public boolean scoresDocsOutOfOrder() {
+            return false;
+        }
+    }
+
+    /**
+     * Iterates the window documents of a segment that the payload query matches
+     */
+    static final class WindowScorer extends Scorer {
+        private final Scorer payloadScorer;
+        private final int[] windowDocs;
+        private int next;
+        private int doc = -1;
+
+        WindowScorer(Weight weight, Scorer payloadScorer, int[] windowDocs) {
+            super(weight);
+            this.payloadScorer = payloadScorer;
+            this.windowDocs = windowDocs;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return advance(doc + 1);
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            while (next < windowDocs.length && windowDocs[next] < target) {
+                next++;
+            }
+            while (next < windowDocs.length) {
+                final int candidate = windowDocs[next];
+                int payloadDoc = payloadScorer.docID();
+                if (payloadDoc < candidate) {
+                    payloadDoc = payloadScorer.advance(candidate);
+                }
+                if (payloadDoc == candidate) {
+                    next++;
+                    return doc = candidate;
+                }
+                // skip the window documents the payload query does not match
+                while (next < windowDocs.length && windowDocs[next] < payloadDoc) {
+                    next++;
+                }
+            }
+            return doc = NO_MORE_DOCS;
+        }
+
+        @Override
+        public float score() throws IOException {
+            return payloadScorer.score();
+        }
+
+        @Override
+        public int freq() throws IOException {
+            return payloadScorer.freq();
+        }
+
+        @Override
+        public long cost() {
+            return windowDocs.length;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.apache.lucene.search.payloads;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Payload scoring shared by the term queries of this package, following what
+ * {@link PayloadTermQuery} does per document.
+ */
+final class PayloadScores {
+
+    private PayloadScores() {
+    }
+
+    /**
+     * Runs the payloads of all positions of the current document of <code>postings</code>
+     * through <code>function</code>. Positions without a payload are skipped, unless
+     * <code>missingNeutral</code> is set in which case they count as a factor of 1, and the
+     * function decides the score of a document without any payload. A
+     * {@link FirstPayloadFunction} stops reading positions after the first payload.
+     */
+    static float payloadScore(int doc, String field, DocsAndPositionsEnum postings, PayloadFunction function,
+            Similarity.SimScorer docScorer, boolean missingNeutral) throws IOException {
+        final int freq = postings.freq();
+        final boolean firstOnly = function instanceof FirstPayloadFunction;
+        float payloadScore = 0;
+        int payloadsSeen = 0;
+        for (int i = 0; i < freq && (payloadsSeen == 0 || !firstOnly); i++) {
+            final int position = postings.nextPosition();
+            final BytesRef payload = postings.getPayload();
+            if (payload != null || missingNeutral) {
+                payloadScore = function.currentScore(doc, field, position, position + 1, payloadsSeen, payloadScore,
+                        docScorer.computePayloadFactor(doc, position, position + 1, payload));
+                payloadsSeen++;
+            }
+        }
+        return function.docScore(doc, field, payloadsSeen, payloadScore);
+    }
+
+    /**
+     * Like {@link #payloadScore(int, String, DocsAndPositionsEnum, PayloadFunction, Similarity.SimScorer, boolean)}
+     * for positions that were already read, with <code>null</code> for positions without
+     * a payload, so that several clauses on the same term can score one read.
+     */
+    static float payloadScore(int doc, String field, int freq, int[] positions, BytesRef[] payloads,
+            PayloadFunction function, Similarity.SimScorer docScorer, boolean missingNeutral) {
+        final boolean firstOnly = function instanceof FirstPayloadFunction;
+        float payloadScore = 0;
+        int payloadsSeen = 0;
+        for (int i = 0; i < freq && (payloadsSeen == 0 || !firstOnly); i++) {
+            final int position = positions[i];
+            final BytesRef payload = payloads[i];
+            if (payload != null || missingNeutral) {
+                payloadScore = function.currentScore(doc, field, position, position + 1, payloadsSeen, payloadScore,
+                        docScorer.computePayloadFactor(doc, position, position + 1, payload));
+                payloadsSeen++;
+            }
+        }
+        return function.docScore(doc, field, payloadsSeen, payloadScore);
+    }
+}
@@ -0,0 +1,253 @@
+package org.apache.lucene.search.payloads;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostAttribute;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.similarities.ArticlePayloadIBSimilarity;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Rewrites a {@link MultiTermQuery} into a coord-free {@link BooleanQuery} of at most
+ * <code>size</code> {@link PayloadTermQuery} clauses, so that expanded terms are scored
+ * exactly like plain terms. Terms are ranked by the boost their enum assigns (the edit
+ * distance of fuzzy terms) and then by {@link Ranking}.
+ *
+ * Ranking by {@link Ranking#MAX_PAYLOAD} needs the field's {@link ArticlePayloadIBSimilarity},
+ * without one it ranks by doc freq. Only the {@link #SHORTLIST_FACTOR} times
+ * <code>size</code> terms in most documents, and terms whose impacts are in the
+ * {@link PayloadImpactsCache} for every segment already, compete on payloads; the payloads
+ * of shortlisted terms without cached impacts are read once per segment, without adding
+ * them to the cache.
+ */
+public class PayloadTopTermsRewrite extends MultiTermQuery.RewriteMethod {
+
+    /** How many times <code>size</code> terms are ranked on their payloads at most */
+    static final int SHORTLIST_FACTOR = 4;
+
+    /**
+     * How the expanded terms compete for the <code>size</code> clauses
+     */
+    public static enum Ranking {
+        /** Terms in more documents first */
+        DOC_FREQ,
+        /** Terms with the highest payload factor on any position first */
+        MAX_PAYLOAD;
+
+        public static Ranking fromString(String ranking) {
+            for (Ranking value : values()) {
+                if (value.name().equalsIgnoreCase(ranking)) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Unknown expansion ranking [" + ranking + "]");
+        }
+    }
+
+    private final int size;
+    private final Ranking ranking;
+    private final PayloadFunction function;
+    private final PayloadImpactsCache impactsCache;
+    private final ArticlePayloadIBSimilarity similarity;
+
+    public PayloadTopTermsRewrite(int size, Ranking ranking, PayloadFunction function, PayloadImpactsCache impactsCache) {
+        this(size, ranking, function, impactsCache, null);
+    }
+
+    private PayloadTopTermsRewrite(int size, Ranking ranking, PayloadFunction function, PayloadImpactsCache impactsCache,
+            ArticlePayloadIBSimilarity similarity) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be > 0, got " + size);
+        }
+        this.size = size;
+        this.ranking = ranking;
+        this.function = function;
+        this.impactsCache = impactsCache;
+        this.similarity = similarity;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public Ranking getRanking() {
+        return ranking;
+    }
+
+    /**
+     * Returns whether the rewrite should be given the field's similarity before it is used,
+     * see {@link #withSimilarity(ArticlePayloadIBSimilarity)}.
+     */
+    public boolean needsSimilarity() {
+        return ranking == Ranking.MAX_PAYLOAD && similarity == null;
+    }
+
+    /**
+     * Returns a copy of this rewrite that decodes payloads with <code>similarity</code>
+     */
+    public PayloadTopTermsRewrite withSimilarity(ArticlePayloadIBSimilarity similarity) {
+        return new PayloadTopTermsRewrite(size, ranking, function, impactsCache, similarity);
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader, MultiTermQuery query) throws IOException {
+        final String field = query.getField();
+        final boolean payloadRanked = ranking == Ranking.MAX_PAYLOAD && similarity != null;
+        final Map<BytesRef, Candidate> candidates = new HashMap<>();
+        // shared across segments, fuzzy enums keep their automata in here
+        final AttributeSource attributes = new AttributeSource();
+        for (AtomicReaderContext context : reader.leaves()) {
+            final Terms terms = context.reader().terms(field);
+            if (terms == null) {
+                continue;
+            }
+            final TermsEnum termsEnum = getTermsEnum(query, terms, attributes);
+            final BoostAttribute boostAtt = termsEnum.attributes().addAttribute(BoostAttribute.class);
+            BytesRef bytes;
+            while ((bytes = termsEnum.next()) != null) {
+                Candidate candidate = candidates.get(bytes);
+                if (candidate == null) {
+                    candidate = new Candidate(BytesRef.deepCopyOf(bytes), boostAtt.getBoost());
+                    candidates.put(candidate.bytes, candidate);
+                }
+                candidate.docFreq += termsEnum.docFreq();
+                if (payloadRanked) {
+                    // only impacts that are cached already, the others are read for the shortlist
+                    final PayloadImpacts impacts = impactsCache == null ? null
+                            : impactsCache.getIfPresent(context.reader(), new Term(field, candidate.bytes));
+                    if (impacts != null) {
+                        candidate.maxFactor = Math.max(candidate.maxFactor, impacts.maxFactor());
+                    } else {
+                        candidate.uncachedSegments++;
+                    }
+                }
+            }
+        }
+
+        final int clauses = Math.min(candidates.size(), Math.min(size, BooleanQuery.getMaxClauseCount()));
+        List<Candidate> ranked = new ArrayList<>(candidates.values());
+        Collections.sort(ranked, BY_DOC_FREQ);
+        if (payloadRanked) {
+            ranked = payloadRanked(reader, field, ranked, clauses);
+        }
+        final BooleanQuery result = new BooleanQuery(true);
+        for (int i = 0; i < clauses; i++) {
+            final Candidate candidate = ranked.get(i);
+            final PayloadTermQuery termQuery = new SparsePayloadTermQuery(new Term(field, candidate.bytes), function, true);
+            termQuery.setBoost(candidate.boost);
+            result.add(termQuery, BooleanClause.Occur.SHOULD);
+        }
+        result.setBoost(query.getBoost());
+        return result;
+    }
+
+    /**
+     * Reads the missing impacts of the terms in most documents and returns them, together
+     * with the terms whose impacts were all cached, ranked by their payloads
+     */
+    private List<Candidate> payloadRanked(IndexReader reader, String field, List<Candidate> byDocFreq, int clauses)
+            throws IOException {
+        final int shortlist = (int) Math.min((long) clauses * SHORTLIST_FACTOR, byDocFreq.size());
+        final List<Candidate> ranked = new ArrayList<>(byDocFreq.subList(0, shortlist));
+        for (Candidate candidate : byDocFreq.subList(shortlist, byDocFreq.size())) {
+            if (candidate.uncachedSegments == 0) {
+                ranked.add(candidate);
+            }
+        }
+        for (AtomicReaderContext context : reader.leaves()) {
+            final Terms terms = context.reader().terms(field);
+            if (terms == null) {
+                continue;
+            }
+            TermsEnum termsEnum = null;
+            for (Candidate candidate : ranked.subList(0, shortlist)) {
+                if (candidate.uncachedSegments == 0) {
+                    continue;
+                }
+                final Term term = new Term(field, candidate.bytes);
+                if (impactsCache != null && impactsCache.getIfPresent(context.reader(), term) != null) {
+                    continue; // counted in the first pass
+                }
+                termsEnum = terms.iterator(termsEnum);
+                if (termsEnum.seekExact(candidate.bytes)) {
+                    final PayloadImpacts impacts = PayloadImpacts.compute(termsEnum,
+                            context.reader().getNormValues(field), similarity, null);
+                    candidate.maxFactor = Math.max(candidate.maxFactor, impacts.maxFactor());
+                }
+            }
+        }
+        Collections.sort(ranked, BY_MAX_PAYLOAD);
+        return ranked;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 31 * size + ranking.hashCode();
+        result = 31 * result + function.hashCode();
+        return 31 * result + (similarity == null ? 0 : System.identityHashCode(similarity));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        PayloadTopTermsRewrite other = (PayloadTopTermsRewrite) obj;
+        return size == other.size && ranking == other.ranking && function.equals(other.function)
+                && impactsCache == other.impactsCache && similarity == other.similarity;
+    }
+
+    private static final class Candidate {
+        final BytesRef bytes;
+        final float boost;
+        int docFreq;
+        float maxFactor;
+        // segments the term is in whose impacts were not cached when the terms were enumerated
+        int uncachedSegments;
+
+        Candidate(BytesRef bytes, float boost) {
+            this.bytes = bytes;
+            this.boost = boost;
+        }
+    }
+
+    private static final Comparator<Candidate> BY_DOC_FREQ = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b) {
+            int cmp = Float.compare(b.boost, a.boost);
+            if (cmp == 0) {
+                cmp = Integer.compare(b.docFreq, a.docFreq);
+            }
+            return cmp != 0 ? cmp : a.bytes.compareTo(b.bytes);
+        }
+    };
+
+    private static final Comparator<Candidate> BY_MAX_PAYLOAD = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b) {
+            int cmp = Float.compare(b.boost, a.boost);
+            if (cmp == 0) {
+                cmp = Float.compare(b.maxFactor, a.maxFactor);
+            }
+            return cmp != 0 ? cmp : BY_DOC_FREQ.compare(a, b);
+        }
+    };
+}
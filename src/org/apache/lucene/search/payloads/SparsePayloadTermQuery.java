@@ -0,0 +1,177 @@
+package org.apache.lucene.search.payloads;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.ArticlePayloadIBSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.search.spans.TermSpans;
+import org.apache.lucene.util.Bits;
+
+/**
+ * A {@link PayloadTermQuery} that, on fields whose similarity counts missing payloads as
+ * neutral, passes positions without a payload to the {@link PayloadFunction} with a
+ * factor of 1 instead of skipping them. On other fields it is a plain
+ * {@link PayloadTermQuery}.
+ *
+ * Optionally only positions whose payload lies within
+ * [<code>minPayload</code>, <code>maxPayload</code>] match, see {@link PayloadRangeSpans};
+ * documents without such a position do not match at all.
+ */
+public class SparsePayloadTermQuery extends PayloadTermQuery {
+
+    private final boolean includeSpanScore;
+    private final float minPayload;
+    private final float maxPayload;
+    private final PayloadImpactsCache impactsCache;
+
+    public SparsePayloadTermQuery(Term term, PayloadFunction function, boolean includeSpanScore) {
+        this(term, function, includeSpanScore, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, null);
+    }
+
+    /**
+     * @param impactsCache cache of the per-block maximum payloads used to skip blocks below
+     *                     <code>minPayload</code>, or <code>null</code> to check every position
+     */
+    public SparsePayloadTermQuery(Term term, PayloadFunction function, boolean includeSpanScore,
+            float minPayload, float maxPayload, PayloadImpactsCache impactsCache) {
+        super(term, function, includeSpanScore);
+        if (minPayload > maxPayload) {
+            throw new IllegalArgumentException("minPayload must be <= maxPayload, got " + minPayload + " > " + maxPayload);
+        }
+        this.includeSpanScore = includeSpanScore;
+        this.minPayload = minPayload;
+        this.maxPayload = maxPayload;
+        this.impactsCache = impactsCache;
+    }
+
+    public PayloadFunction getPayloadFunction() {
+        return function;
+    }
+
+    public boolean isIncludeSpanScore() {
+        return includeSpanScore;
+    }
+
+    public float getMinPayload() {
+        return minPayload;
+    }
+
+    public float getMaxPayload() {
+        return maxPayload;
+    }
+
+    /**
+     * Returns whether positions are filtered by their payload
+     */
+    public boolean hasPayloadRange() {
+        return minPayload != Float.NEGATIVE_INFINITY || maxPayload != Float.POSITIVE_INFINITY;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher) throws IOException {
+        final boolean missingNeutral = ArticlePayloadIBSimilarity.missingPayloadsNeutral(searcher.getSimilarity(), term.field());
+        if (!missingNeutral && !hasPayloadRange()) {
+            return super.createWeight(searcher);
+        }
+        return new SparsePayloadTermWeight(this, searcher, missingNeutral);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + Float.floatToIntBits(minPayload);
+        return 31 * result + Float.floatToIntBits(maxPayload);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!super.equals(obj)) {
+            return false;
+        }
+        SparsePayloadTermQuery other = (SparsePayloadTermQuery) obj;
+        return Float.floatToIntBits(minPayload) == Float.floatToIntBits(other.minPayload)
+                && Float.floatToIntBits(maxPayload) == Float.floatToIntBits(other.maxPayload);
+    }
+
+    @Override
+    public String toString(String field) {
+        if (!hasPayloadRange()) {
+            return super.toString(field);
+        }
+        return super.toString(field) + "[payload:" + minPayload + " TO " + maxPayload + "]";
+    }
+
+    protected class SparsePayloadTermWeight extends PayloadTermWeight {
+        private final boolean missingNeutral;
+        private final ArticlePayloadIBSimilarity fieldSimilarity;
+
+        public SparsePayloadTermWeight(PayloadTermQuery query, IndexSearcher searcher) throws IOException {
+            this(query, searcher, true);
+        }
+
+        public SparsePayloadTermWeight(PayloadTermQuery query, IndexSearcher searcher, boolean missingNeutral)
+                throws IOException {
+            super(query, searcher);
+            this.missingNeutral = missingNeutral;
+            this.fieldSimilarity = ArticlePayloadIBSimilarity.forField(searcher.getSimilarity(), term.field());
+        }
+
+        @Override
+        public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            final Similarity.SimScorer docScorer = similarity.simScorer(stats, context);
+            TermSpans spans = (TermSpans) query.getSpans(context, acceptDocs, termContexts);
+            if (hasPayloadRange() && spans.getPostings() != null) {
+                spans = new PayloadRangeSpans(spans.getPostings(), term, fieldSimilarity, minPayload, maxPayload,
+                        impacts(context));
+            }
+            return new SparsePayloadTermSpanScorer(spans, this, docScorer);
+        }
+
+        /**
+         * Returns the impacts of the term in the segment if they can skip blocks below the
+         * minimum payload
+         */
+        private PayloadImpacts impacts(AtomicReaderContext context) throws IOException {
+            if (impactsCache == null || fieldSimilarity == null || minPayload == Float.NEGATIVE_INFINITY) {
+                return null;
+            }
+            final PayloadImpacts cached = impactsCache.getIfPresent(context.reader(), term);
+            if (cached != null) {
+                return cached;
+            }
+            final TermState state = termContexts.get(term).get(context.ord);
+            if (state == null) {
+                return null;
+            }
+            final TermsEnum termsEnum = context.reader().terms(term.field()).iterator(null);
+            termsEnum.seekExact(term.bytes(), state);
+            return impactsCache.get(context.reader(), term, termsEnum, fieldSimilarity, null);
+        }
+
+        protected class SparsePayloadTermSpanScorer extends PayloadTermSpanScorer {
+
+            public SparsePayloadTermSpanScorer(TermSpans spans, Weight weight, Similarity.SimScorer docScorer)
+                    throws IOException {
+                super(spans, weight, docScorer);
+            }
+
+            @Override
+            protected void processPayload(Similarity similarity) throws IOException {
+                if (!missingNeutral || ((TermSpans) spans).isPayloadAvailable()) {
+                    super.processPayload(similarity);
+                    return;
+                }
+                payloadScore = function.currentScore(doc, term.field(), spans.start(), spans.end(), payloadsSeen,
+                        payloadScore, docScorer.computePayloadFactor(doc, spans.start(), spans.end(), null));
+                payloadsSeen++;
+            }
+        }
+    }
+}
@@ -1,8 +1,9 @@
 package org.apache.lucene.search.similarities;
 
 import java.io.IOException;
+import java.util.Arrays;
 
-import org.apache.lucene.analysis.payloads.PayloadHelper;
+import org.apache.lucene.analysis.payloads.PayloadFormat;
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.search.Explanation;
@@ -16,52 +17,525 @@ import org.apache.lucene.util.BytesRef;
 
 public class ArticlePayloadIBSimilarity extends IBSimilarity {
 
+    /** Terms matching fewer documents than this are always scored with the full math. */
+    static final int SCORE_TABLE_MIN_DOC_FREQ = 1024;
+
+    /** One column per norm byte plus one for fields that omit norms. */
+    private static final int SCORE_TABLE_COLUMNS = 257;
+    private static final int NO_NORMS_COLUMN = 256;
+
+    /** Number of score tables a similarity keeps unless it is given a shared cache. */
+    static final int DEFAULT_SCORE_TABLE_CACHE_SIZE = 256;
+
+    /** Slots of the components filled by {@link #explainComponents}. */
+    static final int EXPLAIN_NORM = 0;
+    static final int EXPLAIN_TFN = 1;
+    static final int EXPLAIN_LAMBDA = 2;
+    static final int EXPLAIN_DISTRIBUTION = 3;
+    static final int EXPLAIN_COMPONENTS = 4;
+
+    private final int scoreTableMaxFreq;
+    private final PayloadFormat payloadFormat;
+    private volatile PayloadScoringListener listener;
+    private volatile boolean missingPayloadsNeutral;
+    private volatile ScoreTableCache scoreTableCache = new ScoreTableCache(DEFAULT_SCORE_TABLE_CACHE_SIZE);
+
     public ArticlePayloadIBSimilarity(Distribution distribution, Lambda lambda,
             Normalization normalization) {
+        this(distribution, lambda, normalization, 0);
+    }
+
+    public ArticlePayloadIBSimilarity(Distribution distribution, Lambda lambda,
+            Normalization normalization, int scoreTableMaxFreq) {
+        this(distribution, lambda, normalization, scoreTableMaxFreq, PayloadFormat.floats());
+    }
+
+    /**
+     * @param scoreTableMaxFreq largest term frequency whose scores are cached in the
+     *        per-term score table, or <code>0</code> to always compute scores. Frequencies
+     *        are tabulated in steps of 1/2, because a term span contributes
+     *        {@link SimScorer#computeSlopFactor(int) computeSlopFactor(1)} per occurrence.
+     * @param payloadFormat format the payloads of the scored fields are encoded in
+     */
+    public ArticlePayloadIBSimilarity(Distribution distribution, Lambda lambda,
+            Normalization normalization, int scoreTableMaxFreq, PayloadFormat payloadFormat) {
         super(distribution, lambda, normalization);
+        if (scoreTableMaxFreq < 0) {
+            throw new IllegalArgumentException("scoreTableMaxFreq must be >= 0, got " + scoreTableMaxFreq);
+        }
+        this.scoreTableMaxFreq = scoreTableMaxFreq;
+        this.payloadFormat = payloadFormat;
+    }
+
+    public int getScoreTableMaxFreq() {
+        return scoreTableMaxFreq;
+    }
+
+    public PayloadFormat getPayloadFormat() {
+        return payloadFormat;
+    }
+
+    /**
+     * Sets whether positions without a payload count as a payload of weight 1, as
+     * positions whose neutral payload was dropped at index time do, instead of being
+     * skipped. Only the payload queries of this plugin honor this setting.
+     */
+    public void setMissingPayloadsNeutral(boolean missingPayloadsNeutral) {
+        this.missingPayloadsNeutral = missingPayloadsNeutral;
+    }
+
+    public boolean isMissingPayloadsNeutral() {
+        return missingPayloadsNeutral;
+    }
+
+    /**
+     * Returns whether the similarity of <code>field</code> counts positions without a
+     * payload as neutral
+     */
+    public static boolean missingPayloadsNeutral(Similarity similarity, String field) {
+        ArticlePayloadIBSimilarity payloadSimilarity = forField(similarity, field);
+        return payloadSimilarity != null && payloadSimilarity.isMissingPayloadsNeutral();
+    }
+
+    /**
+     * Sets the listener that scorers created from now on report to, or <code>null</code>
+     * to stop reporting.
+     */
+    public void setScoringListener(PayloadScoringListener listener) {
+        this.listener = listener;
+    }
+
+    public PayloadScoringListener getScoringListener() {
+        return listener;
+    }
+
+    /**
+     * Sets the cache score tables are taken from, e.g. to share one cache between the
+     * similarities of several fields.
+     */
+    public void setScoreTableCache(ScoreTableCache scoreTableCache) {
+        this.scoreTableCache = scoreTableCache;
+    }
+
+    public ScoreTableCache getScoreTableCache() {
+        return scoreTableCache;
+    }
+
+    /**
+     * Returns the {@link ArticlePayloadIBSimilarity} used for <code>field</code>, unwrapping
+     * per-field similarities, or <code>null</code> if the field is scored differently.
+     */
+    public static ArticlePayloadIBSimilarity forField(Similarity similarity, String field) {
+        // per-field similarities may be nested, e.g. a per-field provider in a per-field service
+        while (similarity instanceof PerFieldSimilarityWrapper) {
+            similarity = ((PerFieldSimilarityWrapper) similarity).get(field);
+        }
+        return similarity instanceof ArticlePayloadIBSimilarity ? (ArticlePayloadIBSimilarity) similarity : null;
+    }
+
+    /**
+     * Returns the document length this similarity scores <code>doc</code> with.
+     */
+    public float docLength(NumericDocValues norms, int doc) {
+        return norms == null ? 1F : decodeNormValue((byte) norms.get(doc));
+    }
+
+    /**
+     * Returns an upper bound for the score of any document matching the given weight with
+     * at most <code>maxFreq</code> occurrences and at least <code>minDocLen</code> length,
+     * before payload factors are applied. This relies on IB scores growing with the
+     * frequency and shrinking with the document length, which holds for every
+     * {@link Distribution} and {@link Normalization} shipped with Lucene.
+     */
+    public float maxScore(SimWeight weight, float maxFreq, float minDocLen) {
+        return docScore(weight, maxFreq, minDocLen);
+    }
+
+    /**
+     * Scores a document from an explicit frequency and document length, for callers that
+     * do not read them from a single field, e.g. because they combine several fields.
+     */
+    public float docScore(SimWeight weight, float freq, float docLen) {
+        if (weight instanceof MultiSimilarity.MultiStats) {
+            float sum = 0;
+            for (SimWeight subStats : ((MultiSimilarity.MultiStats) weight).subStats) {
+                sum += docScore(subStats, freq, docLen);
+            }
+            return sum;
+        }
+        return score((BasicStats) weight, freq, docLen);
+    }
+
+    /**
+     * Explains {@link #docScore(SimWeight, float, float)} for a single term weight.
+     */
+    public Explanation explainDocScore(SimWeight weight, int doc, Explanation freq, float docLen) {
+        return explain((BasicStats) weight, doc, freq, docLen);
+    }
+
+    /**
+     * Returns whether a {@link PayloadExplainRecorder} records the scores of the current thread
+     */
+    public static boolean isRecordingExplanations() {
+        return PayloadExplainRecorder.active() != null;
+    }
+
+    /**
+     * Records the average payload factor of <code>doc</code>, over <code>positions</code>
+     * positions, for callers that did not compute it through
+     * {@link SimScorer#computePayloadFactor(int, int, int, BytesRef)} of <code>scorer</code>,
+     * e.g. because they read it from a cache. Must be called before the document is scored.
+     */
+    public static void payloadsAveraged(SimScorer scorer, int doc, float average, int positions) {
+        final PayloadExplainRecorder.ClauseRecorder recorder;
+        if (scorer instanceof BasicSimScorer) {
+            recorder = ((BasicSimScorer) scorer).recorder;
+        } else if (scorer instanceof PhraseSimScorer) {
+            recorder = ((PhraseSimScorer) scorer).recorder;
+        } else {
+            return;
+        }
+        if (recorder != null) {
+            recorder.payloadsAveraged(doc, average, positions);
+        }
+    }
+
+    /**
+     * Fills <code>components</code> with the decoded norm, normalized term frequency,
+     * lambda and distribution value a term score with the given inputs is made of
+     */
+    void explainComponents(BasicStats stats, float freq, int norm, float[] components) {
+        final float docLen = norm == NO_NORMS_COLUMN ? 1F : decodeNormValue((byte) norm);
+        final float tfn = normalization.tfn(stats, freq, docLen);
+        final float lambda = this.lambda.lambda(stats);
+        components[EXPLAIN_NORM] = docLen;
+        components[EXPLAIN_TFN] = tfn;
+        components[EXPLAIN_LAMBDA] = lambda;
+        components[EXPLAIN_DISTRIBUTION] = distribution.score(stats, tfn, lambda);
     }
 
     public float scorePayload(int doc, int start, int end, BytesRef payload) {
         if (payload != null) {
-            float x = PayloadHelper.decodeFloat(payload.bytes, payload.offset);
+            float x = payloadFormat.decode(payload.bytes, payload.offset, payload.length);
             return x;
         }
         return 1.0F;
     }
 
+    @Override
+    protected BasicStats newStats(String field, float queryBoost) {
+        return new ArticleStats(field, queryBoost);
+    }
+
     @Override
     public SimScorer simScorer(SimWeight stats, AtomicReaderContext context) throws IOException {
+      final PayloadScoringListener listener = this.listener;
+      if (listener == null) {
+        return newSimScorer(stats, context, null);
+      }
+      final long start = System.nanoTime();
+      final SimScorer scorer = newSimScorer(stats, context, listener);
+      listener.scorerCreated(System.nanoTime() - start);
+      return scorer;
+    }
+
+    private SimScorer newSimScorer(SimWeight stats, AtomicReaderContext context,
+        PayloadScoringListener listener) throws IOException {
       if (stats instanceof MultiSimilarity.MultiStats) {
         // a multi term query (e.g. phrase). return the summation, 
         // scoring almost as if it were boolean query
         SimWeight subStats[] = ((MultiSimilarity.MultiStats) stats).subStats;
+        if (subStats.length > 0 && subStats[0] instanceof ArticleStats) {
+          // all terms of a phrase are in the same field
+          ArticleStats first = (ArticleStats) subStats[0];
+          return new PhraseSimScorer(first.phraseConstants(this, subStats),
+              context.reader().getNormValues(first.field), listener);
+        }
         SimScorer subScorers[] = new SimScorer[subStats.length];
         for (int i = 0; i < subScorers.length; i++) {
           BasicStats basicstats = (BasicStats) subStats[i];
-          subScorers[i] = new BasicSimScorer(basicstats, context.reader().getNormValues(basicstats.field));
+          subScorers[i] = new BasicSimScorer(basicstats, context.reader().getNormValues(basicstats.field), listener);
         }
         return new MultiSimilarity.MultiSimScorer(subScorers);
       } else {
         BasicStats basicstats = (BasicStats) stats;
-        return new BasicSimScorer(basicstats, context.reader().getNormValues(basicstats.field));
+        return new BasicSimScorer(basicstats, context.reader().getNormValues(basicstats.field), listener);
+      }
+    }
+
+    /**
+     * Returns the recorder of the given term clauses if explanations are recorded on the
+     * current thread, otherwise <code>null</code>
+     */
+    private PayloadExplainRecorder.ClauseRecorder clauseRecorder(BasicStats... stats) {
+      final PayloadExplainRecorder recorder = PayloadExplainRecorder.active();
+      return recorder == null ? null : recorder.clauseRecorder(this, stats);
+    }
+
+    /**
+     * Returns the lazily filled score table of the given stats, or <code>null</code> if
+     * scores for this term should not be cached.
+     */
+    private float[] scoreTable(BasicStats stats) {
+      if (scoreTableMaxFreq == 0 || !(stats instanceof ArticleStats)
+          || stats.getDocFreq() < SCORE_TABLE_MIN_DOC_FREQ) {
+        return null;
       }
+      return ((ArticleStats) stats).scoreTable(this, scoreTableCache, scoreTableMaxFreq);
+    }
+
+    /**
+     * Returns a block scorer for the documents of <code>scorer</code>: the scorer itself if
+     * this similarity created it for a single term, otherwise one that calls
+     * {@link SimScorer#score(int, float)} per document.
+     */
+    public static BulkSimScorer bulkScorer(final SimScorer scorer) {
+      if (scorer instanceof BulkSimScorer) {
+        return (BulkSimScorer) scorer;
+      }
+      return new BulkSimScorer() {
+        @Override
+        public void score(int[] docs, float[] freqs, float[] payloadFactors, float[] scores, int count) {
+          for (int i = 0; i < count; i++) {
+            scores[i] = scorer.score(docs[i], freqs[i]);
+          }
+          if (payloadFactors != null) {
+            for (int i = 0; i < count; i++) {
+              scores[i] *= payloadFactors[i];
+            }
+          }
+        }
+      };
+    }
+
+    /**
+     * Computes every cell of the score table of the given weight that is not filled yet, so
+     * that the first queries after a refresh do not pay for the score math. The weight must
+     * be normalized the way queries normalize it, since tables are kept per total boost.
+     *
+     * @return number of cells computed, <code>0</code> if the weight's scores are not cached
+     */
+    public int warmScoreTable(SimWeight weight) {
+      if (weight instanceof MultiSimilarity.MultiStats) {
+        int computed = 0;
+        for (SimWeight subStats : ((MultiSimilarity.MultiStats) weight).subStats) {
+          computed += warmScoreTable(subStats);
+        }
+        return computed;
+      }
+      final BasicStats stats = (BasicStats) weight;
+      final float[] table = scoreTable(stats);
+      if (table == null) {
+        return 0;
+      }
+      int computed = 0;
+      for (int row = 1; row <= 2 * scoreTableMaxFreq; row++) {
+        for (int norm = 0; norm < SCORE_TABLE_COLUMNS; norm++) {
+          final int slot = (row - 1) * SCORE_TABLE_COLUMNS + norm;
+          if (table[slot] != table[slot]) {
+            table[slot] = cellScore(stats, row / 2F, norm);
+            computed++;
+          }
+        }
+      }
+      return computed;
+    }
+
+    private float cellScore(BasicStats stats, float freq, int norm) {
+      return score(stats, freq, norm == NO_NORMS_COLUMN ? 1F : decodeNormValue((byte) norm));
+    }
+
+    /**
+     * {@link BasicStats} that additionally carry the score table shared by all segment
+     * scorers of one term. Cells start out as NaN and are filled on first use; since the
+     * cached values are pure functions of the stats, racing writers store the same value.
+     * Tables come from the similarity's {@link ScoreTableCache}, so stats with equal
+     * values share one table.
+     */
+    static final class ArticleStats extends BasicStats {
+        private volatile ScoreTable table;
+        private volatile PhraseConstants phrase;
+
+        ArticleStats(String field, float queryBoost) {
+            super(field, queryBoost);
+        }
+
+        /**
+         * Returns the constants of the multi term weight whose first term these stats are
+         */
+        PhraseConstants phraseConstants(ArticlePayloadIBSimilarity similarity, SimWeight[] subStats) {
+            PhraseConstants p = phrase;
+            // the terms are normalized together, so the first one tells whether they changed
+            if (p == null || p.boost != getTotalBoost()) {
+                p = similarity.newPhraseConstants(getTotalBoost(), subStats);
+                phrase = p;
+            }
+            return p;
+        }
+
+        float[] scoreTable(ArticlePayloadIBSimilarity similarity, ScoreTableCache cache, int maxFreq) {
+            ScoreTable t = table;
+            // the total boost is only final once the weight has been normalized
+            if (t == null || t.boost != getTotalBoost()) {
+                t = new ScoreTable(getTotalBoost(), cache.get(similarity, this, 2 * maxFreq * SCORE_TABLE_COLUMNS));
+                table = t;
+            }
+            return t.scores;
+        }
+    }
+
+    private PhraseConstants newPhraseConstants(float boost, SimWeight[] subStats) {
+      final int size = subStats.length;
+      final BasicStats[] stats = new BasicStats[size];
+      final float[] lambdas = new float[size];
+      final float[] boosts = new float[size];
+      final float[][] tables = new float[size][];
+      for (int i = 0; i < size; i++) {
+        stats[i] = (BasicStats) subStats[i];
+        lambdas[i] = lambda.lambda(stats[i]);
+        boosts[i] = stats[i].getTotalBoost();
+        tables[i] = scoreTable(stats[i]);
+      }
+      return new PhraseConstants(boost, stats, lambdas, boosts, tables);
+    }
+
+    /**
+     * Per-term constants of a multi term weight in flat arrays, computed once per weight
+     * and shared by all its segment scorers.
+     */
+    private static final class PhraseConstants {
+        /** total boost of the first term when the constants were computed */
+        final float boost;
+        final BasicStats[] stats;
+        final float[] lambdas;
+        final float[] boosts;
+        final float[][] tables;
+
+        PhraseConstants(float boost, BasicStats[] stats, float[] lambdas, float[] boosts, float[][] tables) {
+            this.boost = boost;
+            this.stats = stats;
+            this.lambdas = lambdas;
+            this.boosts = boosts;
+            this.tables = tables;
+        }
+    }
+
+    private static final class ScoreTable {
+        final float boost;
+        final float[] scores;
+
+        ScoreTable(float boost, float[] scores) {
+            this.boost = boost;
+            this.scores = scores;
+        }
     }
     
-    private class BasicSimScorer extends SimScorer {
+    private class BasicSimScorer extends SimScorer implements BulkSimScorer {
         private final BasicStats stats;
         private final NumericDocValues norms;
+        private final float[] table;
+        private final PayloadScoringListener listener;
+        // payload factors of the document being scored, reported along with it
+        private final PayloadTally payloads;
+        final PayloadExplainRecorder.ClauseRecorder recorder;
+        // norm columns of the current block, grown on demand
+        private int[] blockNorms = new int[0];
         
-        BasicSimScorer(BasicStats stats, NumericDocValues norms) throws IOException {
+        BasicSimScorer(BasicStats stats, NumericDocValues norms, PayloadScoringListener listener) throws IOException {
           this.stats = stats;
           this.norms = norms;
+          this.table = scoreTable(stats);
+          this.listener = listener == null ? null : listener.forField(stats.field);
+          this.payloads = listener == null ? null : new PayloadTally();
+          this.recorder = clauseRecorder(stats);
         }
         
         @Override
         public float score(int doc, float freq) {
+          if (listener != null) {
+            listener.docsScored(1, payloads);
+            payloads.clear();
+          }
           // We have to supply something in case norms are omitted
-          return ArticlePayloadIBSimilarity.this.score(stats, freq,
-              norms == null ? 1F : decodeNormValue((byte)norms.get(doc)));
+          final int norm = norms == null ? NO_NORMS_COLUMN : (int) norms.get(doc) & 0xFF;
+          if (recorder != null) {
+            recorder.scored(doc, freq, norm);
+          }
+          final float halfSteps = freq * 2;
+          final int row = (int) halfSteps;
+          if (table != null && row == halfSteps && row > 0 && row <= 2 * scoreTableMaxFreq) {
+            final int slot = (row - 1) * SCORE_TABLE_COLUMNS + norm;
+            float score = table[slot];
+            if (score != score) { // NaN, not computed yet
+              score = computeScore(freq, norm);
+              table[slot] = score;
+            }
+            return score;
+          }
+          return computeScore(freq, norm);
         }
+
+        private float computeScore(float freq, int norm) {
+          return cellScore(stats, freq, norm);
+        }
+
+        /**
+         * Scores a block in passes over flat arrays: all norms are read first, then cached
+         * cells are gathered from the score table, then the remaining cells are computed,
+         * and finally the payload factors are applied.
+         */
+        @Override
+        public void score(int[] docs, float[] freqs, float[] payloadFactors, float[] scores, int count) {
+          if (listener != null) {
+            listener.docsScored(count, payloads);
+            payloads.clear();
+          }
+          if (blockNorms.length < count) {
+            blockNorms = new int[Math.max(count, 2 * blockNorms.length)];
+          }
+          final int[] blockNorms = this.blockNorms;
+          if (norms == null) {
+            Arrays.fill(blockNorms, 0, count, NO_NORMS_COLUMN);
+          } else {
+            for (int i = 0; i < count; i++) {
+              blockNorms[i] = (int) norms.get(docs[i]) & 0xFF;
+            }
+          }
+          if (recorder != null) {
+            for (int i = 0; i < count; i++) {
+              recorder.scored(docs[i], freqs[i], blockNorms[i]);
+            }
+          }
+          final int maxRow = 2 * scoreTableMaxFreq;
+          if (table != null) {
+            for (int i = 0; i < count; i++) {
+              final float halfSteps = freqs[i] * 2;
+              final int row = (int) halfSteps;
+              // NaN marks both cells not computed yet and frequencies outside the table
+              scores[i] = row == halfSteps && row > 0 && row <= maxRow
+                  ? table[(row - 1) * SCORE_TABLE_COLUMNS + blockNorms[i]] : Float.NaN;
+            }
+          } else {
+            Arrays.fill(scores, 0, count, Float.NaN);
+          }
+          for (int i = 0; i < count; i++) {
+            if (scores[i] != scores[i]) {
+              final float score = computeScore(freqs[i], blockNorms[i]);
+              scores[i] = score;
+              final float halfSteps = freqs[i] * 2;
+              final int row = (int) halfSteps;
+              if (table != null && row == halfSteps && row > 0 && row <= maxRow) {
+                table[(row - 1) * SCORE_TABLE_COLUMNS + blockNorms[i]] = score;
+              }
+            }
+          }
+          if (payloadFactors != null) {
+            for (int i = 0; i < count; i++) {
+              scores[i] *= payloadFactors[i];
+            }
+          }
+        }
+
         @Override
         public Explanation explain(int doc, Explanation freq) {
           return ArticlePayloadIBSimilarity.this.explain(stats, doc, freq,
@@ -75,7 +549,111 @@ public class ArticlePayloadIBSimilarity extends IBSimilarity {
 
         @Override
         public float computePayloadFactor(int doc, int start, int end, BytesRef payload) {
-          return scorePayload(doc, start, end, payload);
+          final float factor = scorePayload(doc, start, end, payload);
+          if (payloads != null) {
+            payloads.add(factor, payload == null);
+          }
+          if (recorder != null) {
+            recorder.payloadFactor(doc, factor);
+          }
+          return factor;
         }
       }
+
+    /**
+     * Scores all terms of a multi term weight (e.g. a phrase) like
+     * {@link MultiSimilarity.MultiSimScorer} over {@link BasicSimScorer}s would, summing in
+     * the same order, but decodes the document's norm once and reads the per-term
+     * constants from flat arrays, so a segment costs one object.
+     */
+    private class PhraseSimScorer extends SimScorer {
+        private final BasicStats[] stats;
+        private final float[] lambdas;
+        private final float[] boosts;
+        private final float[][] tables;
+        private final NumericDocValues norms;
+        private final PayloadScoringListener listener;
+        private final PayloadTally payloads;
+        final PayloadExplainRecorder.ClauseRecorder recorder;
+
+        PhraseSimScorer(PhraseConstants constants, NumericDocValues norms, PayloadScoringListener listener) {
+          this.stats = constants.stats;
+          this.lambdas = constants.lambdas;
+          this.boosts = constants.boosts;
+          this.tables = constants.tables;
+          this.norms = norms;
+          this.listener = listener == null ? null : listener.forField(stats[0].field);
+          this.payloads = listener == null ? null : new PayloadTally();
+          this.recorder = clauseRecorder(stats);
+        }
+
+        @Override
+        public float score(int doc, float freq) {
+          if (listener != null) {
+            listener.docsScored(1, payloads);
+            payloads.clear();
+          }
+          final int norm = norms == null ? NO_NORMS_COLUMN : (int) norms.get(doc) & 0xFF;
+          if (recorder != null) {
+            recorder.scored(doc, freq, norm);
+          }
+          final float docLen = norm == NO_NORMS_COLUMN ? 1F : decodeNormValue((byte) norm);
+          final float halfSteps = freq * 2;
+          final int row = (int) halfSteps;
+          final int slot = row == halfSteps && row > 0 && row <= 2 * scoreTableMaxFreq
+              ? (row - 1) * SCORE_TABLE_COLUMNS + norm : -1;
+          float sum = 0F;
+          for (int i = 0; i < stats.length; i++) {
+            final float[] table = tables[i];
+            if (table != null && slot >= 0) {
+              float score = table[slot];
+              if (score != score) { // NaN, not computed yet
+                score = termScore(i, freq, docLen);
+                table[slot] = score;
+              }
+              sum += score;
+            } else {
+              sum += termScore(i, freq, docLen);
+            }
+          }
+          return sum;
+        }
+
+        private float termScore(int i, float freq, float docLen) {
+          final BasicStats termStats = stats[i];
+          return boosts[i] * distribution.score(termStats, normalization.tfn(termStats, freq, docLen), lambdas[i]);
+        }
+
+        @Override
+        public Explanation explain(int doc, Explanation freq) {
+          final float docLen = norms == null ? 1F : decodeNormValue((byte) norms.get(doc));
+          final Explanation explanation = new Explanation();
+          explanation.setDescription("sum of:");
+          float sum = 0F;
+          for (BasicStats termStats : stats) {
+            final Explanation detail = ArticlePayloadIBSimilarity.this.explain(termStats, doc, freq, docLen);
+            explanation.addDetail(detail);
+            sum += detail.getValue();
+          }
+          explanation.setValue(sum);
+          return explanation;
+        }
+
+        @Override
+        public float computeSlopFactor(int distance) {
+          return 1.0f / (distance + 1);
+        }
+
+        @Override
+        public float computePayloadFactor(int doc, int start, int end, BytesRef payload) {
+          final float factor = scorePayload(doc, start, end, payload);
+          if (payloads != null) {
+            payloads.add(factor, payload == null);
+          }
+          if (recorder != null) {
+            recorder.payloadFactor(doc, factor);
+          }
+          return factor;
+        }
+    }
 }
@@ -0,0 +1,18 @@
+package org.apache.lucene.search.similarities;
+
+/**
+ * A {@link Similarity.SimScorer} that scores a block of documents, e.g. a postings block of
+ * 128, in one call instead of one {@link Similarity.SimScorer#score(int, float)} call per
+ * document. See {@link ArticlePayloadIBSimilarity#bulkScorer(Similarity.SimScorer)}.
+ */
+public interface BulkSimScorer {
+
+    /**
+     * Sets <code>scores[i]</code> to the score of <code>docs[i]</code> with frequency
+     * <code>freqs[i]</code>, multiplied by <code>payloadFactors[i]</code> unless
+     * <code>payloadFactors</code> is <code>null</code>, for the first <code>count</code>
+     * documents. Documents must be in increasing order, like the documents of a postings
+     * list.
+     */
+    void score(int[] docs, float[] freqs, float[] payloadFactors, float[] scores, int count);
+}
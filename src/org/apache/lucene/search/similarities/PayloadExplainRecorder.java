@@ -0,0 +1,431 @@
+package org.apache.lucene.search.similarities;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreCachingWrappingScorer;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+
+/**
+ * Records compact explanations of the best <code>topK</code> hits of a search while it
+ * scores them, instead of re-running the query with explain for every hit.
+ *
+ * While a search runs through {@link #search(IndexSearcher, Query, int)}, the term scorers
+ * of {@link ArticlePayloadIBSimilarity} append the inputs of every term score (term clause,
+ * frequency, norm byte, sum and count of the payload factors) to flat scratch arrays. When
+ * a hit is collected, its inputs are kept in one of <code>topK</code> slots if the hit is
+ * among the best so far, and dropped otherwise. The distribution, lambda and normalized
+ * term frequency are only computed for the kept hits, by {@link #hits()}.
+ *
+ * Documents are scored in order and one at a time while recording, so out-of-order
+ * boolean scoring and the block scoring of cached terms are disabled. A recorder is used
+ * by one search at a time, on the calling thread. Recording needs the searcher, so it is
+ * not available on the shard searches of the search API.
+ */
+public final class PayloadExplainRecorder {
+
+    private static final ThreadLocal<PayloadExplainRecorder> ACTIVE = new ThreadLocal<>();
+
+    private final int topK;
+
+    // term clauses, in the order their scorers were first created
+    private final Map<BasicStats, Integer> clauseIds = new IdentityHashMap<>();
+    private final List<BasicStats> clauses = new ArrayList<>();
+    private final List<ArticlePayloadIBSimilarity> similarities = new ArrayList<>();
+
+    // inputs of the term scores of the documents scored but not collected yet
+    private int[] scratchDocs = new int[64];
+    private int[] scratchClauses = new int[64];
+    private float[] scratchFreqs = new float[64];
+    private int[] scratchNorms = new int[64];
+    private float[] scratchPayloadSums = new float[64];
+    private int[] scratchPayloadCounts = new int[64];
+    private int scratchHead = 0;
+    private int scratchCount = 0;
+
+    // the kept hits, a min heap of slots on their scores
+    private final int[] heap;
+    private int heapSize = 0;
+    private final int[] slotDocs;
+    private final float[] slotScores;
+    private final int[] slotCounts;
+    private final int[][] slotClauses;
+    private final float[][] slotFreqs;
+    private final int[][] slotNorms;
+    private final float[][] slotPayloadSums;
+    private final int[][] slotPayloadCounts;
+
+    public PayloadExplainRecorder(int topK) {
+        if (topK <= 0) {
+            throw new IllegalArgumentException("topK must be > 0, got " + topK);
+        }
+        this.topK = topK;
+        this.heap = new int[topK];
+        this.slotDocs = new int[topK];
+        this.slotScores = new float[topK];
+        this.slotCounts = new int[topK];
+        this.slotClauses = new int[topK][];
+        this.slotFreqs = new float[topK][];
+        this.slotNorms = new int[topK][];
+        this.slotPayloadSums = new float[topK][];
+        this.slotPayloadCounts = new int[topK][];
+    }
+
+    /**
+     * Returns the recorder of the search running on the current thread, if any
+     */
+    static PayloadExplainRecorder active() {
+        return ACTIVE.get();
+    }
+
+    /**
+     * Searches the top <code>n</code> hits of <code>query</code> and records the
+     * explanations of the best <code>topK</code> of them. The searcher must not have an
+     * executor.
+     */
+    public TopDocs search(IndexSearcher searcher, Query query, int n) throws IOException {
+        final TopScoreDocCollector collector = TopScoreDocCollector.create(Math.max(1, n), true);
+        final PayloadExplainRecorder previous = ACTIVE.get();
+        ACTIVE.set(this);
+        try {
+            searcher.search(query, new RecordingCollector(collector));
+        } finally {
+            if (previous == null) {
+                ACTIVE.remove();
+            } else {
+                ACTIVE.set(previous);
+            }
+        }
+        return collector.topDocs();
+    }
+
+    /**
+     * Returns a recorder for the scorer of the given term clauses, registering the clauses
+     * when their first scorer is created
+     */
+    ClauseRecorder clauseRecorder(ArticlePayloadIBSimilarity similarity, BasicStats[] stats) {
+        final int[] ids = new int[stats.length];
+        for (int i = 0; i < stats.length; i++) {
+            Integer id = clauseIds.get(stats[i]);
+            if (id == null) {
+                id = clauses.size();
+                clauseIds.put(stats[i], id);
+                clauses.add(stats[i]);
+                similarities.add(similarity);
+            }
+            ids[i] = id;
+        }
+        return new ClauseRecorder(ids);
+    }
+
+    /**
+     * Records the inputs of the score of one term clause in a document of the current segment
+     */
+    private void termScored(int clause, int doc, float freq, int norm, float payloadSum, int payloadCount) {
+        if (scratchCount == scratchDocs.length) {
+            final int size = 2 * scratchCount;
+            scratchDocs = Arrays.copyOf(scratchDocs, size);
+            scratchClauses = Arrays.copyOf(scratchClauses, size);
+            scratchFreqs = Arrays.copyOf(scratchFreqs, size);
+            scratchNorms = Arrays.copyOf(scratchNorms, size);
+            scratchPayloadSums = Arrays.copyOf(scratchPayloadSums, size);
+            scratchPayloadCounts = Arrays.copyOf(scratchPayloadCounts, size);
+        }
+        scratchDocs[scratchCount] = doc;
+        scratchClauses[scratchCount] = clause;
+        scratchFreqs[scratchCount] = freq;
+        scratchNorms[scratchCount] = norm;
+        scratchPayloadSums[scratchCount] = payloadSum;
+        scratchPayloadCounts[scratchCount] = payloadCount;
+        scratchCount++;
+    }
+
+    private void nextSegment() {
+        scratchHead = 0;
+        scratchCount = 0;
+    }
+
+    /**
+     * Keeps the recorded inputs of a collected hit if it is among the best so far. Inputs
+     * of documents before it were scored but not collected and are dropped.
+     */
+    private void collected(int doc, int docBase, float score) {
+        while (scratchHead < scratchCount && scratchDocs[scratchHead] < doc) {
+            scratchHead++;
+        }
+        int end = scratchHead;
+        while (end < scratchCount && scratchDocs[end] == doc) {
+            end++;
+        }
+        if (heapSize < topK || score > slotScores[heap[0]]) {
+            final int slot;
+            if (heapSize < topK) {
+                slot = heapSize;
+                heap[heapSize++] = slot;
+                up(heapSize - 1);
+            } else {
+                slot = heap[0];
+            }
+            keep(slot, docBase + doc, score, scratchHead, end);
+            down(indexOf(slot));
+        }
+        scratchHead = end;
+        if (scratchHead == scratchCount) {
+            nextSegment();
+        }
+    }
+
+    private void keep(int slot, int doc, float score, int from, int to) {
+        final int count = to - from;
+        if (slotClauses[slot] == null || slotClauses[slot].length < count) {
+            final int size = Math.max(count, 4);
+            slotClauses[slot] = new int[size];
+            slotFreqs[slot] = new float[size];
+            slotNorms[slot] = new int[size];
+            slotPayloadSums[slot] = new float[size];
+            slotPayloadCounts[slot] = new int[size];
+        }
+        System.arraycopy(scratchClauses, from, slotClauses[slot], 0, count);
+        System.arraycopy(scratchFreqs, from, slotFreqs[slot], 0, count);
+        System.arraycopy(scratchNorms, from, slotNorms[slot], 0, count);
+        System.arraycopy(scratchPayloadSums, from, slotPayloadSums[slot], 0, count);
+        System.arraycopy(scratchPayloadCounts, from, slotPayloadCounts[slot], 0, count);
+        slotDocs[slot] = doc;
+        slotScores[slot] = score;
+        slotCounts[slot] = count;
+    }
+
+    private int indexOf(int slot) {
+        for (int i = 0; i < heapSize; i++) {
+            if (heap[i] == slot) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("slot " + slot + " is not in the heap");
+    }
+
+    private boolean less(int i, int j) {
+        final float a = slotScores[heap[i]];
+        final float b = slotScores[heap[j]];
+        // among equal scores the later document is the worse hit, like in TopScoreDocCollector
+        return a < b || (a == b && slotDocs[heap[i]] > slotDocs[heap[j]]);
+    }
+
+    private void up(int i) {
+        while (i > 0 && less(i, (i - 1) / 2)) {
+            swap(i, (i - 1) / 2);
+            i = (i - 1) / 2;
+        }
+    }
+
+    private void down(int i) {
+        while (true) {
+            int smallest = i;
+            final int left = 2 * i + 1;
+            final int right = left + 1;
+            if (left < heapSize && less(left, smallest)) {
+                smallest = left;
+            }
+            if (right < heapSize && less(right, smallest)) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        final int slot = heap[i];
+        heap[i] = heap[j];
+        heap[j] = slot;
+    }
+
+    /**
+     * Returns the explanations of the kept hits, best first. Computes the distribution,
+     * lambda and normalized term frequency of their term clauses.
+     */
+    public List<Hit> hits() {
+        final List<Hit> hits = new ArrayList<>(heapSize);
+        final float[] components = new float[ArticlePayloadIBSimilarity.EXPLAIN_COMPONENTS];
+        for (int h = 0; h < heapSize; h++) {
+            final int slot = heap[h];
+            final Term[] terms = new Term[slotCounts[slot]];
+            for (int i = 0; i < terms.length; i++) {
+                final int clause = slotClauses[slot][i];
+                final BasicStats stats = clauses.get(clause);
+                similarities.get(clause).explainComponents(stats, slotFreqs[slot][i], slotNorms[slot][i], components);
+                terms[i] = new Term(clause, stats, slotFreqs[slot][i], components, slotPayloadSums[slot][i],
+                        slotPayloadCounts[slot][i]);
+            }
+            hits.add(new Hit(slotDocs[slot], slotScores[slot], terms));
+        }
+        Collections.sort(hits);
+        return hits;
+    }
+
+    /**
+     * Records the scores of one sim scorer, whose terms all score with the same frequency,
+     * norm and payload factors. Payload factors of a document are summed until it is scored.
+     */
+    final class ClauseRecorder {
+        private final int[] clauseIds;
+        private int payloadDoc = -1;
+        private float payloadSum;
+        private int payloadCount;
+
+        ClauseRecorder(int[] clauseIds) {
+            this.clauseIds = clauseIds;
+        }
+
+        void payloadFactor(int doc, float factor) {
+            if (payloadDoc != doc) {
+                payloadDoc = doc;
+                payloadSum = 0F;
+                payloadCount = 0;
+            }
+            payloadSum += factor;
+            payloadCount++;
+        }
+
+        void payloadsAveraged(int doc, float average, int positions) {
+            payloadDoc = doc;
+            payloadSum = average * positions;
+            payloadCount = positions;
+        }
+
+        void scored(int doc, float freq, int norm) {
+            final boolean payloads = payloadDoc == doc;
+            for (int clause : clauseIds) {
+                termScored(clause, doc, freq, norm, payloads ? payloadSum : 0F, payloads ? payloadCount : 0);
+            }
+            payloadDoc = -1;
+        }
+    }
+
+    /**
+     * A kept hit and the components of its term scores
+     */
+    public static final class Hit implements Comparable<Hit> {
+        public final int doc;
+        public final float score;
+        public final Term[] terms;
+
+        Hit(int doc, float score, Term[] terms) {
+            this.doc = doc;
+            this.score = score;
+            this.terms = terms;
+        }
+
+        @Override
+        public int compareTo(Hit other) {
+            int cmp = Float.compare(other.score, score);
+            return cmp != 0 ? cmp : Integer.compare(doc, other.doc);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("doc=").append(doc).append(" score=").append(score);
+            for (Term term : terms) {
+                builder.append("\n  ").append(term);
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * The components of the score of one term clause in a hit. The term score is
+     * <code>boost * distribution</code>; the payload function combines it with the payloads.
+     */
+    public static final class Term {
+        public final int clause;
+        public final String field;
+        public final long docFreq;
+        public final float freq;
+        public final float norm;
+        public final float tfn;
+        public final float lambda;
+        public final float distribution;
+        public final float boost;
+        public final float score;
+        /** average payload factor of the positions, 1 if none was read */
+        public final float payloadAverage;
+        public final int payloadCount;
+
+        Term(int clause, BasicStats stats, float freq, float[] components, float payloadSum, int payloadCount) {
+            this.clause = clause;
+            this.field = stats.field;
+            this.docFreq = stats.getDocFreq();
+            this.freq = freq;
+            this.norm = components[ArticlePayloadIBSimilarity.EXPLAIN_NORM];
+            this.tfn = components[ArticlePayloadIBSimilarity.EXPLAIN_TFN];
+            this.lambda = components[ArticlePayloadIBSimilarity.EXPLAIN_LAMBDA];
+            this.distribution = components[ArticlePayloadIBSimilarity.EXPLAIN_DISTRIBUTION];
+            this.boost = stats.getTotalBoost();
+            this.score = boost * distribution;
+            this.payloadAverage = payloadCount == 0 ? 1F : payloadSum / payloadCount;
+            this.payloadCount = payloadCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "clause=%d field=%s docFreq=%d freq=%s norm=%s tfn=%s lambda=%s distribution=%s boost=%s score=%s payload=%s/%d",
+                    clause, field, docFreq, freq, norm, tfn, lambda, distribution, boost, score, payloadAverage, payloadCount);
+        }
+    }
+
+    /**
+     * Passes hits on to the top hits collector, and keeps the recorded inputs of the
+     * best of them
+     */
+    private final class RecordingCollector extends Collector {
+        private final Collector collector;
+        private Scorer scorer;
+        private int docBase;
+
+        RecordingCollector(Collector collector) {
+            this.collector = collector;
+        }
+
+        @Override
+        public void setScorer(Scorer scorer) throws IOException {
+            // both collectors read the score, it must only be computed and recorded once
+            this.scorer = new ScoreCachingWrappingScorer(scorer);
+            collector.setScorer(this.scorer);
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            collector.collect(doc);
+            collected(doc, docBase, scorer.score());
+        }
+
+        @Override
+        public void setNextReader(AtomicReaderContext context) throws IOException {
+            nextSegment();
+            docBase = context.docBase;
+            collector.setNextReader(context);
+        }
+
+        @Override
+        public boolean acceptsDocsOutOfOrder() {
+            return false;
+        }
+    }
+}
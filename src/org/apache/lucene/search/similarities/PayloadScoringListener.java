@@ -0,0 +1,39 @@
+package org.apache.lucene.search.similarities;
+
+/**
+ * Receives events from the scorers of an {@link ArticlePayloadIBSimilarity}, and from
+ * queries run within a cost budget. Methods are called on the scoring hot path, from many
+ * search threads at once, so implementations must be cheap and must not block. Scorers
+ * gather payload factors in a {@link PayloadTally} and report them once per document or
+ * block of documents, never per position.
+ */
+public abstract class PayloadScoringListener {
+
+    /** A segment scorer was created, which took <code>nanos</code> */
+    public abstract void scorerCreated(long nanos);
+
+    /**
+     * <code>count</code> documents were scored, with the payload factors in
+     * <code>payloads</code>. The tally is cleared and reused once this returns.
+     */
+    public abstract void docsScored(int count, PayloadTally payloads);
+
+    /**
+     * Returns the listener the scorers of <code>field</code> report their documents and
+     * payloads to, this listener by default. Called once per segment scorer.
+     */
+    public PayloadScoringListener forField(String field) {
+        return this;
+    }
+
+    /**
+     * The cost of a query run within a budget was estimated, see
+     * {@link org.apache.lucene.search.payloads.PayloadBudgetQuery}. Called once per search.
+     */
+    public void queryCostEstimated(long cost, boolean overBudget) {
+    }
+
+    /** A query over budget stopped matching documents because its timeout passed */
+    public void queryTimedOut() {
+    }
+}
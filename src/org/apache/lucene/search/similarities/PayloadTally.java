@@ -0,0 +1,78 @@
+package org.apache.lucene.search.similarities;
+
+import java.util.Arrays;
+
+/**
+ * The payload factors a scorer computed since it last reported scored documents to its
+ * {@link PayloadScoringListener}. Counted in plain fields, a tally belongs to one scorer
+ * and is only used by the thread running it.
+ */
+public final class PayloadTally {
+
+    /** Upper bounds of the payload factor histogram buckets, the last bucket is open */
+    private static final float[] BOUNDS = {0.25F, 0.5F, 0.75F, 1F, 1.25F, 1.5F, 2F, 4F};
+
+    private int factors;
+    private int defaulted;
+    private int neutral;
+    private final int[] histogram = new int[BOUNDS.length + 1];
+
+    /**
+     * Returns the number of histogram buckets
+     */
+    public static int buckets() {
+        return BOUNDS.length + 1;
+    }
+
+    /**
+     * Returns the upper bound of the given bucket, or of the one before it for the open last bucket
+     */
+    public static float bound(int bucket) {
+        return BOUNDS[Math.min(bucket, BOUNDS.length - 1)];
+    }
+
+    /**
+     * Counts a payload factor, <code>missing</code> if the position had no payload
+     */
+    void add(float factor, boolean missing) {
+        factors++;
+        if (missing) {
+            defaulted++;
+        }
+        if (factor == 1F) {
+            neutral++;
+        }
+        int bucket = 0;
+        while (bucket < BOUNDS.length && factor >= BOUNDS[bucket]) {
+            bucket++;
+        }
+        histogram[bucket]++;
+    }
+
+    void clear() {
+        if (factors > 0) {
+            factors = 0;
+            defaulted = 0;
+            neutral = 0;
+            Arrays.fill(histogram, 0);
+        }
+    }
+
+    public int factors() {
+        return factors;
+    }
+
+    /** Factors of positions without a payload */
+    public int defaulted() {
+        return defaulted;
+    }
+
+    /** Factors of exactly 1 */
+    public int neutral() {
+        return neutral;
+    }
+
+    public int histogram(int bucket) {
+        return histogram[bucket];
+    }
+}
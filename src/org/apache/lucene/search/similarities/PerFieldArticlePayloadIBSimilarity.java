@@ -0,0 +1,37 @@
+package org.apache.lucene.search.similarities;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dispatches to an {@link ArticlePayloadIBSimilarity} configured for the field, or to the
+ * default one for fields without overrides. Field names are matched exactly.
+ */
+public class PerFieldArticlePayloadIBSimilarity extends PerFieldSimilarityWrapper {
+
+    private final ArticlePayloadIBSimilarity defaultSimilarity;
+    private final Map<String, ArticlePayloadIBSimilarity> fieldSimilarities;
+
+    public PerFieldArticlePayloadIBSimilarity(ArticlePayloadIBSimilarity defaultSimilarity,
+            Map<String, ArticlePayloadIBSimilarity> fieldSimilarities) {
+        this.defaultSimilarity = defaultSimilarity;
+        this.fieldSimilarities = new HashMap<>(fieldSimilarities);
+    }
+
+    @Override
+    public ArticlePayloadIBSimilarity get(String name) {
+        ArticlePayloadIBSimilarity similarity = fieldSimilarities.get(name);
+        return similarity == null ? defaultSimilarity : similarity;
+    }
+
+    public ArticlePayloadIBSimilarity getDefault() {
+        return defaultSimilarity;
+    }
+
+    /**
+     * Returns the similarities of the fields with overrides
+     */
+    public Map<String, ArticlePayloadIBSimilarity> getFieldSimilarities() {
+        return fieldSimilarities;
+    }
+}
@@ -0,0 +1,114 @@
+package org.apache.lucene.search.similarities;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Score tables of {@link ArticlePayloadIBSimilarity} keyed on the values of the term
+ * statistics rather than on the weight that computed them. Clauses that hit the same term
+ * of the same field with the same boost, within a query (e.g. a term that appears both on
+ * its own and in a phrase) or across queries on an unchanged reader, share one table, so
+ * it is allocated and filled once.
+ *
+ * One cache can be shared by several similarities, e.g. by all per-field similarities of
+ * a provider. When it grows beyond its size it is simply cleared; tables in use keep
+ * working, they are just no longer shared.
+ */
+public final class ScoreTableCache {
+
+    private final int maxSize;
+    private final ConcurrentMap<Key, float[]> tables = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxSize maximum number of tables to keep
+     */
+    public ScoreTableCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be > 0, got " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the table for the given similarity and stats, with NaN in cells that were
+     * not computed yet.
+     */
+    float[] get(ArticlePayloadIBSimilarity similarity, BasicStats stats, int length) {
+        final Key key = new Key(similarity, stats);
+        float[] table = tables.get(key);
+        if (table == null) {
+            if (tables.size() >= maxSize) {
+                tables.clear();
+            }
+            final float[] created = new float[length];
+            Arrays.fill(created, Float.NaN);
+            table = tables.putIfAbsent(key, created);
+            if (table == null) {
+                table = created;
+            }
+        }
+        return table;
+    }
+
+    public int size() {
+        return tables.size();
+    }
+
+    public void clear() {
+        tables.clear();
+    }
+
+    private static final class Key {
+        private final ArticlePayloadIBSimilarity similarity;
+        private final String field;
+        private final long numberOfDocuments;
+        private final long numberOfFieldTokens;
+        private final float avgFieldLength;
+        private final long docFreq;
+        private final long totalTermFreq;
+        private final float totalBoost;
+        private final int hashCode;
+
+        Key(ArticlePayloadIBSimilarity similarity, BasicStats stats) {
+            this.similarity = similarity;
+            this.field = stats.field;
+            this.numberOfDocuments = stats.getNumberOfDocuments();
+            this.numberOfFieldTokens = stats.getNumberOfFieldTokens();
+            this.avgFieldLength = stats.getAvgFieldLength();
+            this.docFreq = stats.getDocFreq();
+            this.totalTermFreq = stats.getTotalTermFreq();
+            this.totalBoost = stats.getTotalBoost();
+            int hash = System.identityHashCode(similarity);
+            hash = 31 * hash + field.hashCode();
+            hash = 31 * hash + (int) (numberOfDocuments ^ (numberOfDocuments >>> 32));
+            hash = 31 * hash + (int) (numberOfFieldTokens ^ (numberOfFieldTokens >>> 32));
+            hash = 31 * hash + Float.floatToIntBits(avgFieldLength);
+            hash = 31 * hash + (int) (docFreq ^ (docFreq >>> 32));
+            hash = 31 * hash + (int) (totalTermFreq ^ (totalTermFreq >>> 32));
+            hash = 31 * hash + Float.floatToIntBits(totalBoost);
+            this.hashCode = hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return similarity == other.similarity
+                    && field.equals(other.field)
+                    && numberOfDocuments == other.numberOfDocuments
+                    && numberOfFieldTokens == other.numberOfFieldTokens
+                    && Float.floatToIntBits(avgFieldLength) == Float.floatToIntBits(other.avgFieldLength)
+                    && docFreq == other.docFreq
+                    && totalTermFreq == other.totalTermFreq
+                    && Float.floatToIntBits(totalBoost) == Float.floatToIntBits(other.totalBoost);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.payloads.NeutralPayloadFilter;
+import org.apache.lucene.analysis.payloads.PayloadFormat;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.assistedinject.Assisted;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.settings.IndexSettings;
+
+/**
+ * Drops payloads equal to the neutral weight 1, within <code>tolerance</code> (default 0).
+ * Payloads are decoded with <code>format</code> and <code>scale</code>, so the filter goes
+ * after the filters that set and encode them. The similarity of the field must be
+ * configured with <code>missing_payloads: neutral</code> to score as before.
+ */
+public class NeutralPayloadFilterFactory extends AbstractTokenFilterFactory {
+
+    private final PayloadFormat format;
+    private final float tolerance;
+
+    @Inject
+    public NeutralPayloadFilterFactory(Index index, @IndexSettings Settings indexSettings,
+            @Assisted String name, @Assisted Settings settings) {
+        super(index, indexSettings, name, settings);
+        this.format = PayloadFormatTokenFilterFactory.parseFormat(settings.get("format", PayloadFormat.FLOAT),
+                settings.getAsFloat("scale", null));
+        this.tolerance = settings.getAsFloat("tolerance", 0.0F);
+        if (!(tolerance >= 0)) {
+            throw new ElasticsearchIllegalArgumentException("tolerance must be >= 0, got [" + tolerance + "]");
+        }
+    }
+
+    @Override
+    public TokenStream create(TokenStream tokenStream) {
+        return new NeutralPayloadFilter(tokenStream, format, tolerance);
+    }
+}
@@ -0,0 +1,49 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.payloads.PayloadFormat;
+import org.apache.lucene.analysis.payloads.PayloadFormatTokenFilter;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.assistedinject.Assisted;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.settings.IndexSettings;
+
+/**
+ * Re-encodes float payloads into the compact format configured with <code>format</code>
+ * and <code>scale</code>. Must be placed after the filter that sets the payloads, and
+ * match the <code>payload_format</code> of the similarity of the field.
+ */
+public class PayloadFormatTokenFilterFactory extends AbstractTokenFilterFactory {
+
+    private final PayloadFormat source;
+    private final PayloadFormat target;
+
+    @Inject
+    public PayloadFormatTokenFilterFactory(Index index, @IndexSettings Settings indexSettings,
+            @Assisted String name, @Assisted Settings settings) {
+        super(index, indexSettings, name, settings);
+        this.source = parseFormat(settings.get("source_format", PayloadFormat.FLOAT), settings.getAsFloat("source_scale", null));
+        this.target = parseFormat(settings.get("format", PayloadFormat.FLOAT), settings.getAsFloat("scale", null));
+    }
+
+    /**
+     * Parses a payload format, defaulting the scale of the {@link PayloadFormat#BYTE} format
+     * to a maximum weight of 1 and that of the {@link PayloadFormat#VINT_FIXED} format to
+     * 100 units per weight.
+     */
+    public static PayloadFormat parseFormat(String name, Float scale) {
+        float resolvedScale = scale != null ? scale : (PayloadFormat.VINT_FIXED.equals(name) ? 100.0F : 1.0F);
+        try {
+            return PayloadFormat.forName(name, resolvedScale);
+        } catch (IllegalArgumentException e) {
+            throw new ElasticsearchIllegalArgumentException(e.getMessage());
+        }
+    }
+
+    @Override
+    public TokenStream create(TokenStream tokenStream) {
+        return new PayloadFormatTokenFilter(tokenStream, source, target);
+    }
+}
@@ -0,0 +1,71 @@
+package org.elasticsearch.index.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.MapperService;
+
+/**
+ * Identifies a version of the mappings of an index. Every mapping update replaces the
+ * mapping source of the updated type, so two fingerprints are equal only if no type was
+ * added, removed or updated in between. A recreated index has new mapping sources, so it
+ * never shares a fingerprint with the index it replaced. Only the index name and the
+ * sources are held, not the mapper service, so that caches do not keep it reachable.
+ */
+final class MappingFingerprint {
+
+    private final String index;
+    private final Object[] sources;
+    private final int hashCode;
+
+    private MappingFingerprint(String index, Object[] sources) {
+        this.index = index;
+        this.sources = sources;
+        int hash = index.hashCode();
+        for (Object source : sources) {
+            hash = 31 * hash + System.identityHashCode(source);
+        }
+        this.hashCode = hash;
+    }
+
+    static MappingFingerprint of(MapperService mapperService) {
+        List<Object> sources = new ArrayList<>();
+        for (DocumentMapper mapper : mapperService) {
+            sources.add(mapper.mappingSource());
+        }
+        return new MappingFingerprint(mapperService.index().name(), sources.toArray());
+    }
+
+    /**
+     * Returns the name of the index the fingerprint was taken of
+     */
+    String index() {
+        return index;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof MappingFingerprint)) {
+            return false;
+        }
+        MappingFingerprint other = (MappingFingerprint) obj;
+        if (!index.equals(other.index) || sources.length != other.sources.length) {
+            return false;
+        }
+        for (int i = 0; i < sources.length; i++) {
+            if (sources[i] != other.sources[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+}
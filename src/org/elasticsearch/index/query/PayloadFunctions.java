@@ -0,0 +1,60 @@
+package org.elasticsearch.index.query;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.lucene.search.payloads.AveragePayloadFunction;
+import org.apache.lucene.search.payloads.FirstPayloadFunction;
+import org.apache.lucene.search.payloads.MaxPayloadFunction;
+import org.apache.lucene.search.payloads.MinPayloadFunction;
+import org.apache.lucene.search.payloads.PayloadFunction;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+/**
+ * Named {@link PayloadFunction}s available to the <code>payload_function</code> option of
+ * {@link SimplePayloadQueryStringParser}. Payload functions are stateless, so a single
+ * instance of each is shared by all clauses of all queries.
+ */
+public final class PayloadFunctions {
+
+    public static final PayloadFunction AVERAGE = new AveragePayloadFunction();
+    public static final PayloadFunction MAX = new MaxPayloadFunction();
+    public static final PayloadFunction MIN = new MinPayloadFunction();
+    public static final PayloadFunction FIRST = new FirstPayloadFunction();
+
+    private static final ConcurrentMap<String, PayloadFunction> FUNCTIONS = ConcurrentCollections.newConcurrentMap();
+
+    static {
+        FUNCTIONS.put("average", AVERAGE);
+        FUNCTIONS.put("avg", AVERAGE);
+        FUNCTIONS.put("max", MAX);
+        FUNCTIONS.put("min", MIN);
+        FUNCTIONS.put("first", FIRST);
+    }
+
+    private PayloadFunctions() {
+    }
+
+    /**
+     * Registers a custom payload function under the given name. The function is shared
+     * across threads and queries, so it must not keep any state.
+     */
+    public static void register(String name, PayloadFunction function) {
+        String key = name.toLowerCase(Locale.ROOT);
+        if (FUNCTIONS.putIfAbsent(key, function) != null) {
+            throw new ElasticsearchIllegalArgumentException("Payload function [" + name + "] is already registered");
+        }
+    }
+
+    /**
+     * Returns the payload function registered under the given name
+     */
+    public static PayloadFunction get(String name) {
+        PayloadFunction function = FUNCTIONS.get(name.toLowerCase(Locale.ROOT));
+        if (function == null) {
+            throw new ElasticsearchIllegalArgumentException("Unknown payload function [" + name + "]");
+        }
+        return function;
+    }
+}
@@ -0,0 +1,28 @@
+package org.elasticsearch.index.query;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.payloads.PayloadBudgetQuery;
+import org.apache.lucene.search.similarities.PayloadScoringListener;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.search.internal.SearchContext;
+
+/**
+ * A {@link PayloadBudgetQuery} that rejects a query over budget with a bad request. The
+ * cost is estimated per shard, so a search over several shards fails only on the shards
+ * the query is over budget on, and returns the hits of the others along with the failures.
+ */
+public class ShardPayloadBudgetQuery extends PayloadBudgetQuery {
+
+    public ShardPayloadBudgetQuery(Query query, Query degraded, long maxCost, Action action, long timeoutNanos,
+            PayloadScoringListener listener) {
+        super(query, degraded, maxCost, action, timeoutNanos, listener);
+    }
+
+    @Override
+    protected RuntimeException overBudget(long estimate) {
+        SearchContext context = SearchContext.current();
+        String shard = context == null ? "" : " on shard " + context.shardTarget();
+        return new ElasticsearchIllegalArgumentException("[" + SimplePayloadQueryStringParser.NAME + "] query cost ["
+                + estimate + "] exceeds max_cost [" + getMaxCost() + "]" + shard);
+    }
+}
@@ -0,0 +1,58 @@
+package org.elasticsearch.index.query;
+
+import java.util.List;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.payloads.PayloadImpactsCache;
+import org.apache.lucene.search.payloads.PayloadMaxScoreQuery;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.lucene.search.XFilteredQuery;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.search.rescore.RescoreSearchContext;
+
+/**
+ * A {@link PayloadMaxScoreQuery} that checks the shard search it runs in before skipping
+ * documents. Only the top-level query of the search, possibly filtered, skips documents;
+ * nested in another query, e.g. a boolean query, it scores the plain disjunction. A search
+ * that collects more than <code>top_k</code> hits, through
+ * <code>from + size</code> or a rescore window, is rejected. Searches that sort by
+ * anything but the score, drop hits after collection with a <code>min_score</code> or a
+ * <code>post_filter</code>, or aggregate over all hits score the plain disjunction.
+ */
+public class ShardPayloadMaxScoreQuery extends PayloadMaxScoreQuery {
+
+    public ShardPayloadMaxScoreQuery(List<Clause> clauses, List<Group> groups, int topK,
+            PayloadImpactsCache impactsCache) {
+        super(clauses, groups, topK, impactsCache);
+    }
+
+    @Override
+    protected boolean prune(IndexSearcher searcher) {
+        SearchContext context = SearchContext.current();
+        if (context == null) {
+            return true;
+        }
+        Query query = context.query();
+        while (query instanceof XFilteredQuery) {
+            query = ((XFilteredQuery) query).getQuery();
+        }
+        if (!isTopLevel(query)) {
+            return false;
+        }
+        // from and size are only final once the whole search source is parsed
+        int hits = Math.max(context.from(), 0) + Math.max(context.size(), 0);
+        for (RescoreSearchContext rescore : context.rescore()) {
+            hits = Math.max(hits, rescore.window());
+        }
+        if (hits > getTopK()) {
+            throw new ElasticsearchIllegalArgumentException("[" + SimplePayloadQueryStringParser.NAME + "] top_k ["
+                    + getTopK() + "] must be >= from + size and any rescore window, got [" + hits + "]");
+        }
+        return context.sort() == null
+                && context.minimumScore() == null
+                && context.parsedPostFilter() == null
+                && context.aggregations() == null
+                && context.facets() == null;
+    }
+}
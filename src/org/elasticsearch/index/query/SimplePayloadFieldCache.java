@@ -0,0 +1,176 @@
+package org.elasticsearch.index.query;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.regex.Regex;
+import org.elasticsearch.index.mapper.MapperService;
+
+/**
+ * Cache of the <code>fields</code> of {@link SimplePayloadQueryStringParser} resolved to
+ * index names and weights, so that wildcard patterns are not matched against all mapped
+ * fields and field names are not looked up on every parse.
+ *
+ * Each index has one immutable snapshot of resolved field specs, tagged with the
+ * {@link MappingFingerprint} it was resolved against. Readers only read the snapshot, a
+ * miss resolves the specs and swaps in a copy of the snapshot with the new entry. A
+ * snapshot of an older mapping is never read but replaced by an empty one, so a mapping
+ * update invalidates all entries of the index at once.
+ */
+public class SimplePayloadFieldCache {
+
+    private final Cache<MapperService, AtomicReference<Snapshot>> indices =
+            CacheBuilder.newBuilder().weakKeys().build();
+    private final int maxSize;
+
+    /**
+     * @param maxSize number of distinct field specs cached per index, further specs are
+     *                resolved on every parse
+     */
+    public SimplePayloadFieldCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Resolves field specs like <code>title^2</code> or <code>meta_*</code> to an immutable
+     * map of index names to weights. Later specs override the weights of earlier ones.
+     */
+    Map<String, Float> resolve(QueryParseContext parseContext, MappingFingerprint mapping, List<String> specs) {
+        final AtomicReference<Snapshot> ref = snapshot(parseContext.mapperService());
+        // lookups of non-wildcard fields depend on the types of the search
+        final Key key = new Key(specs, QueryParseContext.getTypes());
+        Snapshot snapshot = ref.get();
+        if (mapping.equals(snapshot.mapping)) {
+            Map<String, Float> resolved = snapshot.fields.get(key);
+            if (resolved != null) {
+                return resolved;
+            }
+        }
+        final Map<String, Float> resolved = resolveUncached(parseContext, specs);
+        while (true) {
+            snapshot = ref.get();
+            final Snapshot updated;
+            if (mapping.equals(snapshot.mapping)) {
+                if (snapshot.fields.size() >= maxSize || snapshot.fields.containsKey(key)) {
+                    return resolved;
+                }
+                updated = snapshot.with(key, resolved);
+            } else {
+                updated = new Snapshot(mapping, Collections.<Key, Map<String, Float>>emptyMap()).with(key, resolved);
+            }
+            if (ref.compareAndSet(snapshot, updated)) {
+                return resolved;
+            }
+        }
+    }
+
+    private AtomicReference<Snapshot> snapshot(MapperService mapperService) {
+        AtomicReference<Snapshot> ref = indices.getIfPresent(mapperService);
+        if (ref != null) {
+            return ref;
+        }
+        try {
+            return indices.get(mapperService, new Callable<AtomicReference<Snapshot>>() {
+                @Override
+                public AtomicReference<Snapshot> call() {
+                    return new AtomicReference<>(Snapshot.EMPTY);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new ElasticsearchException("Failed to create the field cache of an index", e);
+        }
+    }
+
+    static Map<String, Float> resolveUncached(QueryParseContext parseContext, List<String> specs) {
+        Map<String, Float> fieldsAndWeights = new HashMap<>();
+        for (String spec : specs) {
+            String fField = spec;
+            float fBoost = 1;
+            int caret = spec.indexOf('^');
+            if (caret >= 0) {
+                fField = spec.substring(0, caret);
+                fBoost = Float.parseFloat(spec.substring(caret + 1));
+            }
+
+            if (Regex.isSimpleMatchPattern(fField)) {
+                for (String fieldName : parseContext.mapperService().simpleMatchToIndexNames(fField)) {
+                    fieldsAndWeights.put(fieldName, fBoost);
+                }
+            } else {
+                MapperService.SmartNameFieldMappers mappers = parseContext.smartFieldMappers(fField);
+                if (mappers != null && mappers.hasMapper()) {
+                    fieldsAndWeights.put(mappers.mapper().names().indexName(), fBoost);
+                } else {
+                    fieldsAndWeights.put(fField, fBoost);
+                }
+            }
+        }
+        return Collections.unmodifiableMap(fieldsAndWeights);
+    }
+
+    /**
+     * Removes the snapshots of all indices
+     */
+    public void clear() {
+        indices.invalidateAll();
+    }
+
+    /**
+     * Resolved field specs of one index against one version of its mapping, never modified
+     */
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(null, Collections.<Key, Map<String, Float>>emptyMap());
+
+        final MappingFingerprint mapping;
+        final Map<Key, Map<String, Float>> fields;
+
+        Snapshot(MappingFingerprint mapping, Map<Key, Map<String, Float>> fields) {
+            this.mapping = mapping;
+            this.fields = fields;
+        }
+
+        Snapshot with(Key key, Map<String, Float> resolved) {
+            Map<Key, Map<String, Float>> copy = new HashMap<>(fields);
+            copy.put(key, resolved);
+            return new Snapshot(mapping, copy);
+        }
+    }
+
+    private static final class Key {
+        private final List<String> specs;
+        private final String[] types;
+        private final int hashCode;
+
+        Key(List<String> specs, String[] types) {
+            this.specs = specs;
+            this.types = types;
+            this.hashCode = 31 * specs.hashCode() + Arrays.hashCode(types);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hashCode == other.hashCode && specs.equals(other.specs) && Arrays.equals(types, other.types);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
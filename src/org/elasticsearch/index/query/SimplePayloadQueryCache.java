@@ -0,0 +1,182 @@
+package org.elasticsearch.index.query;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.CacheStats;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Bounded cache of the queries built by {@link SimplePayloadQueryStringParser}, keyed on
+ * everything that goes into building them. Keys include the {@link MappingFingerprint} of
+ * the index, so entries built against older mappings are never returned, and they are
+ * dropped as soon as a query is parsed against a new mapping of their index. Entries hold
+ * the analyzers of their index, so they are dropped when the index is closed or deleted on
+ * this node, see {@link #removeIndex(String)}. Callers get a clone of the cached query, the
+ * cached instance is never handed out.
+ */
+public class SimplePayloadQueryCache implements ToXContent {
+
+    private final Cache<Key, Query> cache;
+    // the fingerprint the entries of each index were last built against, by index name
+    private final Cache<String, MappingFingerprint> mappings = CacheBuilder.newBuilder().build();
+    private final CounterMetric invalidations = new CounterMetric();
+
+    public SimplePayloadQueryCache(int maxSize) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats().build();
+    }
+
+    Query get(Key key) {
+        checkMapping(key.mapping);
+        Query query = cache.getIfPresent(key);
+        return query == null ? null : query.clone();
+    }
+
+    void put(Key key, Query query) {
+        checkMapping(key.mapping);
+        cache.put(key, query.clone());
+    }
+
+    /**
+     * Drops the entries of the index that were built against another mapping, if the
+     * mapping changed since the last query of the index
+     */
+    private void checkMapping(MappingFingerprint mapping) {
+        MappingFingerprint previous = mappings.getIfPresent(mapping.index());
+        if (mapping.equals(previous)) {
+            return;
+        }
+        mappings.put(mapping.index(), mapping);
+        if (previous == null) {
+            return;
+        }
+        // rare, only after a mapping update
+        for (Iterator<Key> keys = cache.asMap().keySet().iterator(); keys.hasNext(); ) {
+            Key key = keys.next();
+            if (key.mapping.index().equals(mapping.index()) && !key.mapping.equals(mapping)) {
+                keys.remove();
+                invalidations.inc();
+            }
+        }
+    }
+
+    /**
+     * Drops the entries of an index that was closed or deleted on this node
+     */
+    public void removeIndex(String index) {
+        mappings.invalidate(index);
+        for (Iterator<Key> keys = cache.asMap().keySet().iterator(); keys.hasNext(); ) {
+            if (keys.next().mapping.index().equals(index)) {
+                keys.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * Returns the number of entries dropped because the mapping of their index changed
+     */
+    public long invalidations() {
+        return invalidations.count();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        CacheStats stats = stats();
+        builder.startObject("query_cache");
+        builder.field("size", size());
+        builder.field("hits", stats.hitCount());
+        builder.field("misses", stats.missCount());
+        builder.field("hit_rate", stats.hitRate());
+        builder.field("evictions", stats.evictionCount());
+        builder.field("mapping_invalidations", invalidations());
+        return builder.endObject();
+    }
+
+    static final class Key {
+        private final MappingFingerprint mapping;
+        private final String queryText;
+        private final Map<String, Float> fieldsAndWeights;
+        private final Analyzer analyzer;
+        private final int flags;
+        private final BooleanClause.Occur defaultOperator;
+        private final Locale locale;
+        private final boolean lowercaseExpandedTerms;
+        private final boolean lenient;
+        private final SimplePayloadQueryParser.PayloadSettings payloadSettings;
+        private final int hashCode;
+
+        Key(MappingFingerprint mapping, String queryText, Map<String, Float> fieldsAndWeights, Analyzer analyzer,
+                int flags, BooleanClause.Occur defaultOperator, SimpleQueryParser.Settings settings,
+                SimplePayloadQueryParser.PayloadSettings payloadSettings) {
+            this.mapping = mapping;
+            this.queryText = queryText;
+            this.fieldsAndWeights = fieldsAndWeights;
+            this.analyzer = analyzer;
+            this.flags = flags;
+            this.defaultOperator = defaultOperator;
+            this.locale = settings.locale();
+            this.lowercaseExpandedTerms = settings.lowercaseExpandedTerms();
+            this.lenient = settings.lenient();
+            this.payloadSettings = payloadSettings;
+            int hash = mapping.hashCode();
+            hash = 31 * hash + queryText.hashCode();
+            hash = 31 * hash + fieldsAndWeights.hashCode();
+            hash = 31 * hash + System.identityHashCode(analyzer);
+            hash = 31 * hash + flags;
+            hash = 31 * hash + (defaultOperator == null ? 0 : defaultOperator.hashCode());
+            hash = 31 * hash + (locale == null ? 0 : locale.hashCode());
+            hash = 31 * hash + (lowercaseExpandedTerms ? 1 : 0);
+            hash = 31 * hash + (lenient ? 1 : 0);
+            hash = 31 * hash + payloadSettings.hashCode();
+            this.hashCode = hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hashCode == other.hashCode
+                    && analyzer == other.analyzer
+                    && flags == other.flags
+                    && defaultOperator == other.defaultOperator
+                    && lowercaseExpandedTerms == other.lowercaseExpandedTerms
+                    && lenient == other.lenient
+                    && queryText.equals(other.queryText)
+                    && (locale == null ? other.locale == null : locale.equals(other.locale))
+                    && fieldsAndWeights.equals(other.fieldsAndWeights)
+                    && payloadSettings.equals(other.payloadSettings)
+                    && mapping.equals(other.mapping);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
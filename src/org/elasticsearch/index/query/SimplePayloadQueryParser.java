@@ -1,16 +1,39 @@
 package org.elasticsearch.index.query;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MultiTermQuery;
 import org.apache.lucene.search.PhraseQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.payloads.AveragePayloadFunction;
-import org.apache.lucene.search.payloads.PayloadNearQuery;
+import org.apache.lucene.search.payloads.AveragePayloadTermQuery;
+import org.apache.lucene.search.payloads.CombinedFieldPayloadTermQuery;
+import org.apache.lucene.search.payloads.MappedPayloadCache;
+import org.apache.lucene.search.payloads.MappedPayloadTermQuery;
+import org.apache.lucene.search.payloads.PayloadBudgetQuery;
+import org.apache.lucene.search.payloads.PayloadFunction;
+import org.apache.lucene.search.payloads.PayloadImpactsCache;
+import org.apache.lucene.search.payloads.PayloadMaxScoreQuery;
+import org.apache.lucene.search.payloads.PayloadMultiTermQuery;
+import org.apache.lucene.search.payloads.PayloadParallelQuery;
+import org.apache.lucene.search.payloads.PayloadPhraseQuery;
+import org.apache.lucene.search.payloads.PayloadRescoreQuery;
 import org.apache.lucene.search.payloads.PayloadTermQuery;
-import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.payloads.PayloadTopTermsRewrite;
+import org.apache.lucene.search.similarities.ArticlePayloadIBSimilarity;
+import org.apache.lucene.search.similarities.PayloadScoringListener;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.search.payloads.SparsePayloadTermQuery;
 import org.apache.lucene.search.BooleanClause;
 
 /**
@@ -77,14 +100,268 @@ import org.apache.lucene.search.BooleanClause;
  */
 public class SimplePayloadQueryParser extends SimpleQueryParser {
 
+    private final PayloadSettings payloadSettings;
+    // cleared while the payload-less first pass of a rescore query is parsed
+    private boolean payloads = true;
+    // set while the terms of a combined field query are built
+    private boolean combining = false;
+    // set while the cheaper query a query over budget degrades to is parsed
+    private boolean degrading = false;
     
     public SimplePayloadQueryParser(Analyzer analyzer, Map<String, Float> weights, int flags, Settings settings) {
+        this(analyzer, weights, flags, settings, new PayloadSettings());
+    }
+
+    public SimplePayloadQueryParser(Analyzer analyzer, Map<String, Float> weights, int flags, Settings settings,
+            PayloadSettings payloadSettings) {
         super(analyzer, weights, flags, settings);
+        this.payloadSettings = payloadSettings;
     }
     
+    /**
+     * Parses the text, turning pure disjunctions of payload terms scored by an
+     * {@link ArticlePayloadIBSimilarity} into a {@link ShardPayloadMaxScoreQuery} if a top k
+     * was configured, or into a {@link PayloadRescoreQuery} if a rescore window was
+     * configured. With a budget the query is wrapped in a {@link ShardPayloadBudgetQuery}, with a
+     * parallelism in a {@link PayloadParallelQuery}.
+     */
+    @Override
+    public Query parse(String queryText) {
+        final Query query = parseBudgetedQuery(queryText);
+        if (query == null || payloadSettings.parallelism() <= 0 || payloadSettings.parallelPool() == null) {
+            return query;
+        }
+        return new PayloadParallelQuery(query, payloadSettings.parallelism(), payloadSettings.parallelPool());
+    }
+
+    private Query parseBudgetedQuery(String queryText) {
+        final Query query = parsePayloadQuery(queryText);
+        if (query == null || !payloadSettings.hasBudget()) {
+            return query;
+        }
+        Query degraded = null;
+        if (payloadSettings.budgetAction() == PayloadBudgetQuery.Action.DEGRADE) {
+            payloads = false;
+            degrading = true;
+            try {
+                degraded = super.parse(queryText);
+            } finally {
+                payloads = true;
+                degrading = false;
+            }
+        }
+        return new ShardPayloadBudgetQuery(query, degraded == null ? query : degraded, payloadSettings.maxCost(),
+                payloadSettings.budgetAction(), payloadSettings.budgetTimeout(), payloadSettings.costListener());
+    }
+
+    private Query parsePayloadQuery(String queryText) {
+        Query query = super.parse(queryText);
+        if (payloadSettings.rescoreWindow() > 0 && query != null) {
+            final Query firstPass;
+            payloads = false;
+            try {
+                firstPass = super.parse(queryText);
+            } finally {
+                payloads = true;
+            }
+            return new PayloadRescoreQuery(firstPass, query, payloadSettings.rescoreWindow());
+        }
+        // the max score query reads every position, ranged terms keep their own scorers
+        if (payloadSettings.topK() > 0 && query != null && !payloadSettings.hasPayloadRange()) {
+            List<PayloadMaxScoreQuery.Clause> clauses = new ArrayList<>();
+            List<PayloadMaxScoreQuery.Group> groups = new ArrayList<>();
+            groups.add(new PayloadMaxScoreQuery.Group(-1, 1, true));
+            if (collectDisjunction(query, 1.0F, 0, clauses, groups) && !clauses.isEmpty() && boundable(clauses)) {
+                return new ShardPayloadMaxScoreQuery(clauses, groups, payloadSettings.topK(),
+                        payloadSettings.impactsCache());
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Returns whether every clause is scored by an {@link ArticlePayloadIBSimilarity}, which
+     * the bounds of a max score query are computed from
+     */
+    private boolean boundable(List<PayloadMaxScoreQuery.Clause> clauses) {
+        if (payloadSettings.similarity() == null) {
+            return true;
+        }
+        for (PayloadMaxScoreQuery.Clause clause : clauses) {
+            if (ArticlePayloadIBSimilarity.forField(payloadSettings.similarity(), clause.getTerm().field()) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Collects the payload terms of nested disjunctions into <code>group</code>, each boolean
+     * query becoming a group that keeps its coord
+     */
+    private boolean collectDisjunction(Query query, float boost, int group, List<PayloadMaxScoreQuery.Clause> clauses,
+            List<PayloadMaxScoreQuery.Group> groups) {
+        if (query instanceof PayloadTermQuery) {
+            clauses.add(new PayloadMaxScoreQuery.Clause(((PayloadTermQuery) query).getTerm(),
+                    boost * query.getBoost(), payloadSettings.payloadFunction(), group));
+            return true;
+        }
+        if (query instanceof BooleanQuery) {
+            BooleanQuery bq = (BooleanQuery) query;
+            if (bq.getMinimumNumberShouldMatch() > 0) {
+                return false;
+            }
+            int child = groups.size();
+            groups.add(new PayloadMaxScoreQuery.Group(group, bq.clauses().size(), bq.isCoordDisabled()));
+            for (BooleanClause clause : bq.clauses()) {
+                if (clause.getOccur() != BooleanClause.Occur.SHOULD
+                        || !collectDisjunction(clause.getQuery(), boost * bq.getBoost(), child, clauses, groups)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Scores the weighted fields as one combined field if configured, analyzing the text
+     * once with the first field's analyzer instead of once per field.
+     */
+    @Override
+    public Query newDefaultQuery(String text) {
+        if (!payloads || !payloadSettings.combinedFields() || weights.size() < 2 || payloadSettings.hasPayloadRange()) {
+            return super.newDefaultQuery(text);
+        }
+        combining = true;
+        try {
+            return createBooleanQuery(new TreeMap<>(weights).firstKey(), text, getDefaultOperator());
+        } finally {
+            combining = false;
+        }
+    }
+
+    /**
+     * Analyzes the text of a term, or reuses the query built for the same text and settings
+     * earlier in the batch if an {@link AnalysisMemo} is set.
+     */
+    @Override
+    public Query createBooleanQuery(String field, String queryText, BooleanClause.Occur operator) {
+        final AnalysisMemo memo = payloadSettings.analysisMemo();
+        if (memo == null) {
+            return super.createBooleanQuery(field, queryText, operator);
+        }
+        final List<Object> key = memoKey(field, queryText, operator);
+        Query query = memo.get(key);
+        if (query == null) {
+            query = super.createBooleanQuery(field, queryText, operator);
+            memo.put(key, query);
+        }
+        return query;
+    }
+
+    /**
+     * Analyzes the text of a phrase, or reuses the query built for the same text earlier in
+     * the batch if an {@link AnalysisMemo} is set.
+     */
+    @Override
+    public Query createPhraseQuery(String field, String queryText, int phraseSlop) {
+        final AnalysisMemo memo = payloadSettings.analysisMemo();
+        if (memo == null) {
+            return super.createPhraseQuery(field, queryText, phraseSlop);
+        }
+        final List<Object> key = memoKey(field, queryText, phraseSlop);
+        Query query = memo.get(key);
+        if (query == null) {
+            query = super.createPhraseQuery(field, queryText, phraseSlop);
+            memo.put(key, query);
+        }
+        return query;
+    }
+
+    private List<Object> memoKey(String field, String queryText, Object operatorOrSlop) {
+        // term queries depend on the payload settings and, when combining, on the weights
+        return Arrays.<Object>asList(getAnalyzer(), field, queryText, operatorOrSlop, payloads, combining,
+                combining ? weights : null, payloadSettings);
+    }
+
     @Override
     protected Query newTermQuery(Term term) {
-        return new PayloadTermQuery(term, new AveragePayloadFunction(), true);
+        if (!payloads) {
+            return super.newTermQuery(term);
+        }
+        if (combining) {
+            return new CombinedFieldPayloadTermQuery(term.bytes(), weights, payloadSettings.payloadFunction());
+        }
+        // precomputed payload factors are averages, and payload ranges filter positions
+        PayloadMode mode = payloadSettings.payloadFunction() instanceof AveragePayloadFunction
+                && !payloadSettings.hasPayloadRange() ? payloadSettings.payloadMode() : PayloadMode.POSITIONS;
+        switch (mode) {
+            case DOC_VALUES:
+                return new AveragePayloadTermQuery(term);
+            case CACHED:
+                if (payloadSettings.payloadCache() != null) {
+                    return new MappedPayloadTermQuery(term, payloadSettings.payloadCache());
+                }
+                // no cache configured on this node, read the positions
+                break;
+            default:
+                break;
+        }
+        return new SparsePayloadTermQuery(term, payloadSettings.payloadFunction(), true,
+                payloadSettings.minPayload(), payloadSettings.maxPayload(), payloadSettings.impactsCache());
+    }
+
+    /**
+     * Builds the prefix query of the base parser and expands it into payload term clauses
+     */
+    @Override
+    public Query newPrefixQuery(String text) {
+        return payloadExpansion(super.newPrefixQuery(text));
+    }
+
+    /**
+     * Builds the fuzzy query of the base parser and expands it into payload term clauses
+     */
+    @Override
+    public Query newFuzzyQuery(String text, int fuzziness) {
+        return payloadExpansion(super.newFuzzyQuery(text, fuzziness));
+    }
+
+    private Query payloadExpansion(Query query) {
+        if (degrading) {
+            return capExpansion(query);
+        }
+        if (!payloads || payloadSettings.expansionSize() <= 0) {
+            return query;
+        }
+        if (query instanceof MultiTermQuery) {
+            return new PayloadMultiTermQuery((MultiTermQuery) query, new PayloadTopTermsRewrite(payloadSettings.expansionSize(),
+                    payloadSettings.expansionRanking(), payloadSettings.payloadFunction(), payloadSettings.impactsCache()));
+        }
+        if (query instanceof BooleanQuery) {
+            // one clause per field
+            for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                clause.setQuery(payloadExpansion(clause.getQuery()));
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Limits a multi term query of a degraded query to the expansion size, scored without
+     * payloads
+     */
+    private Query capExpansion(Query query) {
+        if (query instanceof MultiTermQuery && payloadSettings.expansionSize() > 0) {
+            ((MultiTermQuery) query).setRewriteMethod(
+                    new MultiTermQuery.TopTermsScoringBooleanQueryRewrite(payloadSettings.expansionSize()));
+        } else if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                clause.setQuery(capExpansion(clause.getQuery()));
+            }
+        }
+        return query;
     }
 
 	/**
@@ -92,16 +369,20 @@ public class SimplePayloadQueryParser extends SimpleQueryParser {
 	*/
     @Override
     public Query newPhraseQuery(String text, int slop) {
+        if (degrading) {
+            return newConjunctionQuery(text);
+        }
+        if (!payloads) {
+            return super.newPhraseQuery(text, slop);
+        }
 		BooleanQuery bq = new BooleanQuery(true);
 		for (Map.Entry<String,Float> entry : weights.entrySet()) {
 			Query q = createPhraseQuery(entry.getKey(), text, slop); // entry.getKey() is the FIELD
 			if (q instanceof PhraseQuery) {
-				PhraseQuery pq = (PhraseQuery) q; 
-				Term[] terms = pq.getTerms(); 
-				SpanQuery[] clauses = new SpanQuery[terms.length];
-				for (int i = 0; i < terms.length; i++) 
-					clauses[i] = new PayloadTermQuery(terms[i], new AveragePayloadFunction(), true); 
-				q = new PayloadNearQuery(clauses, slop, true);  
+				// scored like an ordered near query of payload terms, without enumerating spans
+				q = new PayloadPhraseQuery(((PhraseQuery) q).getTerms(), slop, payloadSettings.payloadFunction(),
+						payloadSettings.phraseSlopDecay(), payloadSettings.phraseMaxMatches(),
+						payloadSettings.phraseBestMatch());
 			}
 			if (q != null) {
 				q.setBoost(entry.getValue());
@@ -110,5 +391,406 @@ public class SimplePayloadQueryParser extends SimpleQueryParser {
 		}
 		return simplify(bq);
 	}
-    
+
+    /**
+     * Matches the terms of a phrase anywhere in a field instead of reading their positions
+     */
+    private Query newConjunctionQuery(String text) {
+        BooleanQuery bq = new BooleanQuery(true);
+        for (Map.Entry<String, Float> entry : weights.entrySet()) {
+            Query q = createBooleanQuery(entry.getKey(), text, BooleanClause.Occur.MUST);
+            if (q != null) {
+                q.setBoost(entry.getValue());
+                bq.add(q, BooleanClause.Occur.SHOULD);
+            }
+        }
+        return simplify(bq);
+    }
+
+    /**
+     * Queries analyzed while parsing a batch of query strings, so that a text that occurs in
+     * many of them, e.g. a common term, is analyzed once for the whole batch. Not thread
+     * safe; callers get a clone of the memoized query.
+     */
+    public static final class AnalysisMemo {
+        private final Map<List<Object>, Query> queries = new HashMap<>();
+
+        Query get(List<Object> key) {
+            Query query = queries.get(key);
+            return query == null ? null : query.clone();
+        }
+
+        void put(List<Object> key, Query query) {
+            if (query != null) {
+                queries.put(key, query.clone());
+            }
+        }
+
+        public int size() {
+            return queries.size();
+        }
+    }
+
+    /**
+     * Where the payload factor of a single term clause is read from
+     */
+    public static enum PayloadMode {
+        /** Read payloads from the positions of every posting */
+        POSITIONS,
+        /** Read precomputed per-document averages from the sidecar doc values field */
+        DOC_VALUES,
+        /** Serve per-document averages of hot terms from the node's {@link MappedPayloadCache} */
+        CACHED;
+
+        public static PayloadMode fromString(String mode) {
+            for (PayloadMode payloadMode : values()) {
+                if (payloadMode.name().equalsIgnoreCase(mode)) {
+                    return payloadMode;
+                }
+            }
+            throw new IllegalArgumentException("Unknown payload mode [" + mode + "]");
+        }
+    }
+
+    /**
+     * Payload specific settings for the {@link SimplePayloadQueryParser}
+     */
+    public static class PayloadSettings {
+        private PayloadMode payloadMode = PayloadMode.POSITIONS;
+        private PayloadFunction payloadFunction = PayloadFunctions.AVERAGE;
+        private MappedPayloadCache payloadCache;
+        private int topK = 0;
+        private Similarity similarity;
+        private PayloadImpactsCache impactsCache;
+        private int expansionSize = 50;
+        private PayloadTopTermsRewrite.Ranking expansionRanking = PayloadTopTermsRewrite.Ranking.DOC_FREQ;
+        private int rescoreWindow = 0;
+        private boolean combinedFields = false;
+        private float minPayload = Float.NEGATIVE_INFINITY;
+        private float maxPayload = Float.POSITIVE_INFINITY;
+        private AnalysisMemo analysisMemo;
+        private boolean estimateCost = false;
+        private long maxCost = -1;
+        private PayloadBudgetQuery.Action budgetAction = PayloadBudgetQuery.Action.REJECT;
+        private long budgetTimeout = TimeUnit.SECONDS.toNanos(1);
+        private PayloadScoringListener costListener;
+        private int parallelism = 0;
+        private ForkJoinPool parallelPool;
+        private float phraseSlopDecay = 0F;
+        private int phraseMaxMatches = 0;
+        private boolean phraseBestMatch = false;
+
+        public PayloadSettings() {
+
+        }
+
+        public void payloadMode(PayloadMode payloadMode) {
+            this.payloadMode = payloadMode;
+        }
+
+        public PayloadMode payloadMode() {
+            return payloadMode;
+        }
+
+        public void payloadFunction(PayloadFunction payloadFunction) {
+            this.payloadFunction = payloadFunction;
+        }
+
+        public PayloadFunction payloadFunction() {
+            return payloadFunction;
+        }
+
+        public void payloadCache(MappedPayloadCache payloadCache) {
+            this.payloadCache = payloadCache;
+        }
+
+        public MappedPayloadCache payloadCache() {
+            return payloadCache;
+        }
+
+        public void topK(int topK) {
+            this.topK = topK;
+        }
+
+        public int topK() {
+            return topK;
+        }
+
+        /**
+         * Sets the similarity of the index, a top k only applies to terms it scores with an
+         * {@link ArticlePayloadIBSimilarity}. <code>null</code> (the default) assumes it
+         * scores all of them.
+         */
+        public void similarity(Similarity similarity) {
+            this.similarity = similarity;
+        }
+
+        public Similarity similarity() {
+            return similarity;
+        }
+
+        public void impactsCache(PayloadImpactsCache impactsCache) {
+            this.impactsCache = impactsCache;
+        }
+
+        public PayloadImpactsCache impactsCache() {
+            return impactsCache;
+        }
+
+        /**
+         * Sets how many terms prefix and fuzzy terms expand to at most, <code>0</code>
+         * builds the plain multi term queries of the base parser
+         */
+        public void expansionSize(int expansionSize) {
+            this.expansionSize = expansionSize;
+        }
+
+        public int expansionSize() {
+            return expansionSize;
+        }
+
+        public void expansionRanking(PayloadTopTermsRewrite.Ranking expansionRanking) {
+            this.expansionRanking = expansionRanking;
+        }
+
+        public PayloadTopTermsRewrite.Ranking expansionRanking() {
+            return expansionRanking;
+        }
+
+        /**
+         * Sets how many of the best matches of a payload-less first pass per segment are
+         * scored with payloads and match, <code>0</code> scores every match with payloads
+         */
+        public void rescoreWindow(int rescoreWindow) {
+            this.rescoreWindow = rescoreWindow;
+        }
+
+        public int rescoreWindow() {
+            return rescoreWindow;
+        }
+
+        /**
+         * Sets whether terms outside of phrases score the weighted fields as one combined
+         * field, see {@link CombinedFieldPayloadTermQuery}
+         */
+        public void combinedFields(boolean combinedFields) {
+            this.combinedFields = combinedFields;
+        }
+
+        public boolean combinedFields() {
+            return combinedFields;
+        }
+
+        /**
+         * Sets the smallest payload a position of a single term clause must carry to match
+         */
+        public void minPayload(float minPayload) {
+            this.minPayload = minPayload;
+        }
+
+        public float minPayload() {
+            return minPayload;
+        }
+
+        /**
+         * Sets the largest payload a position of a single term clause may carry to match
+         */
+        public void maxPayload(float maxPayload) {
+            this.maxPayload = maxPayload;
+        }
+
+        public float maxPayload() {
+            return maxPayload;
+        }
+
+        public boolean hasPayloadRange() {
+            return minPayload != Float.NEGATIVE_INFINITY || maxPayload != Float.POSITIVE_INFINITY;
+        }
+
+        /**
+         * Sets the memo that shares analysis across the queries of a batch, <code>null</code>
+         * analyzes every query on its own
+         */
+        public void analysisMemo(AnalysisMemo analysisMemo) {
+            this.analysisMemo = analysisMemo;
+        }
+
+        public AnalysisMemo analysisMemo() {
+            return analysisMemo;
+        }
+
+        /**
+         * Sets whether the cost of the query is estimated before it runs, implied by a
+         * {@link #maxCost(long)}
+         */
+        public void estimateCost(boolean estimateCost) {
+            this.estimateCost = estimateCost;
+        }
+
+        public boolean estimateCost() {
+            return estimateCost;
+        }
+
+        /**
+         * Sets the budget of the query in postings entries read, <code>-1</code> (the
+         * default) for no budget
+         */
+        public void maxCost(long maxCost) {
+            this.maxCost = maxCost;
+        }
+
+        /**
+         * Returns the budget of the query, {@link Long#MAX_VALUE} if the cost is only estimated
+         */
+        public long maxCost() {
+            return maxCost < 0 ? Long.MAX_VALUE : maxCost;
+        }
+
+        public void budgetAction(PayloadBudgetQuery.Action budgetAction) {
+            this.budgetAction = budgetAction;
+        }
+
+        public PayloadBudgetQuery.Action budgetAction() {
+            return budgetAction;
+        }
+
+        /**
+         * Sets how long a query over budget may match documents, in nanoseconds, with the
+         * {@link PayloadBudgetQuery.Action#TIMEOUT} action
+         */
+        public void budgetTimeout(long budgetTimeout) {
+            this.budgetTimeout = budgetTimeout;
+        }
+
+        public long budgetTimeout() {
+            return budgetTimeout;
+        }
+
+        public boolean hasBudget() {
+            return estimateCost || maxCost >= 0;
+        }
+
+        /**
+         * Sets the listener that receives the estimated costs and timeouts of the query
+         */
+        public void costListener(PayloadScoringListener costListener) {
+            this.costListener = costListener;
+        }
+
+        public PayloadScoringListener costListener() {
+            return costListener;
+        }
+
+        /**
+         * Sets how many tasks create the segment scorers of the query at a time at most,
+         * <code>0</code> (the default) creates each one on the search thread when it is needed
+         */
+        public void parallelism(int parallelism) {
+            this.parallelism = parallelism;
+        }
+
+        public int parallelism() {
+            return parallelism;
+        }
+
+        /**
+         * Sets the node's pool that parallel queries create their scorers on
+         */
+        public void parallelPool(ForkJoinPool parallelPool) {
+            this.parallelPool = parallelPool;
+        }
+
+        public ForkJoinPool parallelPool() {
+            return parallelPool;
+        }
+
+        /**
+         * Sets the factor a phrase match is scaled by per position of slop, <code>0</code>
+         * (the default) uses the similarity's slop factors
+         */
+        public void phraseSlopDecay(float phraseSlopDecay) {
+            this.phraseSlopDecay = phraseSlopDecay;
+        }
+
+        public float phraseSlopDecay() {
+            return phraseSlopDecay;
+        }
+
+        /**
+         * Sets how many matches of a phrase are scored per document at most, <code>0</code>
+         * (the default) scores all of them
+         */
+        public void phraseMaxMatches(int phraseMaxMatches) {
+            this.phraseMaxMatches = phraseMaxMatches;
+        }
+
+        public int phraseMaxMatches() {
+            return phraseMaxMatches;
+        }
+
+        /**
+         * Sets whether only the match of least slop of a phrase is scored per document
+         */
+        public void phraseBestMatch(boolean phraseBestMatch) {
+            this.phraseBestMatch = phraseBestMatch;
+        }
+
+        public boolean phraseBestMatch() {
+            return phraseBestMatch;
+        }
+
+        /**
+         * Settings are equal if they build the same queries, node level caches and pools, the
+         * index similarity, the cost listener and the batch analysis memo are not compared
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            PayloadSettings other = (PayloadSettings) obj;
+            return payloadMode == other.payloadMode
+                    && topK == other.topK
+                    && expansionSize == other.expansionSize
+                    && expansionRanking == other.expansionRanking
+                    && rescoreWindow == other.rescoreWindow
+                    && combinedFields == other.combinedFields
+                    && Float.floatToIntBits(minPayload) == Float.floatToIntBits(other.minPayload)
+                    && Float.floatToIntBits(maxPayload) == Float.floatToIntBits(other.maxPayload)
+                    && estimateCost == other.estimateCost
+                    && maxCost == other.maxCost
+                    && budgetAction == other.budgetAction
+                    && budgetTimeout == other.budgetTimeout
+                    && parallelism == other.parallelism
+                    && Float.floatToIntBits(phraseSlopDecay) == Float.floatToIntBits(other.phraseSlopDecay)
+                    && phraseMaxMatches == other.phraseMaxMatches
+                    && phraseBestMatch == other.phraseBestMatch
+                    && payloadFunction.equals(other.payloadFunction);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = payloadMode.hashCode();
+            result = 31 * result + payloadFunction.hashCode();
+            result = 31 * result + topK;
+            result = 31 * result + expansionSize;
+            result = 31 * result + expansionRanking.hashCode();
+            result = 31 * result + rescoreWindow;
+            result = 31 * result + (combinedFields ? 1 : 0);
+            result = 31 * result + Float.floatToIntBits(minPayload);
+            result = 31 * result + Float.floatToIntBits(maxPayload);
+            result = 31 * result + (estimateCost ? 1 : 0);
+            result = 31 * result + (int) (maxCost ^ (maxCost >>> 32));
+            result = 31 * result + budgetAction.hashCode();
+            result = 31 * result + (int) (budgetTimeout ^ (budgetTimeout >>> 32));
+            result = 31 * result + parallelism;
+            result = 31 * result + Float.floatToIntBits(phraseSlopDecay);
+            result = 31 * result + phraseMaxMatches;
+            result = 31 * result + (phraseBestMatch ? 1 : 0);
+            return result;
+        }
+    }
 }
@@ -0,0 +1,41 @@
+package org.elasticsearch.index.query;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.payloads.PayloadBatchSearcher;
+
+/**
+ * The queries of a parsed <code>simple_payload_query_string</code> batch, see
+ * {@link SimplePayloadQueryStringBatchBuilder}.
+ */
+public class SimplePayloadQueryStringBatch {
+
+    private final List<Query> queries;
+    private final int size;
+
+    SimplePayloadQueryStringBatch(List<Query> queries, int size) {
+        this.queries = Collections.unmodifiableList(queries);
+        this.size = size;
+    }
+
+    public List<Query> queries() {
+        return queries;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Runs all queries of the batch against a shard's searcher in one pass per segment and
+     * returns their top hits, in the order of the queries
+     */
+    public TopDocs[] execute(IndexSearcher searcher) throws IOException {
+        return new PayloadBatchSearcher(searcher).search(queries, size);
+    }
+}
@@ -0,0 +1,55 @@
+package org.elasticsearch.index.query;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds a batch of <code>simple_payload_query_string</code> queries that are parsed
+ * together by {@link SimplePayloadQueryStringParser#parseBatch(QueryParseContext)} and run
+ * in one pass per segment by {@link SimplePayloadQueryStringBatch#execute}.
+ */
+public class SimplePayloadQueryStringBatchBuilder implements ToXContent {
+    private final List<SimplePayloadQueryStringBuilder> queries = new ArrayList<>();
+    private Integer size;
+
+    /**
+     * Add a query to the batch, hits are returned in the order queries were added
+     */
+    public SimplePayloadQueryStringBatchBuilder add(SimplePayloadQueryStringBuilder query) {
+        this.queries.add(query);
+        return this;
+    }
+
+    /**
+     * Specify how many hits to return per query. Defaults to <code>10</code>.
+     */
+    public SimplePayloadQueryStringBatchBuilder size(int size) {
+        this.size = size;
+        return this;
+    }
+
+    public int numberOfQueries() {
+        return queries.size();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+
+        if (size != null) {
+            builder.field("size", size);
+        }
+
+        builder.startArray("queries");
+        for (SimplePayloadQueryStringBuilder query : queries) {
+            query.toXContent(builder, params);
+        }
+        builder.endArray();
+
+        return builder.endObject();
+    }
+}
@@ -1,5 +1,7 @@
 package org.elasticsearch.index.query;
 
+import org.apache.lucene.search.payloads.PayloadBudgetQuery;
+import org.apache.lucene.search.payloads.PayloadTopTermsRewrite;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 
 import java.io.IOException;
@@ -16,6 +18,23 @@ public class SimplePayloadQueryStringBuilder extends BaseQueryBuilder {
     private Boolean lowercaseExpandedTerms;
     private Boolean lenient;
     private Locale locale;
+    private SimplePayloadQueryParser.PayloadMode payloadMode;
+    private Integer topK;
+    private String payloadFunction;
+    private Integer expansionSize;
+    private PayloadTopTermsRewrite.Ranking expansionRanking;
+    private Integer rescoreWindow;
+    private Boolean combinedFields;
+    private Float minPayload;
+    private Float maxPayload;
+    private Boolean estimateCost;
+    private Long maxCost;
+    private PayloadBudgetQuery.Action onBudgetExceeded;
+    private String budgetTimeout;
+    private Integer parallelism;
+    private Float phraseSlopDecay;
+    private Integer phraseMaxMatches;
+    private Boolean phraseBestMatch;
 
     /**
      * Operators for the default_operator
@@ -96,6 +115,174 @@ public class SimplePayloadQueryStringBuilder extends BaseQueryBuilder {
         return this;
     }
 
+    /**
+     * Specify where single term clauses read their payload factor from. Defaults to
+     * reading the payloads of every position.
+     */
+    public SimplePayloadQueryStringBuilder payloadMode(SimplePayloadQueryParser.PayloadMode payloadMode) {
+        this.payloadMode = payloadMode;
+        return this;
+    }
+
+    /**
+     * Specify how the payloads of a term in a document are combined: <code>average</code>
+     * (the default), <code>max</code>, <code>min</code>, <code>first</code> or the name of
+     * a function registered with {@link PayloadFunctions#register}.
+     */
+    public SimplePayloadQueryStringBuilder payloadFunction(String payloadFunction) {
+        this.payloadFunction = payloadFunction;
+        return this;
+    }
+
+    /**
+     * Only return documents that can still make it into the top <code>topK</code> hits,
+     * skipping the others based on per-term score upper bounds. Only applies to queries
+     * that parse into a pure disjunction of payload IB scored terms, and makes the total
+     * hit count a lower bound. Must be at least <code>from + size</code>; searches with a
+     * sort, <code>min_score</code>, <code>post_filter</code> or aggregations, and queries
+     * nested in other queries, may not skip documents.
+     */
+    public SimplePayloadQueryStringBuilder topK(int topK) {
+        this.topK = topK;
+        return this;
+    }
+
+    /**
+     * Specify how many terms a prefix or fuzzy term expands to at most. Expanded terms are
+     * scored with their payloads like plain terms. Defaults to <code>50</code>,
+     * <code>0</code> falls back to plain, payload-less multi term queries.
+     */
+    public SimplePayloadQueryStringBuilder expansionSize(int expansionSize) {
+        this.expansionSize = expansionSize;
+        return this;
+    }
+
+    /**
+     * Specify which terms a prefix or fuzzy term keeps when it matches more than
+     * {@link #expansionSize(int)} terms: those with the highest doc freq (the default) or
+     * those with the highest payload.
+     */
+    public SimplePayloadQueryStringBuilder expansionRanking(PayloadTopTermsRewrite.Ranking expansionRanking) {
+        this.expansionRanking = expansionRanking;
+        return this;
+    }
+
+    /**
+     * Rank the documents of each segment without reading payloads first, and only match the
+     * best <code>rescoreWindow</code> of them, scored with payloads. The total hit count is
+     * at most <code>rescoreWindow</code> per segment.
+     */
+    public SimplePayloadQueryStringBuilder rescoreWindow(int rescoreWindow) {
+        this.rescoreWindow = rescoreWindow;
+        return this;
+    }
+
+    /**
+     * Score terms on several fields as one combined field, with the field boosts as
+     * weights of the per-field frequencies and lengths, instead of one clause per field.
+     * Phrases are still scored per field. The fields should share a search analyzer.
+     */
+    public SimplePayloadQueryStringBuilder combinedFields(boolean combinedFields) {
+        this.combinedFields = combinedFields;
+        return this;
+    }
+
+    /**
+     * Only match term positions whose payload is at least <code>minPayload</code>, and only
+     * documents with such a position. Positions without a payload count as <code>1</code>.
+     * Applies to single term clauses, not to phrases or prefix and fuzzy terms, and
+     * disables <code>top_k</code> and <code>combined_fields</code>.
+     */
+    public SimplePayloadQueryStringBuilder minPayload(float minPayload) {
+        this.minPayload = minPayload;
+        return this;
+    }
+
+    /**
+     * Only match term positions whose payload is at most <code>maxPayload</code>, see
+     * {@link #minPayload(float)}.
+     */
+    public SimplePayloadQueryStringBuilder maxPayload(float maxPayload) {
+        this.maxPayload = maxPayload;
+        return this;
+    }
+
+    /**
+     * Estimate the cost of the query, in postings entries read, before it runs. The
+     * estimates are reported in the payload scoring stats and in explanations. Implied by
+     * {@link #maxCost(long)}.
+     */
+    public SimplePayloadQueryStringBuilder estimateCost(boolean estimateCost) {
+        this.estimateCost = estimateCost;
+        return this;
+    }
+
+    /**
+     * Specify the budget of the query in postings entries read, see
+     * {@link #onBudgetExceeded(PayloadBudgetQuery.Action)} for what happens to a query
+     * whose estimated cost exceeds it.
+     */
+    public SimplePayloadQueryStringBuilder maxCost(long maxCost) {
+        this.maxCost = maxCost;
+        return this;
+    }
+
+    /**
+     * Specify what happens to a query over budget: it fails (<code>reject</code>, the
+     * default), runs without payloads, with phrases as conjunctions and capped prefix and
+     * fuzzy expansions (<code>degrade</code>), or stops matching documents after
+     * {@link #budgetTimeout(String)} (<code>timeout</code>).
+     */
+    public SimplePayloadQueryStringBuilder onBudgetExceeded(PayloadBudgetQuery.Action onBudgetExceeded) {
+        this.onBudgetExceeded = onBudgetExceeded;
+        return this;
+    }
+
+    /**
+     * Specify how long a query over budget may match documents with the <code>timeout</code>
+     * action, e.g. <code>200ms</code>. Defaults to one second.
+     */
+    public SimplePayloadQueryStringBuilder budgetTimeout(String budgetTimeout) {
+        this.budgetTimeout = budgetTimeout;
+        return this;
+    }
+
+    /**
+     * Create the segment scorers of each shard on up to <code>parallelism</code> threads of
+     * the node's parallel query pool ahead of collection, instead of one after another on
+     * the search thread. Matches and scores are the same as without parallelism.
+     */
+    public SimplePayloadQueryStringBuilder parallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Scale phrase matches by <code>phraseSlopDecay</code> per position of slop instead of
+     * the similarity's slop factor, which is <code>1 / (match length + 1)</code>.
+     */
+    public SimplePayloadQueryStringBuilder phraseSlopDecay(float phraseSlopDecay) {
+        this.phraseSlopDecay = phraseSlopDecay;
+        return this;
+    }
+
+    /**
+     * Score at most the first <code>phraseMaxMatches</code> matches of a phrase per document,
+     * defaults to <code>0</code>, all of them.
+     */
+    public SimplePayloadQueryStringBuilder phraseMaxMatches(int phraseMaxMatches) {
+        this.phraseMaxMatches = phraseMaxMatches;
+        return this;
+    }
+
+    /**
+     * Score only the match of least slop of a phrase per document.
+     */
+    public SimplePayloadQueryStringBuilder phraseBestMatch(boolean phraseBestMatch) {
+        this.phraseBestMatch = phraseBestMatch;
+        return this;
+    }
+
     @Override
     public void doXContent(XContentBuilder builder, Params params) throws IOException {
         builder.startObject(SimplePayloadQueryStringParser.NAME);
@@ -140,6 +327,74 @@ public class SimplePayloadQueryStringBuilder extends BaseQueryBuilder {
             builder.field("locale", locale.toString());
         }
 
+        if (payloadMode != null) {
+            builder.field("payload_mode", payloadMode.name().toLowerCase(Locale.ROOT));
+        }
+
+        if (payloadFunction != null) {
+            builder.field("payload_function", payloadFunction);
+        }
+
+        if (topK != null) {
+            builder.field("top_k", topK);
+        }
+
+        if (combinedFields != null) {
+            builder.field("combined_fields", combinedFields);
+        }
+
+        if (rescoreWindow != null) {
+            builder.field("rescore_window", rescoreWindow);
+        }
+
+        if (expansionSize != null) {
+            builder.field("expansion_size", expansionSize);
+        }
+
+        if (expansionRanking != null) {
+            builder.field("expansion_ranking", expansionRanking.name().toLowerCase(Locale.ROOT));
+        }
+
+        if (minPayload != null) {
+            builder.field("min_payload", minPayload);
+        }
+
+        if (maxPayload != null) {
+            builder.field("max_payload", maxPayload);
+        }
+
+        if (estimateCost != null) {
+            builder.field("estimate_cost", estimateCost);
+        }
+
+        if (maxCost != null) {
+            builder.field("max_cost", maxCost);
+        }
+
+        if (onBudgetExceeded != null) {
+            builder.field("on_budget_exceeded", onBudgetExceeded.name().toLowerCase(Locale.ROOT));
+        }
+
+        if (budgetTimeout != null) {
+            builder.field("budget_timeout", budgetTimeout);
+        }
+
+        if (parallelism != null) {
+            builder.field("parallelism", parallelism);
+        }
+
+        if (phraseSlopDecay != null) {
+            builder.field("phrase_slop_decay", phraseSlopDecay);
+        }
+
+        if (phraseMaxMatches != null) {
+            builder.field("phrase_max_matches", phraseMaxMatches);
+        }
+
+        if (phraseBestMatch != null) {
+            builder.field("phrase_best_match", phraseBestMatch);
+        }
+
         builder.endObject();
     }
 }
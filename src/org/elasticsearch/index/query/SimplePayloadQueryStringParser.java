@@ -1,29 +1,93 @@
 package org.elasticsearch.index.query;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.payloads.MappedPayloadCache;
+import org.apache.lucene.search.payloads.PayloadBudgetQuery;
+import org.apache.lucene.search.payloads.PayloadImpactsCache;
+import org.apache.lucene.search.payloads.PayloadTopTermsRewrite;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.inject.Inject;
-import org.elasticsearch.common.regex.Regex;
+import org.elasticsearch.common.lucene.search.Queries;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.util.LocaleUtils;
 import org.elasticsearch.common.xcontent.XContentParser;
-import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.index.similarity.PayloadScoringStats;
 
 public class SimplePayloadQueryStringParser implements QueryParser {
 
     public static final String NAME = "simple_payload_query_string";
 
+    private final MappedPayloadCache payloadCache;
+    private final PayloadImpactsCache impactsCache;
+    private final SimplePayloadQueryCache queryCache;
+    private final SimplePayloadFieldCache fieldCache;
+    private final ForkJoinPool parallelPool;
+    private final boolean metrics;
+    private final boolean recordTerms;
+
     @Inject
     public SimplePayloadQueryStringParser(Settings settings) {
+        ByteSizeValue payloadCacheSize = settings.getAsBytesSize("indices.payload_cache.size", new ByteSizeValue(0));
+        if (payloadCacheSize.bytes() > 0) {
+            File path = new File(settings.get("indices.payload_cache.path",
+                    new File(System.getProperty("java.io.tmpdir"), "payload_cache").getPath()));
+            try {
+                payloadCache = new MappedPayloadCache(path, payloadCacheSize.bytes(),
+                        settings.getAsInt("indices.payload_cache.min_doc_freq", 1024));
+            } catch (IOException e) {
+                throw new ElasticsearchException("Failed to create payload cache in [" + path + "]", e);
+            }
+        } else {
+            payloadCache = null;
+        }
+        impactsCache = new PayloadImpactsCache(settings.getAsInt("indices.payload_impacts.max_terms", 10000));
+        int queryCacheSize = settings.getAsInt("indices.queries.simple_payload_query_string.cache.size", 1000);
+        queryCache = queryCacheSize > 0 ? new SimplePayloadQueryCache(queryCacheSize) : null;
+        int fieldCacheSize = settings.getAsInt("indices.queries.simple_payload_query_string.field_cache.size", 1000);
+        fieldCache = fieldCacheSize > 0 ? new SimplePayloadFieldCache(fieldCacheSize) : null;
+        // shared by all parallel queries of the node, threads are started on demand
+        int parallelPoolSize = settings.getAsInt("indices.queries.simple_payload_query_string.parallel.pool_size",
+                Runtime.getRuntime().availableProcessors());
+        parallelPool = parallelPoolSize > 0 ? new ForkJoinPool(parallelPoolSize) : null;
+        metrics = settings.getAsBoolean("indices.queries.simple_payload_query_string.metrics", false);
+        // the warmer preloads the terms queried most often
+        recordTerms = settings.getAsBoolean("indices.payload_warmer.enabled", false);
+    }
 
+    /**
+     * Returns the cache of payload impacts shared by all queries on this node
+     */
+    public PayloadImpactsCache impactsCache() {
+        return impactsCache;
+    }
+
+    /**
+     * Returns the cache of parsed queries, or <code>null</code> if it is disabled
+     */
+    public SimplePayloadQueryCache queryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Returns the cache of resolved field specs, or <code>null</code> if it is disabled
+     */
+    public SimplePayloadFieldCache fieldCache() {
+        return fieldCache;
     }
 
     @Override
@@ -33,16 +97,92 @@ public class SimplePayloadQueryStringParser implements QueryParser {
 
     @Override
     public Query parse(QueryParseContext parseContext) throws IOException, QueryParsingException {
+        if (metrics == false && recordTerms == false) {
+            return doParse(parseContext, null);
+        }
+        long start = System.nanoTime();
+        Query query = doParse(parseContext, null);
+        recordParse(parseContext, query, start);
+        return query;
+    }
+
+    private void recordParse(QueryParseContext parseContext, Query query, long start) {
+        PayloadScoringStats stats = PayloadScoringStats.forIndex(parseContext.index().name());
+        if (metrics) {
+            stats.queryParsed(query, System.nanoTime() - start);
+        }
+        if (recordTerms) {
+            stats.termsQueried(query);
+        }
+    }
+
+    /**
+     * Parses a batch of queries, <code>{"size": 10, "queries": [{"simple_payload_query_string": {...}}, ...]}</code>,
+     * analyzing texts that occur in several queries of the batch once.
+     */
+    public SimplePayloadQueryStringBatch parseBatch(QueryParseContext parseContext) throws IOException, QueryParsingException {
+        XContentParser parser = parseContext.parser();
+        SimplePayloadQueryParser.AnalysisMemo memo = new SimplePayloadQueryParser.AnalysisMemo();
+        List<Query> queries = new ArrayList<>();
+        int size = 10;
+
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token == XContentParser.Token.START_ARRAY && "queries".equals(currentFieldName)) {
+                while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                    if (token != XContentParser.Token.START_OBJECT || parser.nextToken() != XContentParser.Token.FIELD_NAME
+                            || !(NAME.equals(parser.currentName()) || Strings.toCamelCase(NAME).equals(parser.currentName()))
+                            || parser.nextToken() != XContentParser.Token.START_OBJECT) {
+                        throw new QueryParsingException(parseContext.index(),
+                                "[" + NAME + "] batch queries must be [" + NAME + "] queries");
+                    }
+                    long start = System.nanoTime();
+                    Query query = doParse(parseContext, memo);
+                    if (metrics || recordTerms) {
+                        recordParse(parseContext, query, start);
+                    }
+                    // a query whose text analyzes to nothing matches nothing
+                    queries.add(query == null ? Queries.newMatchNoDocsQuery() : query);
+                    if (parser.nextToken() != XContentParser.Token.END_OBJECT) {
+                        throw new QueryParsingException(parseContext.index(),
+                                "[" + NAME + "] batch query must contain a single query");
+                    }
+                }
+            } else if (token.isValue() && "size".equals(currentFieldName)) {
+                size = parser.intValue();
+                if (size <= 0) {
+                    throw new QueryParsingException(parseContext.index(), "[" + NAME + "] batch size must be > 0");
+                }
+            } else {
+                throw new QueryParsingException(parseContext.index(), "[" + NAME + "] batch does not support [" + currentFieldName + "]");
+            }
+        }
+        return new SimplePayloadQueryStringBatch(queries, size);
+    }
+
+    private Query doParse(QueryParseContext parseContext, SimplePayloadQueryParser.AnalysisMemo memo)
+            throws IOException, QueryParsingException {
         XContentParser parser = parseContext.parser();
 
         String currentFieldName = null;
         String queryBody = null;
         String field = null;
-        Map<String, Float> fieldsAndWeights = null;
+        List<String> fieldSpecs = null;
         BooleanClause.Occur defaultOperator = null;
         Analyzer analyzer = null;
         int flags = -1;
         SimpleQueryParser.Settings sqsSettings = new SimpleQueryParser.Settings();
+        SimplePayloadQueryParser.PayloadSettings payloadSettings = new SimplePayloadQueryParser.PayloadSettings();
+        payloadSettings.payloadCache(payloadCache);
+        payloadSettings.impactsCache(impactsCache);
+        if (parseContext.similarityService() != null) {
+            payloadSettings.similarity(parseContext.similarityService().similarity());
+        }
+        payloadSettings.analysisMemo(memo);
+        payloadSettings.parallelPool(parallelPool);
 
         XContentParser.Token token;
         while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
@@ -50,39 +190,10 @@ public class SimplePayloadQueryStringParser implements QueryParser {
                 currentFieldName = parser.currentName();
             } else if (token == XContentParser.Token.START_ARRAY) {
                 if ("fields".equals(currentFieldName)) {
+                    // field specs are resolved once the mapping version is known
+                    fieldSpecs = new ArrayList<>();
                     while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
-                        String fField = null;
-                        float fBoost = 1;
-                        char[] text = parser.textCharacters();
-                        int end = parser.textOffset() + parser.textLength();
-                        for (int i = parser.textOffset(); i < end; i++) {
-                            if (text[i] == '^') {
-                                int relativeLocation = i - parser.textOffset();
-                                fField = new String(text, parser.textOffset(), relativeLocation);
-                                fBoost = Float.parseFloat(new String(text, i + 1, parser.textLength() - relativeLocation - 1));
-                                break;
-                            }
-                        }
-                        if (fField == null) {
-                            fField = parser.text();
-                        }
-
-                        if (fieldsAndWeights == null) {
-                            fieldsAndWeights = new HashMap<>();
-                        }
-
-                        if (Regex.isSimpleMatchPattern(fField)) {
-                            for (String fieldName : parseContext.mapperService().simpleMatchToIndexNames(fField)) {
-                                fieldsAndWeights.put(fieldName, fBoost);
-                            }
-                        } else {
-                            MapperService.SmartNameFieldMappers mappers = parseContext.smartFieldMappers(fField);
-                            if (mappers != null && mappers.hasMapper()) {
-                                fieldsAndWeights.put(mappers.mapper().names().indexName(), fBoost);
-                            } else {
-                                fieldsAndWeights.put(fField, fBoost);
-                            }
-                        }
+                        fieldSpecs.add(parser.text());
                     }
                 } else {
                     throw new QueryParsingException(parseContext.index(),
@@ -127,6 +238,78 @@ public class SimplePayloadQueryStringParser implements QueryParser {
                     sqsSettings.lowercaseExpandedTerms(parser.booleanValue());
                 } else if ("lenient".equals(currentFieldName)) {
                     sqsSettings.lenient(parser.booleanValue());
+                } else if ("payload_function".equals(currentFieldName) || "payloadFunction".equals(currentFieldName)) {
+                    try {
+                        payloadSettings.payloadFunction(PayloadFunctions.get(parser.text()));
+                    } catch (ElasticsearchIllegalArgumentException e) {
+                        throw new QueryParsingException(parseContext.index(),
+                                "[" + NAME + "] payload function [" + parser.text() + "] is not registered");
+                    }
+                } else if ("top_k".equals(currentFieldName) || "topK".equals(currentFieldName)) {
+                    payloadSettings.topK(parser.intValue());
+                } else if ("combined_fields".equals(currentFieldName) || "combinedFields".equals(currentFieldName)) {
+                    payloadSettings.combinedFields(parser.booleanValue());
+                } else if ("rescore_window".equals(currentFieldName) || "rescoreWindow".equals(currentFieldName)) {
+                    payloadSettings.rescoreWindow(parser.intValue());
+                } else if ("expansion_size".equals(currentFieldName) || "expansionSize".equals(currentFieldName)) {
+                    payloadSettings.expansionSize(parser.intValue());
+                } else if ("expansion_ranking".equals(currentFieldName) || "expansionRanking".equals(currentFieldName)) {
+                    try {
+                        payloadSettings.expansionRanking(PayloadTopTermsRewrite.Ranking.fromString(parser.text()));
+                    } catch (IllegalArgumentException e) {
+                        throw new QueryParsingException(parseContext.index(),
+                                "[" + NAME + "] expansion ranking [" + parser.text() + "] is not allowed");
+                    }
+                } else if ("min_payload".equals(currentFieldName) || "minPayload".equals(currentFieldName)) {
+                    payloadSettings.minPayload(parser.floatValue());
+                } else if ("max_payload".equals(currentFieldName) || "maxPayload".equals(currentFieldName)) {
+                    payloadSettings.maxPayload(parser.floatValue());
+                } else if ("estimate_cost".equals(currentFieldName) || "estimateCost".equals(currentFieldName)) {
+                    payloadSettings.estimateCost(parser.booleanValue());
+                } else if ("max_cost".equals(currentFieldName) || "maxCost".equals(currentFieldName)) {
+                    long maxCost = parser.longValue();
+                    if (maxCost < 0) {
+                        throw new QueryParsingException(parseContext.index(), "[" + NAME + "] max_cost must be >= 0");
+                    }
+                    payloadSettings.maxCost(maxCost);
+                } else if ("on_budget_exceeded".equals(currentFieldName) || "onBudgetExceeded".equals(currentFieldName)) {
+                    try {
+                        payloadSettings.budgetAction(PayloadBudgetQuery.Action.fromString(parser.text()));
+                    } catch (IllegalArgumentException e) {
+                        throw new QueryParsingException(parseContext.index(),
+                                "[" + NAME + "] budget action [" + parser.text() + "] is not allowed");
+                    }
+                } else if ("budget_timeout".equals(currentFieldName) || "budgetTimeout".equals(currentFieldName)) {
+                    TimeValue timeout = TimeValue.parseTimeValue(parser.text(), null);
+                    if (timeout == null || timeout.nanos() <= 0) {
+                        throw new QueryParsingException(parseContext.index(), "[" + NAME + "] budget_timeout must be > 0");
+                    }
+                    payloadSettings.budgetTimeout(timeout.nanos());
+                } else if ("parallelism".equals(currentFieldName)) {
+                    payloadSettings.parallelism(parser.intValue());
+                    if (payloadSettings.parallelism() < 0) {
+                        throw new QueryParsingException(parseContext.index(), "[" + NAME + "] parallelism must be >= 0");
+                    }
+                } else if ("phrase_slop_decay".equals(currentFieldName) || "phraseSlopDecay".equals(currentFieldName)) {
+                    float phraseSlopDecay = parser.floatValue();
+                    if (phraseSlopDecay < 0F || phraseSlopDecay > 1F) {
+                        throw new QueryParsingException(parseContext.index(), "[" + NAME + "] phrase_slop_decay must be in [0, 1]");
+                    }
+                    payloadSettings.phraseSlopDecay(phraseSlopDecay);
+                } else if ("phrase_max_matches".equals(currentFieldName) || "phraseMaxMatches".equals(currentFieldName)) {
+                    payloadSettings.phraseMaxMatches(parser.intValue());
+                    if (payloadSettings.phraseMaxMatches() < 0) {
+                        throw new QueryParsingException(parseContext.index(), "[" + NAME + "] phrase_max_matches must be >= 0");
+                    }
+                } else if ("phrase_best_match".equals(currentFieldName) || "phraseBestMatch".equals(currentFieldName)) {
+                    payloadSettings.phraseBestMatch(parser.booleanValue());
+                } else if ("payload_mode".equals(currentFieldName) || "payloadMode".equals(currentFieldName)) {
+                    try {
+                        payloadSettings.payloadMode(SimplePayloadQueryParser.PayloadMode.fromString(parser.text()));
+                    } catch (IllegalArgumentException e) {
+                        throw new QueryParsingException(parseContext.index(),
+                                "[" + NAME + "] payload mode [" + parser.text() + "] is not allowed");
+                    }
                 } else {
                     throw new QueryParsingException(parseContext.index(), "[" + NAME + "] unsupported field [" + parser.currentName() + "]");
                 }
@@ -143,6 +326,15 @@ public class SimplePayloadQueryStringParser implements QueryParser {
             field = currentFieldName;
         }
 
+        MappingFingerprint mapping = queryCache != null || fieldCache != null
+                ? MappingFingerprint.of(parseContext.mapperService()) : null;
+
+        Map<String, Float> fieldsAndWeights = null;
+        if (fieldSpecs != null && !fieldSpecs.isEmpty()) {
+            fieldsAndWeights = fieldCache != null ? fieldCache.resolve(parseContext, mapping, fieldSpecs)
+                    : SimplePayloadFieldCache.resolveUncached(parseContext, fieldSpecs);
+        }
+
         // Use the default field (_all) if no fields specified
         if (fieldsAndWeights == null) {
             field = parseContext.defaultField();
@@ -156,12 +348,35 @@ public class SimplePayloadQueryStringParser implements QueryParser {
         if (fieldsAndWeights == null) {
             fieldsAndWeights = Collections.singletonMap(field, 1.0F);
         }
-        SimplePayloadQueryParser sqp = new SimplePayloadQueryParser(analyzer, fieldsAndWeights, flags, sqsSettings);
+
+        if (payloadSettings.minPayload() > payloadSettings.maxPayload()) {
+            throw new QueryParsingException(parseContext.index(), "[" + NAME + "] min_payload must be <= max_payload");
+        }
+
+        if (payloadSettings.hasBudget()) {
+            payloadSettings.costListener(PayloadScoringStats.forIndex(parseContext.index().name()));
+        }
+
+        SimplePayloadQueryCache.Key cacheKey = null;
+        if (queryCache != null) {
+            cacheKey = new SimplePayloadQueryCache.Key(mapping, queryBody,
+                    fieldsAndWeights, analyzer, flags, defaultOperator, sqsSettings, payloadSettings);
+            Query cached = queryCache.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        SimplePayloadQueryParser sqp = new SimplePayloadQueryParser(analyzer, fieldsAndWeights, flags, sqsSettings, payloadSettings);
 
         if (defaultOperator != null) {
             sqp.setDefaultOperator(defaultOperator);
         }
 
-        return sqp.parse(queryBody);
+        Query query = sqp.parse(queryBody);
+        if (cacheKey != null && query != null) {
+            queryCache.put(cacheKey, query);
+        }
+        return query;
     }
 }
@@ -1,5 +1,9 @@
 package org.elasticsearch.index.similarity;
 
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.analysis.payloads.PayloadFormat;
 import org.apache.lucene.search.similarities.ArticlePayloadIBSimilarity;
 import org.apache.lucene.search.similarities.Distribution;
 import org.apache.lucene.search.similarities.DistributionLL;
@@ -8,12 +12,18 @@ import org.apache.lucene.search.similarities.Lambda;
 import org.apache.lucene.search.similarities.LambdaDF;
 import org.apache.lucene.search.similarities.LambdaTTF;
 import org.apache.lucene.search.similarities.Normalization;
+import org.apache.lucene.search.similarities.PerFieldArticlePayloadIBSimilarity;
+import org.apache.lucene.search.similarities.ScoreTableCache;
+import org.apache.lucene.search.similarities.Similarity;
 import org.elasticsearch.ElasticsearchIllegalArgumentException;
 import org.elasticsearch.common.collect.ImmutableMap;
 import org.elasticsearch.common.collect.MapBuilder;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.inject.assistedinject.Assisted;
+import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.analysis.PayloadFormatTokenFilterFactory;
 
 public class ArticlePayloadIBSimilarityProvider extends AbstractSimilarityProvider {
 
@@ -31,19 +41,50 @@ public class ArticlePayloadIBSimilarityProvider extends AbstractSimilarityProvid
         lamdas.put("ttf", new LambdaTTF());
         LAMBDA_CACHE = lamdas.immutableMap();
     }
-    private ArticlePayloadIBSimilarity similarity;
+    private final Similarity similarity;
     
     //public ArticlePayloadIBSimilarityProvider(String name, Settings settings) {
     //    super(name, settings);
     //}
 
+    /**
+     * Settings under <code>fields.&lt;field name&gt;.</code> override the similarity's
+     * settings for that field, e.g. <code>fields.title.distribution: spl</code>. All
+     * fields share one {@link ScoreTableCache} of <code>score_table.cache_size</code>
+     * tables.
+     */
     @Inject
-    public ArticlePayloadIBSimilarityProvider(@Assisted String name, @Assisted Settings settings) {
+    public ArticlePayloadIBSimilarityProvider(Index index, @Assisted String name, @Assisted Settings settings) {
         super(name);
+        ScoreTableCache scoreTableCache = new ScoreTableCache(settings.getAsInt("score_table.cache_size", 256));
+        PayloadScoringStats stats = settings.getAsBoolean("metrics", false) ? PayloadScoringStats.forIndex(index.name()) : null;
+        ArticlePayloadIBSimilarity defaultSimilarity = createSimilarity(settings, scoreTableCache, stats);
+        Map<String, Settings> fieldSettings = settings.getGroups("fields");
+        if (fieldSettings.isEmpty()) {
+            this.similarity = defaultSimilarity;
+        } else {
+            Map<String, ArticlePayloadIBSimilarity> fieldSimilarities = new HashMap<>();
+            for (Map.Entry<String, Settings> entry : fieldSettings.entrySet()) {
+                Settings merged = ImmutableSettings.settingsBuilder().put(settings).put(entry.getValue()).build();
+                fieldSimilarities.put(entry.getKey(), createSimilarity(merged, scoreTableCache, stats));
+            }
+            this.similarity = new PerFieldArticlePayloadIBSimilarity(defaultSimilarity, fieldSimilarities);
+        }
+    }
+
+    private ArticlePayloadIBSimilarity createSimilarity(Settings settings, ScoreTableCache scoreTableCache,
+            PayloadScoringStats stats) {
         Distribution distribution = parseDistribution(settings);
         Lambda lambda = parseLambda(settings);
         Normalization normalization = parseNormalization(settings);
-        this.similarity = new ArticlePayloadIBSimilarity(distribution, lambda, normalization);
+        int scoreTableMaxFreq = parseScoreTableMaxFreq(settings);
+        PayloadFormat payloadFormat = parsePayloadFormat(settings);
+        ArticlePayloadIBSimilarity similarity = new ArticlePayloadIBSimilarity(distribution, lambda, normalization,
+                scoreTableMaxFreq, payloadFormat);
+        similarity.setMissingPayloadsNeutral(parseMissingPayloadsNeutral(settings));
+        similarity.setScoreTableCache(scoreTableCache);
+        similarity.setScoringListener(stats);
+        return similarity;
     }
 
     /**
@@ -76,7 +117,53 @@ public class ArticlePayloadIBSimilarityProvider extends AbstractSimilarityProvid
         return lambda;
     }
     
-    public ArticlePayloadIBSimilarity get() {
+    /**
+     * Parses the largest term frequency whose scores are served from the per-term
+     * score table. Defaults to <code>0</code>, which disables the table.
+     *
+     * @param settings Settings to parse
+     * @return maximum table frequency referred to in the Settings
+     */
+    protected int parseScoreTableMaxFreq(Settings settings) {
+        int maxFreq = settings.getAsInt("score_table.max_freq", 0);
+        if (maxFreq < 0) {
+            throw new ElasticsearchIllegalArgumentException("score_table.max_freq must be >= 0, got [" + maxFreq + "]");
+        }
+        return maxFreq;
+    }
+
+    /**
+     * Parses the format payloads are encoded in, set with <code>payload_format</code> and
+     * <code>payload_scale</code>. Defaults to 4 byte floats.
+     *
+     * @param settings Settings to parse
+     * @return {@link PayloadFormat} referred to in the Settings
+     */
+    protected PayloadFormat parsePayloadFormat(Settings settings) {
+        return PayloadFormatTokenFilterFactory.parseFormat(settings.get("payload_format", PayloadFormat.FLOAT),
+                settings.getAsFloat("payload_scale", null));
+    }
+
+    /**
+     * Parses how positions without a payload are scored, set with
+     * <code>missing_payloads</code>: <code>skip</code> (the default) leaves them out of the
+     * payload function like Lucene's payload queries do, <code>neutral</code> counts them
+     * as a payload of 1, for fields whose neutral payloads are dropped at index time.
+     *
+     * @param settings Settings to parse
+     * @return whether missing payloads are neutral
+     */
+    protected boolean parseMissingPayloadsNeutral(Settings settings) {
+        String missingPayloads = settings.get("missing_payloads", "skip");
+        if ("neutral".equals(missingPayloads)) {
+            return true;
+        } else if ("skip".equals(missingPayloads)) {
+            return false;
+        }
+        throw new ElasticsearchIllegalArgumentException("Unsupported missing_payloads [" + missingPayloads + "]");
+    }
+
+    public Similarity get() {
         return similarity;
     }
 }
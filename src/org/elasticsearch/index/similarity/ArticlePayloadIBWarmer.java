@@ -0,0 +1,235 @@
+package org.elasticsearch.index.similarity;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.payloads.PayloadImpacts;
+import org.apache.lucene.search.payloads.PayloadImpactsCache;
+import org.apache.lucene.search.similarities.ArticlePayloadIBSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.QueryParser;
+import org.elasticsearch.index.query.SimplePayloadQueryStringParser;
+import org.elasticsearch.index.shard.service.IndexShard;
+import org.elasticsearch.indices.query.IndicesQueriesRegistry;
+import org.elasticsearch.indices.warmer.IndicesWarmer;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Warms new segments of fields scored by {@link ArticlePayloadIBSimilarity} before they
+ * are exposed to searches:
+ * <ul>
+ * <li>loads the norms of every such field of every new segment,</li>
+ * <li>reads the payload postings of the hot terms, filling the
+ * {@link PayloadImpactsCache} of <code>simple_payload_query_string</code>, and</li>
+ * <li>fills the score tables of the hot terms against the new top level reader.</li>
+ * </ul>
+ * Hot terms are the <code>indices.payload_warmer.hot_terms</code> terms queried most often
+ * on the index recently, see {@link PayloadScoringStats#hotTerms(int)}, plus the fixed
+ * <code>field:text</code> terms listed in <code>indices.payload_warmer.terms</code>.
+ *
+ * Segments are warmed in parallel on the bounded <code>warmer</code> thread pool; warm
+ * times are reported in the <code>warmer</code> section of {@link PayloadScoringStats}.
+ * Disabled unless <code>indices.payload_warmer.enabled</code> is set.
+ */
+public class ArticlePayloadIBWarmer extends IndicesWarmer.Listener {
+
+    private final ESLogger logger;
+    private final IndicesQueriesRegistry queriesRegistry;
+    private final int hotTermsSize;
+    private final List<Term> fixedTerms;
+
+    @Inject
+    public ArticlePayloadIBWarmer(Settings settings, IndicesWarmer indicesWarmer, IndicesQueriesRegistry queriesRegistry) {
+        this.logger = Loggers.getLogger(getClass(), settings);
+        this.queriesRegistry = queriesRegistry;
+        this.hotTermsSize = settings.getAsInt("indices.payload_warmer.hot_terms", 100);
+        this.fixedTerms = new ArrayList<>();
+        for (String term : settings.getAsArray("indices.payload_warmer.terms")) {
+            int colon = term.indexOf(':');
+            if (colon <= 0) {
+                logger.warn("ignoring payload warmer term [{}], expected field:text", term);
+                continue;
+            }
+            fixedTerms.add(new Term(term.substring(0, colon), term.substring(colon + 1)));
+        }
+        if (settings.getAsBoolean("indices.payload_warmer.enabled", false)) {
+            indicesWarmer.addListener(this);
+        }
+    }
+
+    @Override
+    public IndicesWarmer.TerminationHandle warmNewReaders(IndexShard indexShard, IndexMetaData indexMetaData,
+            IndicesWarmer.WarmerContext context, ThreadPool threadPool) {
+        final IndexSearcher searcher = context.searcher().searcher();
+        final Similarity similarity = searcher.getSimilarity();
+        final List<Term> hotTerms = hotTerms(indexShard);
+        final PayloadImpactsCache impactsCache = impactsCache();
+        final List<AtomicReaderContext> leaves = context.searcher().reader().leaves();
+        final PayloadScoringStats stats = PayloadScoringStats.forIndex(indexShard.shardId().index().name());
+        final CountDownLatch latch = new CountDownLatch(leaves.size());
+        final AtomicLong norms = new AtomicLong();
+        final AtomicLong terms = new AtomicLong();
+        final AtomicInteger remaining = new AtomicInteger(leaves.size());
+        final long start = System.nanoTime();
+        final Executor executor = threadPool.executor(executor());
+        for (final AtomicReaderContext leaf : leaves) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        norms.addAndGet(warmNorms(leaf.reader(), similarity));
+                        terms.addAndGet(warmPostings(leaf.reader(), similarity, hotTerms, impactsCache));
+                    } catch (Throwable t) {
+                        logger.warn("failed to warm payload scoring data of segment [{}]", t, leaf.reader());
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            stats.warmed(System.nanoTime() - start, norms.get(), terms.get(), 0);
+                        }
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        return new IndicesWarmer.TerminationHandle() {
+            @Override
+            public void awaitTermination() throws InterruptedException {
+                latch.await();
+            }
+        };
+    }
+
+    @Override
+    public IndicesWarmer.TerminationHandle warmTopReader(IndexShard indexShard, IndexMetaData indexMetaData,
+            IndicesWarmer.WarmerContext context, ThreadPool threadPool) {
+        final IndexSearcher searcher = context.searcher().searcher();
+        final List<Term> hotTerms = hotTerms(indexShard);
+        if (hotTerms.isEmpty()) {
+            return IndicesWarmer.TerminationHandle.NO_WAIT;
+        }
+        final PayloadScoringStats stats = PayloadScoringStats.forIndex(indexShard.shardId().index().name());
+        final CountDownLatch latch = new CountDownLatch(1);
+        threadPool.executor(executor()).execute(new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.nanoTime();
+                try {
+                    long cells = warmScoreTables(searcher, hotTerms);
+                    stats.warmed(System.nanoTime() - start, 0, 0, cells);
+                } catch (Throwable t) {
+                    logger.warn("failed to warm payload score tables", t);
+                } finally {
+                    latch.countDown();
+                }
+            }
+        });
+        return new IndicesWarmer.TerminationHandle() {
+            @Override
+            public void awaitTermination() throws InterruptedException {
+                latch.await();
+            }
+        };
+    }
+
+    private List<Term> hotTerms(IndexShard indexShard) {
+        Set<Term> terms = new LinkedHashSet<>(fixedTerms);
+        if (hotTermsSize > 0) {
+            PayloadScoringStats stats = PayloadScoringStats.get(indexShard.shardId().index().name());
+            if (stats != null) {
+                terms.addAll(stats.hotTerms(hotTermsSize));
+            }
+        }
+        return new ArrayList<>(terms);
+    }
+
+    private PayloadImpactsCache impactsCache() {
+        QueryParser parser = queriesRegistry.queryParsers().get(SimplePayloadQueryStringParser.NAME);
+        return parser instanceof SimplePayloadQueryStringParser ? ((SimplePayloadQueryStringParser) parser).impactsCache() : null;
+    }
+
+    /**
+     * Loads the norms of the segment's IB scored fields, which are kept in memory once read
+     */
+    private static long warmNorms(AtomicReader reader, Similarity similarity) throws IOException {
+        long warmed = 0;
+        for (FieldInfo fieldInfo : reader.getFieldInfos()) {
+            if (fieldInfo.hasNorms() && ArticlePayloadIBSimilarity.forField(similarity, fieldInfo.name) != null
+                    && reader.getNormValues(fieldInfo.name) != null) {
+                warmed++;
+            }
+        }
+        return warmed;
+    }
+
+    /**
+     * Reads the payload postings of the hot terms of the segment's IB scored fields
+     */
+    private static long warmPostings(AtomicReader reader, Similarity similarity, List<Term> hotTerms,
+            PayloadImpactsCache impactsCache) throws IOException {
+        long warmed = 0;
+        for (Term term : hotTerms) {
+            ArticlePayloadIBSimilarity fieldSimilarity = ArticlePayloadIBSimilarity.forField(similarity, term.field());
+            if (fieldSimilarity == null) {
+                continue;
+            }
+            Terms terms = reader.terms(term.field());
+            if (terms == null || terms.hasPayloads() == false) {
+                continue;
+            }
+            TermsEnum termsEnum = terms.iterator(null);
+            if (termsEnum.seekExact(term.bytes()) == false) {
+                continue;
+            }
+            PayloadImpacts impacts = impactsCache == null ? null
+                    : impactsCache.get(reader, term, termsEnum, fieldSimilarity, null);
+            if (impacts == null) {
+                // not cacheable, reading the postings still pulls them into the page cache
+                PayloadImpacts.compute(termsEnum, reader.getNormValues(term.field()), fieldSimilarity, null);
+            }
+            warmed++;
+        }
+        return warmed;
+    }
+
+    /**
+     * Fills the score tables of the hot terms with the statistics of the new reader, with
+     * the total boost of an unboosted query.
+     */
+    private static long warmScoreTables(IndexSearcher searcher, List<Term> hotTerms) throws IOException {
+        long cells = 0;
+        for (Term term : hotTerms) {
+            ArticlePayloadIBSimilarity similarity = ArticlePayloadIBSimilarity.forField(searcher.getSimilarity(), term.field());
+            if (similarity == null || similarity.getScoreTableMaxFreq() == 0) {
+                continue;
+            }
+            TermContext termContext = TermContext.build(searcher.getTopReaderContext(), term);
+            if (termContext.docFreq() == 0) {
+                continue;
+            }
+            Similarity.SimWeight weight = similarity.computeWeight(1F, searcher.collectionStatistics(term.field()),
+                    searcher.termStatistics(term, termContext));
+            weight.normalize(1F, 1F);
+            cells += similarity.warmScoreTable(weight);
+        }
+        return cells;
+    }
+}
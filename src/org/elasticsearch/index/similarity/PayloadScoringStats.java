@@ -0,0 +1,440 @@
+package org.elasticsearch.index.similarity;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.similarities.PayloadScoringListener;
+import org.apache.lucene.search.similarities.PayloadTally;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.metrics.MeanMetric;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Scoring and parsing counters of the payload similarity for one index. All counters are
+ * striped adders, so recording from many search threads does not contend; timers are
+ * only taken once per segment scorer and once per parsed query, never per document.
+ * Documents and payload factors are counted once, per field, and summed into the index
+ * totals when the stats are rendered.
+ * <p>
+ * Instances live in a node-level registry keyed by index name, see {@link #forIndex(String)},
+ * and are removed once the index is closed or deleted on the node, see
+ * {@link PayloadScoringStatsCleaner}.
+ */
+public class PayloadScoringStats extends PayloadScoringListener implements ToXContent {
+
+    /** Query shapes beyond this many are counted as <code>other</code> */
+    private static final int MAX_SHAPES = 128;
+
+    /** Distinct terms counted for {@link #hotTerms(int)}; counts are halved when it is reached */
+    private static final int MAX_TRACKED_TERMS = 4096;
+
+    private static final ConcurrentMap<String, PayloadScoringStats> INDICES = ConcurrentCollections.newConcurrentMap();
+
+    private final String index;
+    private final CounterMetric scorers = new CounterMetric();
+    private final MeanMetric scorerCreation = new MeanMetric();
+    // documents reported without a field, not listed under fields
+    private final FieldStats unattributed = new FieldStats();
+    private final ConcurrentMap<String, MeanMetric> parseTimes = ConcurrentCollections.newConcurrentMap();
+    private final ConcurrentMap<String, FieldStats> fields = ConcurrentCollections.newConcurrentMap();
+    private final ConcurrentMap<Term, AtomicLong> termCounts = ConcurrentCollections.newConcurrentMap();
+    private final MeanMetric warmTime = new MeanMetric();
+    private final CounterMetric warmedNorms = new CounterMetric();
+    private final CounterMetric warmedTerms = new CounterMetric();
+    private final CounterMetric warmedTableCells = new CounterMetric();
+    private final MeanMetric queryCosts = new MeanMetric();
+    private final CounterMetric overBudget = new CounterMetric();
+    private final CounterMetric timedOut = new CounterMetric();
+
+    PayloadScoringStats(String index) {
+        this.index = index;
+    }
+
+    /**
+     * Returns the stats of <code>index</code>, creating them on first use
+     */
+    public static PayloadScoringStats forIndex(String index) {
+        PayloadScoringStats stats = INDICES.get(index);
+        if (stats == null) {
+            PayloadScoringStats created = new PayloadScoringStats(index);
+            stats = INDICES.putIfAbsent(index, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the stats of <code>index</code>, or <code>null</code> if nothing was recorded for it
+     */
+    public static PayloadScoringStats get(String index) {
+        return INDICES.get(index);
+    }
+
+    /**
+     * Returns the stats of all indices that recorded something on this node
+     */
+    public static Map<String, PayloadScoringStats> all() {
+        return Collections.unmodifiableMap(INDICES);
+    }
+
+    /**
+     * Forgets the stats of <code>index</code>
+     */
+    public static void remove(String index) {
+        INDICES.remove(index);
+    }
+
+    public String index() {
+        return index;
+    }
+
+    @Override
+    public void scorerCreated(long nanos) {
+        scorers.inc();
+        scorerCreation.inc(nanos);
+    }
+
+    @Override
+    public void docsScored(int count, PayloadTally payloads) {
+        unattributed.docsScored(count, payloads);
+    }
+
+    @Override
+    public PayloadScoringListener forField(String field) {
+        FieldStats stats = fields.get(field);
+        if (stats == null) {
+            FieldStats created = new FieldStats();
+            stats = fields.putIfAbsent(field, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public void queryCostEstimated(long cost, boolean overBudget) {
+        queryCosts.inc(cost);
+        if (overBudget) {
+            this.overBudget.inc();
+        }
+    }
+
+    @Override
+    public void queryTimedOut() {
+        timedOut.inc();
+    }
+
+    /**
+     * Records that parsing <code>query</code> took <code>nanos</code>
+     */
+    public void queryParsed(Query query, long nanos) {
+        String shape = shape(query);
+        MeanMetric metric = parseTimes.get(shape);
+        if (metric == null) {
+            if (parseTimes.size() >= MAX_SHAPES) {
+                shape = "other";
+            }
+            MeanMetric created = new MeanMetric();
+            metric = parseTimes.putIfAbsent(shape, created);
+            if (metric == null) {
+                metric = created;
+            }
+        }
+        metric.inc(nanos);
+    }
+
+    /**
+     * Counts the terms of a parsed query towards {@link #hotTerms(int)}. Clauses that cannot
+     * report their terms before being rewritten, e.g. prefix queries, are left out.
+     */
+    public void termsQueried(Query query) {
+        Set<Term> terms = new HashSet<>();
+        collectTerms(query, terms);
+        for (Term term : terms) {
+            AtomicLong count = termCounts.get(term);
+            if (count == null) {
+                if (termCounts.size() >= MAX_TRACKED_TERMS) {
+                    decayTermCounts();
+                    if (termCounts.size() >= MAX_TRACKED_TERMS) {
+                        continue;
+                    }
+                }
+                AtomicLong created = new AtomicLong();
+                count = termCounts.putIfAbsent(term, created);
+                if (count == null) {
+                    count = created;
+                }
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    private static void collectTerms(Query query, Set<Term> terms) {
+        if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : ((BooleanQuery) query).getClauses()) {
+                collectTerms(clause.getQuery(), terms);
+            }
+            return;
+        }
+        try {
+            query.extractTerms(terms);
+        } catch (UnsupportedOperationException e) {
+            // not rewritten yet, its terms depend on the index
+        }
+    }
+
+    /**
+     * Halves all term counts and forgets terms that drop to zero, so that the counts follow
+     * recent queries rather than all queries since the node started.
+     */
+    private synchronized void decayTermCounts() {
+        if (termCounts.size() < MAX_TRACKED_TERMS) {
+            return;
+        }
+        for (Map.Entry<Term, AtomicLong> entry : termCounts.entrySet()) {
+            AtomicLong count = entry.getValue();
+            long halved = count.get() / 2;
+            count.set(halved);
+            if (halved == 0) {
+                termCounts.remove(entry.getKey(), count);
+            }
+        }
+    }
+
+    /**
+     * Returns the at most <code>size</code> terms queried most often recently, most frequent first
+     */
+    public List<Term> hotTerms(int size) {
+        List<Map.Entry<Term, Long>> counts = new ArrayList<>(termCounts.size());
+        for (Map.Entry<Term, AtomicLong> entry : termCounts.entrySet()) {
+            counts.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue().get()));
+        }
+        Collections.sort(counts, BY_COUNT);
+        List<Term> hot = new ArrayList<>(Math.min(size, counts.size()));
+        for (int i = 0; i < counts.size() && i < size; i++) {
+            hot.add(counts.get(i).getKey());
+        }
+        return hot;
+    }
+
+    private static final Comparator<Map.Entry<Term, Long>> BY_COUNT = new Comparator<Map.Entry<Term, Long>>() {
+        @Override
+        public int compare(Map.Entry<Term, Long> a, Map.Entry<Term, Long> b) {
+            int cmp = Long.compare(b.getValue(), a.getValue());
+            return cmp != 0 ? cmp : a.getKey().compareTo(b.getKey());
+        }
+    };
+
+    /**
+     * Records one warming phase of a shard's new reader, segments or top level reader
+     *
+     * @param nanos time until the warmer finished all segments
+     * @param norms number of (segment, field) norms loaded
+     * @param terms number of (segment, term) postings read
+     * @param tableCells number of score table cells computed
+     */
+    public void warmed(long nanos, long norms, long terms, long tableCells) {
+        warmTime.inc(nanos);
+        warmedNorms.inc(norms);
+        warmedTerms.inc(terms);
+        warmedTableCells.inc(tableCells);
+    }
+
+    /**
+     * Describes the structure of a query without its terms, e.g.
+     * <code>BooleanQuery(MUST PayloadTermQuery,SHOULD PayloadNearQuery)</code>.
+     */
+    static String shape(Query query) {
+        if (query == null) {
+            return "null";
+        }
+        if (query instanceof BooleanQuery == false) {
+            return query.getClass().getSimpleName();
+        }
+        StringBuilder builder = new StringBuilder("BooleanQuery(");
+        BooleanClause[] clauses = ((BooleanQuery) query).getClauses();
+        String previous = null;
+        int repeats = 0;
+        for (BooleanClause clause : clauses) {
+            String current = clause.getOccur() + " " + shape(clause.getQuery());
+            if (current.equals(previous)) {
+                repeats++;
+                continue;
+            }
+            appendShape(builder, previous, repeats);
+            previous = current;
+            repeats = 1;
+        }
+        appendShape(builder, previous, repeats);
+        return builder.append(')').toString();
+    }
+
+    private static void appendShape(StringBuilder builder, String shape, int repeats) {
+        if (shape == null) {
+            return;
+        }
+        if (builder.charAt(builder.length() - 1) != '(') {
+            builder.append(',');
+        }
+        builder.append(shape);
+        if (repeats > 1) {
+            // runs of equal clauses collapse so that the number of terms does not create new shapes
+            builder.append('+');
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(index);
+
+        long scorerCount = scorers.count();
+        builder.startObject("scorers");
+        builder.field("count", scorerCount);
+        builder.field("creation_time_in_nanos", scorerCreation.sum());
+        builder.field("avg_creation_time_in_nanos", (long) scorerCreation.mean());
+        builder.endObject();
+
+        long docs = unattributed.docsScored.count();
+        long factors = unattributed.payloadFactors.count();
+        long defaulted = unattributed.defaultPayloads.count();
+        long neutral = unattributed.neutralPayloads.count();
+        long[] histogram = new long[PayloadTally.buckets()];
+        unattributed.addHistogram(histogram);
+        for (FieldStats stats : fields.values()) {
+            docs += stats.docsScored.count();
+            factors += stats.payloadFactors.count();
+            defaulted += stats.defaultPayloads.count();
+            neutral += stats.neutralPayloads.count();
+            stats.addHistogram(histogram);
+        }
+
+        builder.startObject("docs");
+        builder.field("scored", docs);
+        builder.field("avg_per_scorer", scorerCount == 0 ? 0D : (double) docs / scorerCount);
+        builder.endObject();
+
+        builder.startObject("payloads");
+        builder.field("factors", factors);
+        builder.field("defaulted", defaulted);
+        builder.field("neutral", neutral);
+        builder.startObject("histogram");
+        for (int i = 0; i < histogram.length; i++) {
+            String key = i < histogram.length - 1 ? "lt_" + PayloadTally.bound(i) : "gte_" + PayloadTally.bound(i);
+            builder.field(key, histogram[i]);
+        }
+        builder.endObject();
+        builder.endObject();
+
+        builder.startObject("fields");
+        for (Map.Entry<String, FieldStats> entry : fields.entrySet()) {
+            FieldStats stats = entry.getValue();
+            long fieldFactors = stats.payloadFactors.count();
+            long missing = stats.defaultPayloads.count();
+            builder.startObject(entry.getKey());
+            builder.field("docs_scored", stats.docsScored.count());
+            builder.field("payload_factors", fieldFactors);
+            builder.field("missing_payloads", missing);
+            // share of scored positions that had no stored payload
+            builder.field("payload_sparsity", fieldFactors == 0 ? 0D : (double) missing / fieldFactors);
+            builder.endObject();
+        }
+        builder.endObject();
+
+        builder.startObject("warmer");
+        builder.field("count", warmTime.count());
+        builder.field("time_in_millis", TimeUnit.NANOSECONDS.toMillis(warmTime.sum()));
+        builder.field("avg_time_in_nanos", (long) warmTime.mean());
+        builder.field("norms", warmedNorms.count());
+        builder.field("terms", warmedTerms.count());
+        builder.field("score_table_cells", warmedTableCells.count());
+        builder.endObject();
+
+        builder.startObject("cost");
+        builder.field("estimated", queryCosts.count());
+        builder.field("avg", (long) queryCosts.mean());
+        builder.field("over_budget", overBudget.count());
+        builder.field("timed_out", timedOut.count());
+        builder.endObject();
+
+        builder.startObject("parse");
+        for (Map.Entry<String, MeanMetric> entry : parseTimes.entrySet()) {
+            MeanMetric metric = entry.getValue();
+            builder.startObject(entry.getKey());
+            builder.field("count", metric.count());
+            builder.field("time_in_millis", TimeUnit.NANOSECONDS.toMillis(metric.sum()));
+            builder.field("avg_time_in_nanos", (long) metric.mean());
+            builder.endObject();
+        }
+        builder.endObject();
+
+        return builder.endObject();
+    }
+
+    /**
+     * Per-field counters, the index totals are summed from them. A scored document costs
+     * one update, plus one per kind of payload factor it had.
+     */
+    private final class FieldStats extends PayloadScoringListener {
+        private final CounterMetric docsScored = new CounterMetric();
+        private final CounterMetric payloadFactors = new CounterMetric();
+        private final CounterMetric defaultPayloads = new CounterMetric();
+        private final CounterMetric neutralPayloads = new CounterMetric();
+        private final CounterMetric[] histogram = new CounterMetric[PayloadTally.buckets()];
+
+        FieldStats() {
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = new CounterMetric();
+            }
+        }
+
+        @Override
+        public void scorerCreated(long nanos) {
+            PayloadScoringStats.this.scorerCreated(nanos);
+        }
+
+        @Override
+        public void docsScored(int count, PayloadTally payloads) {
+            docsScored.inc(count);
+            if (payloads.factors() == 0) {
+                return;
+            }
+            payloadFactors.inc(payloads.factors());
+            if (payloads.defaulted() > 0) {
+                defaultPayloads.inc(payloads.defaulted());
+            }
+            if (payloads.neutral() > 0) {
+                neutralPayloads.inc(payloads.neutral());
+            }
+            for (int i = 0; i < histogram.length; i++) {
+                if (payloads.histogram(i) > 0) {
+                    histogram[i].inc(payloads.histogram(i));
+                }
+            }
+        }
+
+        void addHistogram(long[] counts) {
+            for (int i = 0; i < histogram.length; i++) {
+                counts[i] += histogram[i].count();
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.elasticsearch.index.similarity;
+
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.query.QueryParser;
+import org.elasticsearch.index.query.SimplePayloadQueryCache;
+import org.elasticsearch.index.query.SimplePayloadQueryStringParser;
+import org.elasticsearch.indices.IndicesLifecycle;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.indices.query.IndicesQueriesRegistry;
+
+/**
+ * Removes the {@link PayloadScoringStats} of an index from the node-level registry once the
+ * index is closed or deleted on this node, so that the stats of removed indices are not
+ * kept and a recreated index starts from zero. Also drops the cached queries of the index,
+ * which hold its analyzers. Bound as a node component like {@link ArticlePayloadIBWarmer}.
+ */
+public class PayloadScoringStatsCleaner extends IndicesLifecycle.Listener {
+
+    private final IndicesQueriesRegistry queriesRegistry;
+
+    @Inject
+    public PayloadScoringStatsCleaner(IndicesService indicesService, IndicesQueriesRegistry queriesRegistry) {
+        this.queriesRegistry = queriesRegistry;
+        indicesService.indicesLifecycle().addListener(this);
+    }
+
+    @Override
+    public void afterIndexClosed(Index index) {
+        PayloadScoringStats.remove(index.name());
+        SimplePayloadQueryCache queryCache = queryCache();
+        if (queryCache != null) {
+            queryCache.removeIndex(index.name());
+        }
+    }
+
+    private SimplePayloadQueryCache queryCache() {
+        QueryParser parser = queriesRegistry.queryParsers().get(SimplePayloadQueryStringParser.NAME);
+        return parser instanceof SimplePayloadQueryStringParser ? ((SimplePayloadQueryStringParser) parser).queryCache() : null;
+    }
+}
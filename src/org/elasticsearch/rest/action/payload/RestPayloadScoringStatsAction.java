@@ -0,0 +1,67 @@
+package org.elasticsearch.rest.action.payload;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+import java.util.Map;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.regex.Regex;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.query.QueryParser;
+import org.elasticsearch.index.query.SimplePayloadQueryCache;
+import org.elasticsearch.index.query.SimplePayloadQueryStringParser;
+import org.elasticsearch.index.similarity.PayloadScoringStats;
+import org.elasticsearch.indices.query.IndicesQueriesRegistry;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Returns the {@link PayloadScoringStats} recorded on the node that handles the request,
+ * for all indices or for the comma separated (wildcard) index names in the path, and the
+ * stats of the node's {@link SimplePayloadQueryCache}.
+ */
+public class RestPayloadScoringStatsAction extends BaseRestHandler {
+
+    private final IndicesQueriesRegistry queriesRegistry;
+
+    @Inject
+    public RestPayloadScoringStatsAction(Settings settings, RestController controller, Client client,
+            IndicesQueriesRegistry queriesRegistry) {
+        super(settings, controller, client);
+        this.queriesRegistry = queriesRegistry;
+        controller.registerHandler(GET, "/_payload_scoring/stats", this);
+        controller.registerHandler(GET, "/{index}/_payload_scoring/stats", this);
+    }
+
+    @Override
+    protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
+        String[] indices = Strings.splitStringByCommaToArray(request.param("index"));
+        XContentBuilder builder = channel.newBuilder();
+        builder.startObject();
+        builder.startObject("indices");
+        for (Map.Entry<String, PayloadScoringStats> entry : PayloadScoringStats.all().entrySet()) {
+            if (indices.length == 0 || Regex.simpleMatch(indices, entry.getKey())) {
+                entry.getValue().toXContent(builder, request);
+            }
+        }
+        builder.endObject();
+        SimplePayloadQueryCache queryCache = queryCache();
+        if (queryCache != null) {
+            queryCache.toXContent(builder, request);
+        }
+        builder.endObject();
+        channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+    }
+
+    private SimplePayloadQueryCache queryCache() {
+        QueryParser parser = queriesRegistry.queryParsers().get(SimplePayloadQueryStringParser.NAME);
+        return parser instanceof SimplePayloadQueryStringParser ? ((SimplePayloadQueryStringParser) parser).queryCache() : null;
+    }
+}
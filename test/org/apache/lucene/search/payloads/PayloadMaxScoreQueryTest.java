@@ -0,0 +1,290 @@
+package org.apache.lucene.search.payloads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilter;
+import org.apache.lucene.analysis.payloads.FloatEncoder;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.ArticlePayloadIBSimilarity;
+import org.apache.lucene.search.similarities.DistributionLL;
+import org.apache.lucene.search.similarities.LambdaDF;
+import org.apache.lucene.search.similarities.NormalizationH2;
+import org.apache.lucene.search.similarities.PerFieldArticlePayloadIBSimilarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.Version;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Compares the top hits of {@link PayloadMaxScoreQuery} with those of the plain disjunction
+ * of the same payload terms.
+ */
+public class PayloadMaxScoreQueryTest {
+
+    private static final String FIELD = "body";
+    private static final int TOP_K = 10;
+
+    private static Directory directory;
+    private static DirectoryReader reader;
+    private static IndexSearcher searcher;
+
+    @BeforeClass
+    public static void index() throws IOException {
+        ArticlePayloadIBSimilarity similarity = new ArticlePayloadIBSimilarity(
+                new DistributionLL(), new LambdaDF(), new NormalizationH2(), 32);
+        directory = new RAMDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_4_10_0, analyzer());
+        config.setSimilarity(similarity);
+        Random random = new Random(42L);
+        try (IndexWriter writer = new IndexWriter(directory, config)) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 2000; i++) {
+                text.setLength(0);
+                int length = 5 + random.nextInt(40);
+                for (int j = 0; j < length; j++) {
+                    // skewed, so that the rare terms are the essential ones
+                    int term = (int) (20 * Math.pow(random.nextDouble(), 3));
+                    text.append('t').append(term).append('|').append(2 * random.nextFloat()).append(' ');
+                }
+                Document doc = new Document();
+                doc.add(new TextField(FIELD, text.toString(), Field.Store.NO));
+                writer.addDocument(doc);
+                if (i % 500 == 499) {
+                    writer.commit();
+                }
+            }
+        }
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+        // payload IB similarities are wrapped per field, like they are in an index, whose
+        // per-field similarity takes coord from the default similarity
+        searcher.setSimilarity(new PerFieldArticlePayloadIBSimilarity(similarity,
+                Collections.<String, ArticlePayloadIBSimilarity>emptyMap()) {
+            @Override
+            public float coord(int overlap, int maxOverlap) {
+                return overlap / (float) maxOverlap;
+            }
+        });
+    }
+
+    @AfterClass
+    public static void close() throws IOException {
+        reader.close();
+        directory.close();
+    }
+
+    private static Analyzer analyzer() {
+        return new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+                Tokenizer tokenizer = new WhitespaceTokenizer(Version.LUCENE_4_10_0, reader);
+                return new TokenStreamComponents(tokenizer, new DelimitedPayloadTokenFilter(tokenizer, '|', new FloatEncoder()));
+            }
+        };
+    }
+
+    private static final String[] TERMS = {"t0", "t3", "t9", "t15", "t19"};
+
+    private static PayloadTermQuery term(String text) {
+        return new PayloadTermQuery(new Term(FIELD, text), new AveragePayloadFunction(), true);
+    }
+
+    /** With coord, like the simple query string parser builds it */
+    private static Query disjunction() {
+        BooleanQuery query = new BooleanQuery();
+        for (String text : TERMS) {
+            query.add(term(text), BooleanClause.Occur.SHOULD);
+        }
+        return query;
+    }
+
+    private static PayloadMaxScoreQuery maxScore() {
+        List<PayloadMaxScoreQuery.Clause> clauses = new ArrayList<>();
+        for (String text : TERMS) {
+            clauses.add(new PayloadMaxScoreQuery.Clause(new Term(FIELD, text), 1F, new AveragePayloadFunction()));
+        }
+        return new PayloadMaxScoreQuery(clauses,
+                Collections.singletonList(new PayloadMaxScoreQuery.Group(-1, TERMS.length, false)),
+                TOP_K, new PayloadImpactsCache(100));
+    }
+
+    /**
+     * Prunes only as the given top-level query of a search, like a shard search does
+     */
+    private static final class TopLevelMaxScoreQuery extends PayloadMaxScoreQuery {
+        Query topLevel;
+
+        TopLevelMaxScoreQuery() {
+            super(maxScore().getClauses(), maxScore().getGroups(), TOP_K, new PayloadImpactsCache(100));
+        }
+
+        @Override
+        protected boolean prune(IndexSearcher searcher) {
+            return isTopLevel(topLevel);
+        }
+    }
+
+    /** Accepts every third document */
+    private static final Filter FILTER = new Filter() {
+        @Override
+        public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            FixedBitSet bits = new FixedBitSet(context.reader().maxDoc());
+            for (int doc = 0; doc < bits.length(); doc++) {
+                if ((context.docBase + doc) % 3 == 0) {
+                    bits.set(doc);
+                }
+            }
+            return BitsFilteredDocIdSet.wrap(bits, acceptDocs);
+        }
+    };
+
+    private static void assertSameHits(TopDocs expected, TopDocs actual) {
+        assertEquals(expected.scoreDocs.length, actual.scoreDocs.length);
+        for (int i = 0; i < expected.scoreDocs.length; i++) {
+            assertEquals("hit " + i, expected.scoreDocs[i].doc, actual.scoreDocs[i].doc);
+            assertEquals("hit " + i, expected.scoreDocs[i].score, actual.scoreDocs[i].score, 1e-5F);
+        }
+    }
+
+    @Test
+    public void testTopHits() throws IOException {
+        assertSameHits(searcher.search(disjunction(), TOP_K), searcher.search(maxScore(), TOP_K));
+    }
+
+    @Test
+    public void testTopHitsWithNestedCoord() throws IOException {
+        // a term analyzed into several tokens, next to a term without coord over several fields
+        BooleanQuery tokens = new BooleanQuery();
+        tokens.add(term("t3"), BooleanClause.Occur.SHOULD);
+        tokens.add(term("t9"), BooleanClause.Occur.SHOULD);
+        BooleanQuery fields = new BooleanQuery(true);
+        fields.add(term("t15"), BooleanClause.Occur.SHOULD);
+        fields.add(term("t19"), BooleanClause.Occur.SHOULD);
+        BooleanQuery expected = new BooleanQuery();
+        expected.add(term("t0"), BooleanClause.Occur.SHOULD);
+        expected.add(tokens, BooleanClause.Occur.SHOULD);
+        expected.add(fields, BooleanClause.Occur.SHOULD);
+
+        List<PayloadMaxScoreQuery.Group> groups = new ArrayList<>();
+        groups.add(new PayloadMaxScoreQuery.Group(-1, 3, false));
+        groups.add(new PayloadMaxScoreQuery.Group(0, 2, false));
+        groups.add(new PayloadMaxScoreQuery.Group(0, 2, true));
+        List<PayloadMaxScoreQuery.Clause> clauses = new ArrayList<>();
+        String[] texts = {"t0", "t3", "t9", "t15", "t19"};
+        int[] clauseGroups = {0, 1, 1, 2, 2};
+        for (int i = 0; i < texts.length; i++) {
+            clauses.add(new PayloadMaxScoreQuery.Clause(new Term(FIELD, texts[i]), 1F, new AveragePayloadFunction(),
+                    clauseGroups[i]));
+        }
+        Query actual = new PayloadMaxScoreQuery(clauses, groups, TOP_K, new PayloadImpactsCache(100));
+        assertSameHits(searcher.search(expected, TOP_K), searcher.search(actual, TOP_K));
+    }
+
+    @Test
+    public void testTopHitsUnderFilter() throws IOException {
+        FilteredQuery.FilterStrategy[] strategies = {
+            FilteredQuery.RANDOM_ACCESS_FILTER_STRATEGY,
+            FilteredQuery.LEAP_FROG_QUERY_FIRST_STRATEGY,
+            FilteredQuery.LEAP_FROG_FILTER_FIRST_STRATEGY,
+            FilteredQuery.QUERY_FIRST_FILTER_STRATEGY
+        };
+        for (FilteredQuery.FilterStrategy strategy : strategies) {
+            assertSameHits(searcher.search(new FilteredQuery(disjunction(), FILTER, strategy), TOP_K),
+                    searcher.search(new FilteredQuery(maxScore(), FILTER, strategy), TOP_K));
+        }
+    }
+
+    @Test
+    public void testTopHitsWithRequiredSibling() throws IOException {
+        Term required = new Term(FIELD, "t1");
+        BooleanQuery expected = new BooleanQuery(true);
+        expected.add(disjunction(), BooleanClause.Occur.MUST);
+        expected.add(new PayloadTermQuery(required, new AveragePayloadFunction(), true), BooleanClause.Occur.MUST);
+        BooleanQuery actual = new BooleanQuery(true);
+        actual.add(maxScore(), BooleanClause.Occur.MUST);
+        actual.add(new PayloadTermQuery(required, new AveragePayloadFunction(), true), BooleanClause.Occur.MUST);
+        assertSameHits(searcher.search(expected, TOP_K), searcher.search(actual, TOP_K));
+    }
+
+    @Test
+    public void testTopHitsWithOptionalSibling() throws IOException {
+        // a boolean query with only optional clauses collects their bulk scorers out of order
+        Term optional = new Term(FIELD, "t1");
+        BooleanQuery expected = new BooleanQuery(true);
+        expected.add(disjunction(), BooleanClause.Occur.SHOULD);
+        expected.add(new PayloadTermQuery(optional, new AveragePayloadFunction(), true), BooleanClause.Occur.SHOULD);
+        TopLevelMaxScoreQuery maxScore = new TopLevelMaxScoreQuery();
+        BooleanQuery actual = new BooleanQuery(true);
+        actual.add(maxScore, BooleanClause.Occur.SHOULD);
+        actual.add(new PayloadTermQuery(optional, new AveragePayloadFunction(), true), BooleanClause.Occur.SHOULD);
+        maxScore.topLevel = actual;
+        assertFalse(maxScore.isTopLevel(actual));
+        assertSameHits(searcher.search(expected, TOP_K), searcher.search(actual, TOP_K));
+    }
+
+    @Test
+    public void testTopLevelUnderFilter() throws IOException {
+        TopLevelMaxScoreQuery maxScore = new TopLevelMaxScoreQuery();
+        Query filtered = new FilteredQuery(maxScore, FILTER);
+        maxScore.topLevel = filtered;
+        assertTrue(maxScore.isTopLevel(filtered));
+        assertSameHits(searcher.search(new FilteredQuery(disjunction(), FILTER), TOP_K),
+                searcher.search(filtered, TOP_K));
+    }
+
+    @Test
+    public void testPrunedWithinBudget() throws IOException {
+        // pruning only lowers the total hit count, which the budget query must keep
+        TopDocs pruned = searcher.search(maxScore(), TOP_K);
+        TopDocs budgeted = searcher.search(new PayloadBudgetQuery(maxScore(), null, Long.MAX_VALUE,
+                PayloadBudgetQuery.Action.REJECT, 0, null), TOP_K);
+        assertSameHits(pruned, budgeted);
+        assertEquals(pruned.totalHits, budgeted.totalHits);
+    }
+
+    @Test
+    public void testPrunedInParallel() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            TopDocs pruned = searcher.search(maxScore(), TOP_K);
+            TopDocs parallel = searcher.search(new PayloadParallelQuery(maxScore(), 2, pool), TOP_K);
+            assertSameHits(pruned, parallel);
+            assertEquals(pruned.totalHits, parallel.totalHits);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
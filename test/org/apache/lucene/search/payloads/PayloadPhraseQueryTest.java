@@ -0,0 +1,175 @@
+package org.apache.lucene.search.payloads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilter;
+import org.apache.lucene.analysis.payloads.FloatEncoder;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.ArticlePayloadIBSimilarity;
+import org.apache.lucene.search.similarities.DistributionLL;
+import org.apache.lucene.search.similarities.LambdaDF;
+import org.apache.lucene.search.similarities.NormalizationH2;
+import org.apache.lucene.search.similarities.PerFieldArticlePayloadIBSimilarity;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Compares the hits and scores of {@link PayloadPhraseQuery} with those of an ordered
+ * {@link PayloadNearQuery} over the same terms.
+ */
+public class PayloadPhraseQueryTest {
+
+    private static final String FIELD = "body";
+
+    private static Directory directory;
+    private static DirectoryReader reader;
+    private static IndexSearcher searcher;
+
+    @BeforeClass
+    public static void index() throws IOException {
+        ArticlePayloadIBSimilarity similarity = new ArticlePayloadIBSimilarity(
+                new DistributionLL(), new LambdaDF(), new NormalizationH2(), 32);
+        directory = new RAMDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_4_10_0, analyzer());
+        config.setSimilarity(similarity);
+        Random random = new Random(7L);
+        try (IndexWriter writer = new IndexWriter(directory, config)) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 600; i++) {
+                text.setLength(0);
+                int length = 3 + random.nextInt(30);
+                for (int j = 0; j < length; j++) {
+                    // few terms, so that documents repeat them and matches overlap
+                    text.append((char) ('a' + random.nextInt(4)));
+                    if (random.nextInt(5) > 0) {
+                        text.append('|').append(0.1F + 2 * random.nextFloat());
+                    }
+                    text.append(' ');
+                }
+                Document doc = new Document();
+                doc.add(new TextField(FIELD, text.toString(), Field.Store.NO));
+                writer.addDocument(doc);
+                if (i % 200 == 199) {
+                    writer.commit();
+                }
+            }
+        }
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(new PerFieldArticlePayloadIBSimilarity(similarity,
+                Collections.<String, ArticlePayloadIBSimilarity>emptyMap()));
+    }
+
+    @AfterClass
+    public static void close() throws IOException {
+        reader.close();
+        directory.close();
+    }
+
+    private static Analyzer analyzer() {
+        return new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+                Tokenizer tokenizer = new WhitespaceTokenizer(Version.LUCENE_4_10_0, reader);
+                return new TokenStreamComponents(tokenizer, new DelimitedPayloadTokenFilter(tokenizer, '|', new FloatEncoder()));
+            }
+        };
+    }
+
+    private static Query near(String[] texts, int slop) {
+        SpanQuery[] clauses = new SpanQuery[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            clauses[i] = new SpanTermQuery(new Term(FIELD, texts[i]));
+        }
+        return new PayloadNearQuery(clauses, slop, true, new AveragePayloadFunction());
+    }
+
+    private static Query phrase(String[] texts, int slop) {
+        Term[] terms = new Term[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            terms[i] = new Term(FIELD, texts[i]);
+        }
+        return new PayloadPhraseQuery(terms, slop, new AveragePayloadFunction(), 0F, 0, false);
+    }
+
+    private static Map<Integer, Float> hits(Query query) throws IOException {
+        TopDocs topDocs = searcher.search(query, reader.maxDoc());
+        Map<Integer, Float> hits = new HashMap<>();
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            hits.put(scoreDoc.doc, scoreDoc.score);
+        }
+        return hits;
+    }
+
+    private static void assertSameHits(String[] texts, int slop) throws IOException {
+        Map<Integer, Float> expected = hits(near(texts, slop));
+        Map<Integer, Float> actual = hits(phrase(texts, slop));
+        String message = Arrays.toString(texts) + "~" + slop;
+        assertTrue(message + " matches nothing", expected.size() > 0);
+        assertEquals(message, expected.keySet(), actual.keySet());
+        for (Map.Entry<Integer, Float> hit : expected.entrySet()) {
+            Float score = actual.get(hit.getKey());
+            assertNotNull(message, score);
+            assertEquals(message + " doc " + hit.getKey(), hit.getValue(), score, 1e-4F * hit.getValue());
+        }
+    }
+
+    @Test
+    public void testExactPhrases() throws IOException {
+        assertSameHits(new String[]{"a", "b"}, 0);
+        assertSameHits(new String[]{"c", "a", "d"}, 0);
+    }
+
+    @Test
+    public void testRepeatedTerms() throws IOException {
+        assertSameHits(new String[]{"a", "a"}, 0);
+        assertSameHits(new String[]{"b", "b", "b"}, 0);
+        assertSameHits(new String[]{"a", "b", "a"}, 0);
+    }
+
+    @Test
+    public void testOverlappingMatches() throws IOException {
+        // "a b a b a" holds several overlapping matches of each of these
+        assertSameHits(new String[]{"a", "b", "a", "b"}, 0);
+        assertSameHits(new String[]{"a", "b", "a"}, 2);
+        assertSameHits(new String[]{"c", "c"}, 1);
+    }
+
+    @Test
+    public void testSlop() throws IOException {
+        for (int slop = 1; slop <= 4; slop++) {
+            assertSameHits(new String[]{"a", "b"}, slop);
+            assertSameHits(new String[]{"d", "a", "c"}, slop);
+            assertSameHits(new String[]{"b", "a", "b"}, slop);
+        }
+    }
+}